@@ -165,6 +165,14 @@ public interface AlertingService {
       public Integer errors;
       @NotNull
       public Collection<Dataset.Info> datasetsWithoutValue;
+      /** Number of datasets with calculated datapoints */
+      public Integer processedDatasets;
+      /** Processed datasets per second */
+      public Double throughput;
+      /** Estimated number of seconds until all datasets are processed */
+      public Long eta;
+      /** True when datapoints are calculated and change detection is running */
+      public boolean detectingChanges;
    }
 
 
@@ -50,6 +50,10 @@ public interface ChangesService {
       public Range range;
       @NotNull
       public List<Target> targets;
+      // maximum number of datapoints per target (set by Grafana); all datapoints are returned when not set
+      public Integer maxDataPoints;
+      // algorithm used when there are more datapoints than maxDataPoints: 'lttb' (default) or 'minmax'
+      public String downsampling;
    }
 
    class Range {
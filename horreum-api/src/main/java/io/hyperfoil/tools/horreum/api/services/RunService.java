@@ -9,6 +9,7 @@ import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.ProtectedTimeType;
 import io.hyperfoil.tools.horreum.api.data.Run;
 import io.hyperfoil.tools.horreum.api.data.ValidationError;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -187,6 +188,37 @@ public interface RunService {
                  @QueryParam("token") String token,
                  Run run);
 
+    @POST
+    @Path("bulk")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Operation(description = "Upload multiple Runs at once. Datasets are calculated asynchronously after the Runs are stored.")
+    @Parameters(value = {
+            @Parameter(name = "test", description = "test name of ID; when not set the test is taken from each Run", example = "my-benchmark"),
+            @Parameter(name = "owner", description = "Name of the new owner", example = "perf-team"),
+            @Parameter(name = "access", description = "New Access level", example = "0"),
+            @Parameter(name = "token", in = ParameterIn.QUERY, description = "API token", example = "094678029a2aaf9a2847502273099bb3a1b2338c2b9c618ed09aef0181666e38"),
+    })
+    @RequestBody(name = "runsBody",
+            content = @Content(mediaType = MediaType.APPLICATION_JSON, schema = @Schema(type = SchemaType.ARRAY, implementation = Run.class)),
+            required = true)
+    @APIResponses(
+            value = {
+                    @APIResponse(responseCode = "200",
+                            description = "IDs of the new Runs, in the order of the uploaded Runs",
+                            content = {
+                                    @Content(
+                                            schema = @Schema(type = SchemaType.ARRAY, implementation = Integer.class),
+                                            example = "[101, 102, 103]")
+                            }
+                    )
+            }
+    )
+    List<Integer> addBulk(@QueryParam("test") String testNameOrId,
+                          @QueryParam("owner") String owner,
+                          @QueryParam("access") Access access,
+                          @QueryParam("token") String token,
+                          InputStream runs);
+
     @POST
     @Path("data")
     @RequestBody(content = @Content(mediaType = MediaType.APPLICATION_JSON,
@@ -255,7 +287,7 @@ public interface RunService {
                             @QueryParam("token") String token,
                             @QueryParam("schema") String schemaUri,
                             @QueryParam("description") String description,
-                            @RequestBody(required = true) String data);
+                            @RequestBody(required = true) InputStream data);
 
     @POST
     @Path("data")
@@ -285,6 +317,22 @@ public interface RunService {
     })
     void waitForDatasets(@PathParam("id") int id);
 
+    @GET
+    @Path("{id}/transformationStatus")
+    @APIResponse(
+            responseCode = "404",
+            description = "If no Run have been found with the given id",
+            content = @Content(mediaType = MediaType.APPLICATION_JSON))
+    @APIResponseSchema(value = RunTransformationStatus.class,
+            responseDescription = "State of the calculation of Datasets from the Run",
+            responseCode = "200")
+    @Operation(description = "Check if Datasets for given Run are still waiting to be calculated")
+    @Parameters(value = {
+            @Parameter(name = "id", in = ParameterIn.PATH, description = "Run ID", example = "202"),
+            @Parameter(name = "token", in = ParameterIn.QUERY, description = "Run API token", example = "094678029a2aaf9a2847502273099bb3a1b2338c2b9c618ed09aef0181666e38")
+    })
+    RunTransformationStatus getTransformationStatus(@PathParam("id") int id, @QueryParam("token") String token);
+
     @GET
     @Path("autocomplete")
     @ApiIgnore
@@ -478,6 +526,38 @@ public interface RunService {
         public List<RunSummary> runs;
     }
 
+    class RunTransformationStatus {
+        @JsonProperty(required = true)
+        @Schema(description = "Run ID", example = "202")
+        public int runId;
+        @JsonProperty(required = true)
+        @Schema(description = "True if the Run is queued for transformation and its Datasets are not calculated yet; false once the transformation was given up after repeated failures", example = "false")
+        public boolean pending;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of Datasets of this Run", example = "1")
+        public int datasets;
+        @JsonProperty(required = true)
+        @Schema(description = "Number of times the transformation was retried", example = "0")
+        public int attempts;
+        @Schema(description = "Error from the last failed transformation attempt, if any")
+        public String error;
+
+        public RunTransformationStatus() {
+        }
+
+        public RunTransformationStatus(int runId, boolean pending, int datasets) {
+            this(runId, pending, datasets, 0, null);
+        }
+
+        public RunTransformationStatus(int runId, boolean pending, int datasets, int attempts, String error) {
+            this.runId = runId;
+            this.pending = pending;
+            this.datasets = datasets;
+            this.attempts = attempts;
+            this.error = error;
+        }
+    }
+
     class RunCount {
         @JsonProperty(required = true)
         @Schema(description = "Total count of Runs visible", example = "100")
@@ -258,6 +258,34 @@ public interface SchemaService {
    @Operation(description="Import an previously exported Schema")
    void importSchema(String config);
 
+   @POST
+   @Path("{id}/revalidate")
+   @Operation(description="Start validation of all Runs and Datasets against the Schema. If the validation is already running this returns its status.")
+   @Parameters(value = {
+           @Parameter(name = "id", description = "Schema ID", example = "101"),
+   })
+   RevalidationStatus revalidate(@PathParam("id") int id);
+
+   @GET
+   @Path("{id}/revalidate")
+   @Operation(description="Retrieve progress of the validation of all Runs and Datasets against the Schema. The progress is tracked by the Horreum instance that runs the validation; with multiple instances this is available only from the one that started it.")
+   @Parameters(value = {
+           @Parameter(name = "id", description = "Schema ID", example = "101"),
+   })
+   @APIResponse(
+           responseCode = "404",
+           description = "No validation of this Schema was started recently",
+           content = @Content(mediaType = "application/json"))
+   RevalidationStatus getRevalidationStatus(@PathParam("id") int id);
+
+   @DELETE
+   @Path("{id}/revalidate")
+   @Operation(description="Cancel validation of all Runs and Datasets against the Schema. Runs and Datasets that were not validated yet keep their previous validation errors. With multiple Horreum instances this must be sent to the one that started the validation.")
+   @Parameters(value = {
+           @Parameter(name = "id", description = "Schema ID", example = "101"),
+   })
+   void cancelRevalidation(@PathParam("id") int id);
+
    class SchemaQueryResult {
       @NotNull
       @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Array of Schemas")
@@ -407,6 +435,36 @@ public interface SchemaService {
       public String transformerName;
    }
 
+   class RevalidationStatus {
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Schema ID", example="101")
+      public int schemaId;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Start timestamp", example="1698013206000")
+      public long timestamp;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Total number of Runs to validate", example="152")
+      public long totalRuns;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Total number of Datasets to validate", example="304")
+      public long totalDatasets;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Number of validated Runs", example="93")
+      public long validatedRuns;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Number of validated Datasets", example="0")
+      public long validatedDatasets;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Number of Runs and Datasets that did not pass the validation", example="3")
+      public long invalid;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="True when the validation completed or was cancelled", example="false")
+      public boolean done;
+      @JsonProperty(required = true)
+      @org.eclipse.microprofile.openapi.annotations.media.Schema(description="True when the validation was cancelled", example="false")
+      public boolean cancelled;
+   }
+
    class SchemaDescriptor {
       @JsonProperty(required = true)
       @org.eclipse.microprofile.openapi.annotations.media.Schema(description="Schema unique ID",
@@ -2,16 +2,40 @@ package io.hyperfoil.tools.horreum.changedetection;
 
 import io.hyperfoil.tools.horreum.api.data.ConditionConfig;
 import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
-import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
 
-import java.util.List;
 import java.util.function.Consumer;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+/**
+ * Detects changes in datapoints of a variable. Implementations are CDI beans and are discovered
+ * by {@link ChangeDetectionModelResolver}; the name in {@link #config()} must be unique.
+ */
 public interface ChangeDetectionModel {
     ConditionConfig config();
 
-    void analyze(List<DataPointDAO> dataPoints, JsonNode configuration, Consumer<ChangeDAO> changeConsumer);
+    /**
+     * Analyze datapoints since last change.
+     * Changes passed to the consumer do not have the variable set.
+     *
+     * @param series Datapoints ordered from the oldest; the series is never empty.
+     */
+    void analyze(DataPointSeries series, JsonNode configuration, Consumer<ChangeDAO> changeConsumer);
+
+    /**
+     * @return Number of most recent datapoints that must be available individually in {@link RunningStatistics}.
+     */
+    default int window(JsonNode configuration) {
+        return 1;
+    }
+
+    /**
+     * Analyze datapoints since last change using streaming statistics rather than the full series of datapoints.
+     *
+     * @return False if the model cannot decide using the statistics; the series-based variant is used instead.
+     */
+    default boolean analyze(RunningStatistics statistics, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
+        return false;
+    }
 
 }
@@ -0,0 +1,56 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Registry of all {@link ChangeDetectionModel change detection models}; any CDI bean implementing
+ * the interface is available under the name from its {@link ChangeDetectionModel#config() config}.
+ */
+@ApplicationScoped
+public class ChangeDetectionModelResolver {
+   private static final Logger log = Logger.getLogger(ChangeDetectionModelResolver.class);
+
+   @Inject
+   Instance<ChangeDetectionModel> beans;
+
+   private Map<String, ChangeDetectionModel> models;
+
+   @PostConstruct
+   void init() {
+      Map<String, ChangeDetectionModel> models = new TreeMap<>();
+      for (ChangeDetectionModel model : beans) {
+         String name = model.config().name;
+         ChangeDetectionModel previous = models.put(name, model);
+         if (previous != null) {
+            throw new IllegalStateException("Change detection model " + name + " is provided by both " +
+                  previous.getClass().getName() + " and " + model.getClass().getName());
+         }
+      }
+      log.debugf("Registered change detection models: %s", models.keySet());
+      this.models = Collections.unmodifiableMap(models);
+   }
+
+   /**
+    * @return The model or <code>null</code> if there is no model with this name.
+    */
+   public ChangeDetectionModel getModel(String name) {
+      return models.get(name);
+   }
+
+   /**
+    * @return All models, ordered by name.
+    */
+   public Collection<ChangeDetectionModel> getModels() {
+      return models.values();
+   }
+}
@@ -0,0 +1,118 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Columnar representation of datapoints for one variable and fingerprint, ordered from the oldest
+ * to the most recent datapoint (by timestamp and dataset ID).
+ * This is loaded directly from the <code>datapoint</code> table without creating entities.
+ */
+public class DataPointSeries {
+   public final double[] values;
+   public final long[] epochMillis;
+   public final int[] datasetIds;
+   // run ID and ordinal identify the dataset for the users
+   public final int[] runIds;
+   public final int[] ordinals;
+
+   public DataPointSeries(double[] values, long[] epochMillis, int[] datasetIds, int[] runIds, int[] ordinals) {
+      if (values.length != epochMillis.length || values.length != datasetIds.length
+            || values.length != runIds.length || values.length != ordinals.length) {
+         throw new IllegalArgumentException("All arrays must have the same length");
+      }
+      this.values = values;
+      this.epochMillis = epochMillis;
+      this.datasetIds = datasetIds;
+      this.runIds = runIds;
+      this.ordinals = ordinals;
+   }
+
+   public int size() {
+      return values.length;
+   }
+
+   public boolean isEmpty() {
+      return values.length == 0;
+   }
+
+   /**
+    * @return Index of the most recent datapoint.
+    */
+   public int last() {
+      return values.length - 1;
+   }
+
+   public Instant timestamp(int index) {
+      return Instant.ofEpochMilli(epochMillis[index]);
+   }
+
+   /**
+    * @return Dataset as presented to users, in the form <code>runId/ordinal</code>.
+    */
+   public String dataset(int index) {
+      return runIds[index] + "/" + ordinals[index];
+   }
+
+   /**
+    * Collects datapoints into growing primitive arrays; datapoints must be added from the oldest.
+    */
+   public static class Builder {
+      private double[] values;
+      private long[] epochMillis;
+      private int[] datasetIds;
+      private int[] runIds;
+      private int[] ordinals;
+      private int size;
+
+      public Builder() {
+         this(16);
+      }
+
+      public Builder(int initialCapacity) {
+         int capacity = Math.max(1, initialCapacity);
+         values = new double[capacity];
+         epochMillis = new long[capacity];
+         datasetIds = new int[capacity];
+         runIds = new int[capacity];
+         ordinals = new int[capacity];
+      }
+
+      public Builder add(double value, long epochMillis, int datasetId, int runId, int ordinal) {
+         if (size == values.length) {
+            int capacity = size * 2;
+            values = Arrays.copyOf(values, capacity);
+            this.epochMillis = Arrays.copyOf(this.epochMillis, capacity);
+            datasetIds = Arrays.copyOf(datasetIds, capacity);
+            runIds = Arrays.copyOf(runIds, capacity);
+            ordinals = Arrays.copyOf(ordinals, capacity);
+         }
+         values[size] = value;
+         this.epochMillis[size] = epochMillis;
+         datasetIds[size] = datasetId;
+         runIds[size] = runId;
+         ordinals[size] = ordinal;
+         ++size;
+         return this;
+      }
+
+      public DataPointSeries build() {
+         return new DataPointSeries(Arrays.copyOf(values, size), Arrays.copyOf(epochMillis, size), Arrays.copyOf(datasetIds, size),
+               Arrays.copyOf(runIds, size), Arrays.copyOf(ordinals, size));
+      }
+   }
+
+   @Override
+   public String toString() {
+      int from = Math.max(0, values.length - 20);
+      StringBuilder sb = new StringBuilder("[");
+      if (from > 0) {
+         sb.append("..., ");
+      }
+      for (int i = from; i < values.length; ++i) {
+         sb.append(datasetIds[i]).append('@').append(timestamp(i)).append(": ").append(values[i]);
+         if (i != values.length - 1) sb.append(", ");
+      }
+      return sb.append("]").toString();
+   }
+}
@@ -0,0 +1,236 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.apache.commons.math3.distribution.TDistribution;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.api.data.ConditionConfig;
+import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
+
+/**
+ * Change point detection using e-divisive means: the series is split where the energy distance between
+ * the two parts is maximal, and the split is reported if the parts differ significantly (Student's t-test).
+ * The search is O(n log n) as the sums of distances are maintained incrementally in Fenwick trees.
+ */
+@ApplicationScoped
+public class EDivisiveModel implements ChangeDetectionModel {
+   private static final Logger log = Logger.getLogger(EDivisiveModel.class);
+   public static final String NAME = "eDivisive";
+
+   @Override
+   public ConditionConfig config() {
+      return new ConditionConfig(NAME, "E-Divisive means",
+            "This model looks for the most likely change point in datapoints since the last change: it splits " +
+                  "the datapoints where the energy distance between the preceding and following datapoints is maximal. " +
+                  "The change is emitted if the means of these two parts differ significantly (Student's t-test) " +
+                  "and the relative difference of the means is at least the minimal magnitude. " +
+                  "This model is robust to noise but it needs more datapoints to detect the change.")
+            .addComponent("pValue", new ConditionConfig.LogSliderComponent(100, 0.01, 10, 0.001, false, "%"),
+                  "Maximum p-value",
+                  "Significance level of the test comparing datapoints before and after the change point.")
+            .addComponent("minMagnitude", new ConditionConfig.LogSliderComponent(100, 0.1, 1000, 0.01, false, "%"),
+                  "Minimal magnitude",
+                  "Minimal relative difference between means of datapoints before and after the change point.")
+            .addComponent("minSize", new ConditionConfig.LogSliderComponent(1, 2, 1000, 5, true, " "),
+                  "Minimal number of datapoints",
+                  "Minimal number of datapoints before and after the change point.");
+   }
+
+   @Override
+   public void analyze(DataPointSeries series, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
+      double pValue = configuration.path("pValue").asDouble(0.001);
+      double minMagnitude = Math.max(0, configuration.path("minMagnitude").asDouble());
+      int minSize = Math.max(2, configuration.path("minSize").asInt(5));
+
+      int size = series.size();
+      if (size < 2 * minSize) {
+         log.debugf("Too few (%d) datapoints, skipping analysis", size);
+         return;
+      }
+      Split split = findChange(series.values, pValue, minMagnitude, minSize);
+      if (split != null) {
+         int index = split.index;
+         ChangeDAO change = ChangeDAO.fromDataset(series.datasetIds[index], series.timestamp(index));
+         change.description = String.format("Datasets %s (%s) - %s (%s): mean %f (stddev %f), previous mean %f (stddev %f), relative change %.2f%%, p-value %g",
+               series.dataset(index), series.timestamp(index), series.dataset(size - 1), series.timestamp(size - 1),
+               split.after.mean, Math.sqrt(split.after.variance), split.before.mean, Math.sqrt(split.before.variance),
+               100 * split.magnitude, split.p);
+         log.debug(change.description);
+         changeConsumer.accept(change);
+      }
+   }
+
+   /**
+    * @return The best split if the parts differ significantly, <code>null</code> otherwise.
+    */
+   static Split findChange(double[] values, double pValue, double minMagnitude, int minSize) {
+      int index = bestSplit(values, minSize);
+      if (index < 0) {
+         return null;
+      }
+      Statistics before = Statistics.of(values, 0, index);
+      Statistics after = Statistics.of(values, index, values.length);
+      double p = welchTTest(before, after);
+      double magnitude = after.mean / before.mean - 1;
+      log.tracef("Best split at %d, p-value %f, relative change %f", index, p, magnitude);
+      if (p < pValue && Math.abs(magnitude) >= minMagnitude) {
+         return new Split(index, before, after, p, magnitude);
+      }
+      return null;
+   }
+
+   /**
+    * Finds the split that maximizes the (scaled) energy distance between <code>values[0..split)</code>
+    * and <code>values[split..n)</code>.
+    *
+    * @return Index of the first value after the split or -1 if no split has positive distance.
+    */
+   static int bestSplit(double[] values, int minSize) {
+      int n = values.length;
+      double[] sorted = values.clone();
+      Arrays.sort(sorted);
+      int[] ranks = ranks(values, sorted);
+      double[] prefix = new double[n + 1];
+      for (int i = 0; i < n; ++i) {
+         prefix[i + 1] = prefix[i] + sorted[i];
+      }
+      // Fenwick trees over ranks of values on the left side of the split
+      long[] leftCount = new long[n + 1];
+      double[] leftSum = new double[n + 1];
+      double leftTotal = 0;
+
+      // between = sum of distances across the split, within* = sum of distances inside each part
+      double between = 0;
+      double withinLeft = 0;
+      double withinRight = 0;
+      for (int i = 0; i < n; ++i) {
+         withinRight += sorted[i] * (2L * i - n + 1);
+      }
+
+      int best = -1;
+      double bestQ = 0;
+      for (int i = 0; i < n - minSize; ++i) {
+         double value = values[i];
+         int rank = ranks[i];
+         long lessCount = 0;
+         double lessSum = 0;
+         for (int j = rank; j > 0; j -= j & -j) {
+            lessCount += leftCount[j];
+            lessSum += leftSum[j];
+         }
+         // i values are on the left
+         double toLeft = value * lessCount - lessSum + (leftTotal - lessSum) - value * (i - lessCount);
+         double toAll = value * rank - prefix[rank] + (prefix[n] - prefix[rank + 1]) - value * (n - rank - 1);
+         double toRight = toAll - toLeft;
+         withinLeft += toLeft;
+         withinRight -= toRight;
+         between += toRight - toLeft;
+         for (int j = rank + 1; j <= n; j += j & -j) {
+            leftCount[j]++;
+            leftSum[j] += value;
+         }
+         leftTotal += value;
+
+         long left = i + 1;
+         long right = n - left;
+         if (left < minSize) {
+            continue;
+         }
+         double energy = 2 * between / (left * right)
+               - 2 * withinLeft / (left * (left - 1))
+               - 2 * withinRight / (right * (right - 1));
+         double q = energy * left * right / n;
+         if (q > bestQ) {
+            bestQ = q;
+            best = (int) left;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * @return Position of each value in the sorted array; equal values get distinct positions.
+    */
+   private static int[] ranks(double[] values, double[] sorted) {
+      int n = values.length;
+      int[] ranks = new int[n];
+      int[] used = new int[n];
+      for (int i = 0; i < n; ++i) {
+         int first = lowerBound(sorted, values[i]);
+         ranks[i] = first + used[first]++;
+      }
+      return ranks;
+   }
+
+   private static int lowerBound(double[] sorted, double value) {
+      int low = 0;
+      int high = sorted.length;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (Double.compare(sorted[mid], value) < 0) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   static double welchTTest(Statistics a, Statistics b) {
+      double va = a.variance / a.count;
+      double vb = b.variance / b.count;
+      if (va + vb == 0) {
+         return a.mean == b.mean ? 1 : 0;
+      }
+      double t = (a.mean - b.mean) / Math.sqrt(va + vb);
+      double df = (va + vb) * (va + vb) / (va * va / (a.count - 1) + vb * vb / (b.count - 1));
+      return 2 * new TDistribution(null, df).cumulativeProbability(-Math.abs(t));
+   }
+
+   static final class Split {
+      final int index;
+      final Statistics before;
+      final Statistics after;
+      final double p;
+      final double magnitude;
+
+      private Split(int index, Statistics before, Statistics after, double p, double magnitude) {
+         this.index = index;
+         this.before = before;
+         this.after = after;
+         this.p = p;
+         this.magnitude = magnitude;
+      }
+   }
+
+   static final class Statistics {
+      final long count;
+      final double mean;
+      final double variance;
+
+      private Statistics(long count, double mean, double variance) {
+         this.count = count;
+         this.mean = mean;
+         this.variance = variance;
+      }
+
+      static Statistics of(double[] values, int from, int to) {
+         long n = 0;
+         double mean = 0;
+         double m2 = 0;
+         for (int i = from; i < to; ++i) {
+            ++n;
+            double delta = values[i] - mean;
+            mean += delta / n;
+            m2 += delta * (values[i] - mean);
+         }
+         return new Statistics(n, mean, n > 1 ? m2 / (n - 1) : 0);
+      }
+   }
+}
@@ -0,0 +1,110 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import java.util.function.Consumer;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.api.data.ConditionConfig;
+import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
+
+/**
+ * Exponentially weighted moving average control chart: mean and standard deviation are estimated from
+ * the first datapoints since the last change and the change is emitted when the moving average
+ * of the following datapoints leaves the control limits.
+ */
+@ApplicationScoped
+public class EwmaModel implements ChangeDetectionModel {
+   private static final Logger log = Logger.getLogger(EwmaModel.class);
+   public static final String NAME = "ewma";
+
+   @Override
+   public ConditionConfig config() {
+      return new ConditionConfig(NAME, "EWMA control chart",
+            "This model estimates mean and standard deviation from the first datapoints since the last change " +
+                  "('baseline') and tracks the exponentially weighted moving average of the following datapoints. " +
+                  "The change is emitted when the moving average deviates from the baseline mean by more than " +
+                  "the given number of standard deviations of the moving average. Lower smoothing factor " +
+                  "detects smaller but persistent shifts; single outliers have limited effect.")
+            .addComponent("lambda", new ConditionConfig.LogSliderComponent(100, 1, 100, 0.2, false, "%"),
+                  "Smoothing factor",
+                  "Weight of the most recent datapoint in the moving average.")
+            .addComponent("width", new ConditionConfig.LogSliderComponent(1, 1, 10, 3, false, " "),
+                  "Control limits",
+                  "Width of the control limits in standard deviations of the moving average.")
+            .addComponent("minPrevious", new ConditionConfig.LogSliderComponent(1, 2, 1000, 10, true, " "),
+                  "Baseline",
+                  "Number of datapoints used to estimate the mean and standard deviation.");
+   }
+
+   @Override
+   public void analyze(DataPointSeries series, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
+      double lambda = Math.min(1, Math.max(0.001, configuration.path("lambda").asDouble(0.2)));
+      double width = Math.max(0, configuration.path("width").asDouble(3));
+      int baseline = Math.max(2, configuration.path("minPrevious").asInt(10));
+
+      int size = series.size();
+      if (size <= baseline) {
+         log.debugf("Too few (%d) datapoints, skipping analysis", size);
+         return;
+      }
+      Crossing crossing = findCrossing(series.values, lambda, width, baseline);
+      if (crossing != null) {
+         int i = crossing.index;
+         ChangeDAO change = ChangeDAO.fromDataset(series.datasetIds[i], series.timestamp(i));
+         change.description = String.format("Dataset %s (%s): moving average %f is outside of control limits %f +/- %f (baseline stddev %f), relative change %.2f%%",
+               series.dataset(i), series.timestamp(i), crossing.ewma, crossing.mean, crossing.limit, crossing.stddev,
+               100 * (crossing.ewma / crossing.mean - 1));
+         log.debug(change.description);
+         changeConsumer.accept(change);
+      }
+   }
+
+   /**
+    * @return The first datapoint where the moving average leaves the control limits, <code>null</code> if there is none.
+    */
+   static Crossing findCrossing(double[] values, double lambda, double width, int baseline) {
+      double mean = 0;
+      double m2 = 0;
+      for (int i = 0; i < baseline; ++i) {
+         double delta = values[i] - mean;
+         mean += delta / (i + 1);
+         m2 += delta * (values[i] - mean);
+      }
+      double stddev = Math.sqrt(m2 / (baseline - 1));
+
+      double factor = lambda / (2 - lambda);
+      double decay = (1 - lambda) * (1 - lambda);
+      // (1 - lambda)^(2i); limits are narrower for the first datapoints
+      double weight = 1;
+      double ewma = mean;
+      for (int i = baseline; i < values.length; ++i) {
+         ewma = lambda * values[i] + (1 - lambda) * ewma;
+         weight *= decay;
+         double limit = width * stddev * Math.sqrt(factor * (1 - weight));
+         if (Math.abs(ewma - mean) > limit) {
+            return new Crossing(i, ewma, mean, limit, stddev);
+         }
+      }
+      return null;
+   }
+
+   static final class Crossing {
+      final int index;
+      final double ewma;
+      final double mean;
+      final double limit;
+      final double stddev;
+
+      private Crossing(int index, double ewma, double mean, double limit, double stddev) {
+         this.index = index;
+         this.ewma = ewma;
+         this.mean = mean;
+         this.limit = limit;
+         this.stddev = stddev;
+      }
+   }
+}
@@ -1,7 +1,10 @@
 package io.hyperfoil.tools.horreum.changedetection;
 
-import java.util.List;
+import java.time.Instant;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import jakarta.enterprise.context.ApplicationScoped;
 
 import org.jboss.logging.Logger;
 
@@ -9,8 +12,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 
 import io.hyperfoil.tools.horreum.api.data.ConditionConfig;
 import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
-import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
 
+@ApplicationScoped
 public class FixedThresholdModel implements ChangeDetectionModel {
    private static final Logger log = Logger.getLogger(FixedThresholdModel.class);
    public static final String NAME = "fixedThreshold";
@@ -23,9 +26,20 @@ public class FixedThresholdModel implements ChangeDetectionModel {
    }
 
    @Override
-   public void analyze(List<DataPointDAO> dataPoints, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
-      DataPointDAO dp = dataPoints.get(0);
+   public void analyze(DataPointSeries series, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
+      int last = series.last();
+      check(series.values[last], configuration,
+            () -> ChangeDAO.fromDataset(series.datasetIds[last], series.timestamp(last)), changeConsumer);
+   }
+
+   @Override
+   public boolean analyze(RunningStatistics statistics, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
+      check(statistics.value(0), configuration,
+            () -> ChangeDAO.fromDataset(statistics.datasetId(0), Instant.ofEpochMilli(statistics.timestamp(0))), changeConsumer);
+      return true;
+   }
 
+   private void check(double value, JsonNode configuration, Supplier<ChangeDAO> changeSupplier, Consumer<ChangeDAO> changeConsumer) {
       JsonNode min = configuration.path("min");
       boolean minEnabled = min.path("enabled").asBoolean();
       boolean minInclusive = min.path("inclusive").asBoolean();
@@ -36,18 +50,18 @@ public class FixedThresholdModel implements ChangeDetectionModel {
       double maxValue = max.path("value").asDouble();
 
       if (minEnabled) {
-         if ((!minInclusive && dp.value <= minValue) || dp.value < minValue) {
-            ChangeDAO c = ChangeDAO.fromDatapoint(dp);
-            c.description = String.format("%f is below lower bound %f (%s)", dp.value, minValue, minInclusive ? "inclusive" : "exclusive");
+         if ((!minInclusive && value <= minValue) || value < minValue) {
+            ChangeDAO c = changeSupplier.get();
+            c.description = String.format("%f is below lower bound %f (%s)", value, minValue, minInclusive ? "inclusive" : "exclusive");
             log.debug(c.description);
             changeConsumer.accept(c);
             return;
          }
       }
       if (maxEnabled) {
-         if ((!maxInclusive && dp.value >= maxValue) || dp.value > maxValue) {
-            ChangeDAO c = ChangeDAO.fromDatapoint(dp);
-            c.description = String.format("%f is above upper bound %f (%s)", dp.value, maxValue, maxInclusive ? "inclusive" : "exclusive");
+         if ((!maxInclusive && value >= maxValue) || value > maxValue) {
+            ChangeDAO c = changeSupplier.get();
+            c.description = String.format("%f is above upper bound %f (%s)", value, maxValue, maxInclusive ? "inclusive" : "exclusive");
             log.debug(c.description);
             changeConsumer.accept(c);
          }
@@ -0,0 +1,174 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+import org.apache.commons.math3.special.Erf;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.hyperfoil.tools.horreum.api.data.ConditionConfig;
+import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
+
+/**
+ * Compares the window of most recent datapoints against the preceding ones using the Mann-Whitney U test
+ * (normal approximation with tie correction). As the test uses ranks rather than values it is not sensitive
+ * to outliers in noisy series.
+ */
+@ApplicationScoped
+public class MannWhitneyModel implements ChangeDetectionModel {
+   private static final Logger log = Logger.getLogger(MannWhitneyModel.class);
+   public static final String NAME = "mannWhitney";
+   private static final double SQRT2 = Math.sqrt(2);
+
+   @Override
+   public ConditionConfig config() {
+      return new ConditionConfig(NAME, "Mann-Whitney U test",
+            "This model splits datapoints since the last change into the 'floating window' and preceding datapoints " +
+                  "and tests whether the values in the window come from a different distribution than the preceding values. " +
+                  "The test is based on ranks of the values, therefore it is not affected by outliers. The change is emitted " +
+                  "if the difference is significant and the relative difference of medians is at least the minimal magnitude.")
+            .addComponent("pValue", new ConditionConfig.LogSliderComponent(100, 0.01, 10, 0.01, false, "%"),
+                  "Maximum p-value",
+                  "Significance level of the test.")
+            .addComponent("minMagnitude", new ConditionConfig.LogSliderComponent(100, 0.1, 1000, 0.01, false, "%"),
+                  "Minimal magnitude",
+                  "Minimal relative difference between medians of the window and preceding datapoints.")
+            .addComponent("window", new ConditionConfig.LogSliderComponent(1, 1, 1000, 5, true, " "),
+                  "Window",
+                  "Number of most recent datapoints compared to the preceding ones.")
+            .addComponent("minPrevious", new ConditionConfig.LogSliderComponent(1, 1, 1000, 10, true, " "),
+                  "Minimal number of preceding datapoints",
+                  "Number of datapoints preceding the window.");
+   }
+
+   @Override
+   public void analyze(DataPointSeries series, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
+      double pValue = configuration.path("pValue").asDouble(0.01);
+      double minMagnitude = Math.max(0, configuration.path("minMagnitude").asDouble());
+      int window = Math.max(1, configuration.path("window").asInt(5));
+      int minPrevious = Math.max(1, configuration.path("minPrevious").asInt(10));
+
+      int size = series.size();
+      if (size < minPrevious + window) {
+         log.debugf("Too few (%d) previous datapoints, skipping analysis", size - window);
+         return;
+      }
+      Shift shift = findShift(series.values, pValue, minMagnitude, window);
+      if (shift != null) {
+         int windowStart = size - window;
+         ChangeDAO change = ChangeDAO.fromDataset(series.datasetIds[shift.index], series.timestamp(shift.index));
+         change.description = String.format("Datasets %s (%s) - %s (%s): median %f, previous median %f, relative change %.2f%%, p-value %g",
+               series.dataset(windowStart), series.timestamp(windowStart), series.dataset(size - 1), series.timestamp(size - 1),
+               shift.recentMedian, shift.previousMedian, 100 * shift.magnitude, shift.p);
+         log.debug(change.description);
+         changeConsumer.accept(change);
+      }
+   }
+
+   /**
+    * Compares the last <code>window</code> values against all preceding values.
+    *
+    * @return Shift starting in the window, <code>null</code> if the difference is not significant or too small.
+    */
+   static Shift findShift(double[] values, double pValue, double minMagnitude, int window) {
+      int size = values.length;
+      int windowStart = size - window;
+      double[] previous = Arrays.copyOfRange(values, 0, windowStart);
+      double[] recent = Arrays.copyOfRange(values, windowStart, size);
+      Arrays.sort(previous);
+      Arrays.sort(recent);
+
+      double p = test(previous, recent);
+      double previousMedian = median(previous);
+      double recentMedian = median(recent);
+      double magnitude = recentMedian / previousMedian - 1;
+      log.tracef("Previous median %f, window median %f, p-value %f", previousMedian, recentMedian, p);
+      if (p >= pValue || Math.abs(magnitude) < minMagnitude) {
+         return null;
+      }
+      // Same heuristic as relative difference: the change starts with the first datapoint
+      // in the window that lies on the side of the shift.
+      int index = windowStart;
+      for (; index < size - 1; ++index) {
+         double value = values[index];
+         if ((magnitude < 0 && value < previousMedian) || (magnitude > 0 && value > previousMedian)) {
+            break;
+         }
+      }
+      return new Shift(index, previousMedian, recentMedian, magnitude, p);
+   }
+
+   /**
+    * Two-sided Mann-Whitney U test.
+    *
+    * @param x Sorted sample.
+    * @param y Sorted sample.
+    * @return P-value.
+    */
+   static double test(double[] x, double[] y) {
+      long nx = x.length;
+      long ny = y.length;
+      long n = nx + ny;
+      // Merge the sorted samples; tied values get the average of their ranks
+      double rankSumY = 0;
+      double ties = 0;
+      int i = 0;
+      int j = 0;
+      long rank = 1;
+      while (i < nx || j < ny) {
+         // Double.compare is consistent with the order used by Arrays.sort
+         double value = j >= ny || (i < nx && Double.compare(x[i], y[j]) < 0) ? x[i] : y[j];
+         int countX = 0;
+         int countY = 0;
+         while (i < nx && Double.compare(x[i], value) == 0) {
+            ++countX;
+            ++i;
+         }
+         while (j < ny && Double.compare(y[j], value) == 0) {
+            ++countY;
+            ++j;
+         }
+         long count = countX + countY;
+         double averageRank = rank + (count - 1) / 2.0;
+         rankSumY += countY * averageRank;
+         ties += (double) count * count * count - count;
+         rank += count;
+      }
+      double u = rankSumY - ny * (ny + 1) / 2.0;
+      double mean = nx * ny / 2.0;
+      double variance = nx * ny / 12.0 * ((n + 1) - ties / (n * (n - 1)));
+      if (variance <= 0) {
+         // all values are equal
+         return 1;
+      }
+      double diff = Math.abs(u - mean);
+      // continuity correction
+      double z = Math.max(0, diff - 0.5) / Math.sqrt(variance);
+      return Erf.erfc(z / SQRT2);
+   }
+
+   private static double median(double[] sorted) {
+      int half = sorted.length / 2;
+      return sorted.length % 2 == 1 ? sorted[half] : (sorted[half - 1] + sorted[half]) / 2;
+   }
+
+   static final class Shift {
+      final int index;
+      final double previousMedian;
+      final double recentMedian;
+      final double magnitude;
+      final double p;
+
+      private Shift(int index, double previousMedian, double recentMedian, double magnitude, double p) {
+         this.index = index;
+         this.previousMedian = previousMedian;
+         this.recentMedian = recentMedian;
+         this.magnitude = magnitude;
+         this.p = p;
+      }
+   }
+}
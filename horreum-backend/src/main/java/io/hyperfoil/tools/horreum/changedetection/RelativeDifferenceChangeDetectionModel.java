@@ -2,16 +2,18 @@ package io.hyperfoil.tools.horreum.changedetection;
 
 import io.hyperfoil.tools.horreum.api.data.ConditionConfig;
 import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
-import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
+
+import jakarta.enterprise.context.ApplicationScoped;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.jboss.logging.Logger;
 
-import java.util.List;
+import java.time.Instant;
 import java.util.function.Consumer;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+@ApplicationScoped
 public class RelativeDifferenceChangeDetectionModel implements ChangeDetectionModel {
 
     public static final String NAME = "relativeDifference";
@@ -42,68 +44,142 @@ public class RelativeDifferenceChangeDetectionModel implements ChangeDetectionMo
     }
 
     @Override
-    public void analyze(List<DataPointDAO> dataPoints, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
-        DataPointDAO dataPoint = dataPoints.get(0);
+    public int window(JsonNode configuration) {
+        return Math.max(1, configuration.path("window").asInt(1));
+    }
 
+    @Override
+    public boolean analyze(RunningStatistics statistics, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
         double threshold = Math.max(0, configuration.get("threshold").asDouble());
         int window = Math.max(1, configuration.get("window").asInt());
         int minPrevious = Math.max(window, configuration.get("minPrevious").asInt());
         String filter = configuration.get("filter").asText();
 
-        if (dataPoints.size() < minPrevious + window) {
-            log.debugf("Too few (%d) previous datapoints for variable %d, skipping analysis", dataPoints.size() - window, dataPoint.variable.id);
+        if (statistics.size() < window) {
+            // the statistics were not built for this window
+            return false;
+        }
+        if (statistics.count() < minPrevious + window) {
+            log.debugf("Too few (%d) previous datapoints, skipping analysis", statistics.count() - window);
+            return true;
+        }
+        RunningStatistics.Summary previousStats = statistics.withoutRecent(window);
+
+        double filteredValue;
+        switch (filter) {
+            case "min":
+                filteredValue = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < window; ++i) {
+                    filteredValue = Math.min(filteredValue, statistics.value(i));
+                }
+                break;
+            case "max":
+                filteredValue = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < window; ++i) {
+                    filteredValue = Math.max(filteredValue, statistics.value(i));
+                }
+                break;
+            case "mean":
+                filteredValue = statistics.recent(window).mean;
+                break;
+            default:
+                log.errorf("Unsupported option 'filter'='%s', skipping analysis.", filter);
+                return true;
+        }
+
+        double ratio = filteredValue / previousStats.mean;
+        log.tracef("Previous mean %f, filtered value %f, ratio %f", previousStats.mean, filteredValue, ratio);
+        if (ratio < 1 - threshold || ratio > 1 + threshold) {
+            // same heuristic as in the series-based variant
+            int index = 0;
+            for (int i = window - 1; i >= 0; --i) {
+                index = i;
+                double value = statistics.value(i);
+                if (ratio < 1 && value < previousStats.mean) {
+                    break;
+                } else if (ratio > 1 && value > previousStats.mean) {
+                    break;
+                }
+            }
+            ChangeDAO change = ChangeDAO.fromDataset(statistics.datasetId(index), Instant.ofEpochMilli(statistics.timestamp(index)));
+            change.description = String.format("Datasets %s (%s) - %s (%s): %s %f, previous mean %f (stddev %f), relative change %.2f%%",
+                    statistics.dataset(window - 1), Instant.ofEpochMilli(statistics.timestamp(window - 1)),
+                    statistics.dataset(0), Instant.ofEpochMilli(statistics.timestamp(0)),
+                    filter, filteredValue, previousStats.mean, previousStats.standardDeviation(), 100 * (ratio - 1));
+
+            log.debug(change.description);
+            changeConsumer.accept(change);
+        }
+        return true;
+    }
+
+    @Override
+    public void analyze(DataPointSeries series, JsonNode configuration, Consumer<ChangeDAO> changeConsumer) {
+        double threshold = Math.max(0, configuration.get("threshold").asDouble());
+        int window = Math.max(1, configuration.get("window").asInt());
+        int minPrevious = Math.max(window, configuration.get("minPrevious").asInt());
+        String filter = configuration.get("filter").asText();
+
+        int size = series.size();
+        if (size < minPrevious + window) {
+            log.debugf("Too few (%d) previous datapoints, skipping analysis", size - window);
             return;
         }
+        int windowStart = size - window;
         SummaryStatistics previousStats = new SummaryStatistics();
-        dataPoints.stream().skip(window).mapToDouble(dp -> dp.value).forEach(previousStats::addValue);
+        for (int i = 0; i < windowStart; ++i) {
+            previousStats.addValue(series.values[i]);
+        }
 
         double filteredValue;
         switch (filter) {
             case "min":
-                //noinspection OptionalGetWithoutIsPresent
-                filteredValue = dataPoints.stream().limit(window).mapToDouble(dp -> dp.value).min().getAsDouble();
+                filteredValue = Double.POSITIVE_INFINITY;
+                for (int i = windowStart; i < size; ++i) {
+                    filteredValue = Math.min(filteredValue, series.values[i]);
+                }
                 break;
             case "max":
-                //noinspection OptionalGetWithoutIsPresent
-                filteredValue = dataPoints.stream().limit(window).mapToDouble(dp -> dp.value).max().getAsDouble();
+                filteredValue = Double.NEGATIVE_INFINITY;
+                for (int i = windowStart; i < size; ++i) {
+                    filteredValue = Math.max(filteredValue, series.values[i]);
+                }
                 break;
             case "mean":
                 SummaryStatistics windowStats = new SummaryStatistics();
-                dataPoints.stream().limit(window).mapToDouble(dp -> dp.value).forEach(windowStats::addValue);
+                for (int i = windowStart; i < size; ++i) {
+                    windowStats.addValue(series.values[i]);
+                }
                 filteredValue = windowStats.getMean();
                 break;
             default:
-                log.errorf("Unsupported option 'filter'='%s' for variable %d, skipping analysis.", filter, dataPoint.variable.id);
+                log.errorf("Unsupported option 'filter'='%s', skipping analysis.", filter);
                 return;
         }
 
         double ratio = filteredValue / previousStats.getMean();
         log.tracef("Previous mean %f, filtered value %f, ratio %f", previousStats.getMean(), filteredValue, ratio);
         if (ratio < 1 - threshold || ratio > 1 + threshold) {
-            DataPointDAO dp = null;
             // We cannot know which datapoint is first with the regression; as a heuristic approach
             // we'll select first datapoint with value lower than mean (if this is a drop, e.g. throughput)
             // or above the mean (if this is an increase, e.g. memory usage).
-            for (int i = window - 1; i >= 0; --i) {
-                dp = dataPoints.get(i);
-                if (ratio < 1 && dp.value < previousStats.getMean()) {
+            int index = windowStart;
+            for (; index < size - 1; ++index) {
+                double value = series.values[index];
+                if (ratio < 1 && value < previousStats.getMean()) {
                     break;
-                } else if (ratio > 1 && dp.value > previousStats.getMean()) {
+                } else if (ratio > 1 && value > previousStats.getMean()) {
                     break;
                 }
             }
-            assert dp != null;
-            ChangeDAO change = ChangeDAO.fromDatapoint(dp);
-            DataPointDAO prevDataPoint = dataPoints.get(window - 1);
-            DataPointDAO lastDataPoint = dataPoints.get(0);
-            change.description = String.format("Datasets %d/%d (%s) - %d/%d (%s): %s %f, previous mean %f (stddev %f), relative change %.2f%%",
-                    prevDataPoint.dataset.run.id, prevDataPoint.dataset.ordinal, prevDataPoint.timestamp,
-                    lastDataPoint.dataset.run.id, lastDataPoint.dataset.ordinal, lastDataPoint.timestamp,
+            ChangeDAO change = ChangeDAO.fromDataset(series.datasetIds[index], series.timestamp(index));
+            change.description = String.format("Datasets %s (%s) - %s (%s): %s %f, previous mean %f (stddev %f), relative change %.2f%%",
+                    series.dataset(windowStart), series.timestamp(windowStart),
+                    series.dataset(size - 1), series.timestamp(size - 1),
                     filter, filteredValue, previousStats.getMean(), previousStats.getStandardDeviation(), 100 * (ratio - 1));
 
             log.debug(change.description);
             changeConsumer.accept(change);
         }
-
     }
 }
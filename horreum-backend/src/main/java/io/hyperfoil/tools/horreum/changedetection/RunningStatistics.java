@@ -0,0 +1,235 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Streaming statistics of datapoints for one variable and fingerprint since the last change.
+ * Count, mean and sum of squared differences from the mean are maintained for all datapoints
+ * (Welford's algorithm); the most recent datapoints are kept in a ring buffer with limited capacity.
+ * Datapoints must be added in the order of their timestamps.
+ */
+public class RunningStatistics {
+   private final int capacity;
+   private final double[] values;
+   private final long[] timestamps;
+   private final int[] datasetIds;
+   private final int[] runIds;
+   private final int[] ordinals;
+   // index of the most recent datapoint
+   private int head = -1;
+   private int size;
+   private long count;
+   private double mean;
+   private double m2;
+
+   public RunningStatistics(int capacity) {
+      if (capacity < 1) {
+         throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      }
+      this.capacity = capacity;
+      this.values = new double[capacity];
+      this.timestamps = new long[capacity];
+      this.datasetIds = new int[capacity];
+      this.runIds = new int[capacity];
+      this.ordinals = new int[capacity];
+   }
+
+   public void add(double value, long timestamp, int datasetId, int runId, int ordinal) {
+      ++count;
+      double delta = value - mean;
+      mean += delta / count;
+      m2 += delta * (value - mean);
+      push(value, timestamp, datasetId, runId, ordinal);
+   }
+
+   private void push(double value, long timestamp, int datasetId, int runId, int ordinal) {
+      head = (head + 1) % capacity;
+      values[head] = value;
+      timestamps[head] = timestamp;
+      datasetIds[head] = datasetId;
+      runIds[head] = runId;
+      ordinals[head] = ordinal;
+      if (size < capacity) {
+         ++size;
+      }
+   }
+
+   /**
+    * @return Maximum number of recent datapoints that are available individually.
+    */
+   public int capacity() {
+      return capacity;
+   }
+
+   /**
+    * @return Number of recent datapoints that are available individually.
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * @return Number of all datapoints.
+    */
+   public long count() {
+      return count;
+   }
+
+   public double mean() {
+      return mean;
+   }
+
+   /**
+    * @param index 0 for the most recent datapoint, 1 for the one before...
+    */
+   public double value(int index) {
+      return values[index(index)];
+   }
+
+   /**
+    * @param index 0 for the most recent datapoint, 1 for the one before...
+    * @return Timestamp in epoch milliseconds.
+    */
+   public long timestamp(int index) {
+      return timestamps[index(index)];
+   }
+
+   /**
+    * @param index 0 for the most recent datapoint, 1 for the one before...
+    */
+   public int datasetId(int index) {
+      return datasetIds[index(index)];
+   }
+
+   /**
+    * @param index 0 for the most recent datapoint, 1 for the one before...
+    * @return Dataset as presented to users, in the form <code>runId/ordinal</code>.
+    */
+   public String dataset(int index) {
+      int i = index(index);
+      return runIds[i] + "/" + ordinals[i];
+   }
+
+   private int index(int index) {
+      if (index < 0 || index >= size) {
+         throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+      }
+      return Math.floorMod(head - index, capacity);
+   }
+
+   /**
+    * @param skip Number of most recent datapoints to exclude; must not be greater than {@link #size()}.
+    * @return Statistics of all but the most recent datapoints.
+    */
+   public Summary withoutRecent(int skip) {
+      if (skip > size) {
+         throw new IllegalArgumentException("Cannot exclude " + skip + " datapoints, only " + size + " are available");
+      }
+      long n = count;
+      double mean = this.mean;
+      double m2 = this.m2;
+      for (int i = 0; i < skip && n > 0; ++i) {
+         double value = value(i);
+         if (n == 1) {
+            mean = 0;
+            m2 = 0;
+         } else {
+            double previousMean = (n * mean - value) / (n - 1);
+            m2 -= (value - mean) * (value - previousMean);
+            mean = previousMean;
+         }
+         --n;
+      }
+      return new Summary(n, mean, n > 1 ? Math.max(0, m2) / (n - 1) : 0);
+   }
+
+   /**
+    * @param limit Number of most recent datapoints; must not be greater than {@link #size()}.
+    * @return Statistics of the most recent datapoints.
+    */
+   public Summary recent(int limit) {
+      if (limit > size) {
+         throw new IllegalArgumentException("Requested " + limit + " datapoints, only " + size + " are available");
+      }
+      long n = 0;
+      double mean = 0;
+      double m2 = 0;
+      for (int i = 0; i < limit; ++i) {
+         double value = value(i);
+         ++n;
+         double delta = value - mean;
+         mean += delta / n;
+         m2 += delta * (value - mean);
+      }
+      return new Summary(n, mean, n > 1 ? m2 / (n - 1) : 0);
+   }
+
+   public JsonNode toJson() {
+      ObjectNode node = JsonNodeFactory.instance.objectNode();
+      node.put("capacity", capacity);
+      node.put("count", count);
+      node.put("mean", mean);
+      node.put("m2", m2);
+      ArrayNode values = node.putArray("values");
+      ArrayNode timestamps = node.putArray("timestamps");
+      ArrayNode datasetIds = node.putArray("datasetIds");
+      ArrayNode runIds = node.putArray("runIds");
+      ArrayNode ordinals = node.putArray("ordinals");
+      // oldest first
+      for (int i = size - 1; i >= 0; --i) {
+         values.add(value(i));
+         timestamps.add(timestamp(i));
+         datasetIds.add(datasetId(i));
+         runIds.add(this.runIds[index(i)]);
+         ordinals.add(this.ordinals[index(i)]);
+      }
+      return node;
+   }
+
+   public static RunningStatistics fromJson(JsonNode node) {
+      RunningStatistics statistics = new RunningStatistics(node.path("capacity").asInt(1));
+      statistics.count = node.path("count").asLong();
+      statistics.mean = node.path("mean").asDouble();
+      statistics.m2 = node.path("m2").asDouble();
+      JsonNode values = node.path("values");
+      JsonNode timestamps = node.path("timestamps");
+      JsonNode datasetIds = node.path("datasetIds");
+      JsonNode runIds = node.path("runIds");
+      JsonNode ordinals = node.path("ordinals");
+      for (int i = 0; i < values.size(); ++i) {
+         statistics.push(values.get(i).asDouble(), timestamps.path(i).asLong(), datasetIds.path(i).asInt(),
+               runIds.path(i).asInt(), ordinals.path(i).asInt());
+      }
+      return statistics;
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder("RunningStatistics{count=").append(count)
+            .append(", mean=").append(mean).append(", recent=[");
+      for (int i = size - 1; i >= 0; --i) {
+         sb.append(datasetId(i)).append('@').append(timestamp(i)).append(": ").append(value(i));
+         if (i != 0) sb.append(", ");
+      }
+      return sb.append("]}").toString();
+   }
+
+   public static final class Summary {
+      public final long count;
+      public final double mean;
+      public final double variance;
+
+      Summary(long count, double mean, double variance) {
+         this.count = count;
+         this.mean = mean;
+         this.variance = variance;
+      }
+
+      public double standardDeviation() {
+         return Math.sqrt(variance);
+      }
+   }
+}
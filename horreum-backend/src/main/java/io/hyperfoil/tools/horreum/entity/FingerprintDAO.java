@@ -1,5 +1,13 @@
 package io.hyperfoil.tools.horreum.entity;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
@@ -32,6 +40,110 @@ public class FingerprintDAO extends PanacheEntityBase {
 
    public Integer fp_hash;
 
+   /**
+    * @return Value of {@link #fp_hash} for given fingerprint: first 32 bits of SHA-256 of the {@link #canonical(JsonNode)
+    *         canonical form}. The hash is only used to look up candidates through the index; fingerprints are still
+    *         compared for equality. The same hash is computed by the <code>fingerprint_hash</code> database function.
+    */
+   public static int hash(JsonNode fingerprint) {
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         byte[] bytes = digest.digest(canonical(fingerprint).getBytes(StandardCharsets.UTF_8));
+         return ByteBuffer.wrap(bytes).getInt();
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Serializes JSON without whitespace, with object keys ordered by their code points and numbers without
+    * trailing zeros, so that fingerprints equal as <code>jsonb</code> have the same form.
+    * Mirrors the <code>fingerprint_canonical</code> database function.
+    */
+   public static String canonical(JsonNode node) {
+      StringBuilder sb = new StringBuilder();
+      appendCanonical(sb, node);
+      return sb.toString();
+   }
+
+   private static void appendCanonical(StringBuilder sb, JsonNode node) {
+      if (node == null || node.isNull() || node.isMissingNode()) {
+         sb.append("null");
+      } else if (node.isObject()) {
+         List<String> names = new ArrayList<>(node.size());
+         for (Iterator<String> it = node.fieldNames(); it.hasNext(); ) {
+            names.add(it.next());
+         }
+         names.sort(FingerprintDAO::compareCodePoints);
+         sb.append('{');
+         for (int i = 0; i < names.size(); ++i) {
+            if (i > 0) {
+               sb.append(',');
+            }
+            appendString(sb, names.get(i));
+            sb.append(':');
+            appendCanonical(sb, node.get(names.get(i)));
+         }
+         sb.append('}');
+      } else if (node.isArray()) {
+         sb.append('[');
+         for (int i = 0; i < node.size(); ++i) {
+            if (i > 0) {
+               sb.append(',');
+            }
+            appendCanonical(sb, node.get(i));
+         }
+         sb.append(']');
+      } else if (node.isNumber()) {
+         sb.append(node.decimalValue().stripTrailingZeros().toPlainString());
+      } else if (node.isBoolean()) {
+         sb.append(node.booleanValue());
+      } else {
+         appendString(sb, node.asText());
+      }
+   }
+
+   // same escaping as PostgreSQL uses when printing jsonb strings
+   private static void appendString(StringBuilder sb, String str) {
+      sb.append('"');
+      for (int i = 0; i < str.length(); ++i) {
+         char c = str.charAt(i);
+         switch (c) {
+            case '"' -> sb.append("\\\"");
+            case '\\' -> sb.append("\\\\");
+            case '\b' -> sb.append("\\b");
+            case '\f' -> sb.append("\\f");
+            case '\n' -> sb.append("\\n");
+            case '\r' -> sb.append("\\r");
+            case '\t' -> sb.append("\\t");
+            default -> {
+               if (c < 0x20) {
+                  sb.append(String.format("\\u%04x", (int) c));
+               } else {
+                  sb.append(c);
+               }
+            }
+         }
+      }
+      sb.append('"');
+   }
+
+   // order of UTF-8 bytes (COLLATE "C" in the database) rather than UTF-16 chars
+   private static int compareCodePoints(String a, String b) {
+      int i = 0;
+      int j = 0;
+      while (i < a.length() && j < b.length()) {
+         int ca = a.codePointAt(i);
+         int cb = b.codePointAt(j);
+         if (ca != cb) {
+            return Integer.compare(ca, cb);
+         }
+         i += Character.charCount(ca);
+         j += Character.charCount(cb);
+      }
+      return Integer.compare(a.length() - i, b.length() - j);
+   }
+
    @Override
    public String toString() {
       return "FP{" +
@@ -66,11 +66,10 @@ public class ChangeDAO extends PanacheEntityBase {
             '}';
    }
 
-   public static ChangeDAO fromDatapoint(DataPointDAO dp) {
+   public static ChangeDAO fromDataset(int datasetId, Instant timestamp) {
       ChangeDAO change = new ChangeDAO();
-      change.variable = dp.variable;
-      change.timestamp = dp.timestamp;
-      change.dataset = dp.dataset;
+      change.timestamp = timestamp;
+      change.dataset = DatasetDAO.getEntityManager().getReference(DatasetDAO.class, datasetId);
       return change;
    }
 
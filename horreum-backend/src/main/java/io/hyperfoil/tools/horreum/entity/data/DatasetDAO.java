@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 
+import io.hyperfoil.tools.horreum.hibernate.ImmutableJsonBinaryType;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import jakarta.persistence.Basic;
 import jakarta.persistence.CascadeType;
@@ -60,7 +61,7 @@ public class DatasetDAO extends OwnedEntityBase {
 
    @NotNull
    @Basic(fetch = FetchType.LAZY)
-   @Type(JsonBinaryType.class)
+   @Type(ImmutableJsonBinaryType.class)
    @Column(columnDefinition = "jsonb")
    public JsonNode data;
 
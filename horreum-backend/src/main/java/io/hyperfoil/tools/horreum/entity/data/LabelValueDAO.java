@@ -1,7 +1,7 @@
 package io.hyperfoil.tools.horreum.entity.data;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.hibernate.ImmutableJsonBinaryType;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
@@ -26,7 +26,7 @@ public class LabelValueDAO extends PanacheEntityBase implements Serializable {
     @Column(name = "label_id")
     public int labelId;
 
-    @Type(JsonBinaryType.class)
+    @Type(ImmutableJsonBinaryType.class)
     @Column(columnDefinition = "jsonb")
     public JsonNode value;
 
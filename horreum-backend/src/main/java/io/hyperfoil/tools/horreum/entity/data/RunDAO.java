@@ -3,13 +3,15 @@ package io.hyperfoil.tools.horreum.entity.data;
 import com.fasterxml.jackson.annotation.JsonIgnoreType;
 import io.hyperfoil.tools.horreum.entity.ValidationErrorDAO;
 
-import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import io.hyperfoil.tools.horreum.hibernate.ImmutableJsonBinaryType;
 
+import jakarta.persistence.Basic;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.CollectionTable;
 import jakarta.persistence.Column;
 import jakarta.persistence.ElementCollection;
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
@@ -20,6 +22,7 @@ import java.time.Instant;
 import java.util.Collection;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import org.hibernate.annotations.LazyGroup;
 import org.hibernate.annotations.Type;
 
 @Entity(name = "run")
@@ -47,12 +50,19 @@ public class RunDAO extends ProtectedBaseEntity {
    @NotNull
    public Integer testid;
 
+   // The documents can be large and most operations on runs do not need them;
+   // each column is in its own group so that loading one does not load the other.
+   // To update the document assign a new instance; changes in place are not detected.
    @NotNull
-   @Type(JsonBinaryType.class)
+   @Basic(fetch = FetchType.LAZY)
+   @LazyGroup("data")
+   @Type(ImmutableJsonBinaryType.class)
    @Column(columnDefinition = "jsonb")
    public JsonNode data;
 
-   @Type(JsonBinaryType.class)
+   @Basic(fetch = FetchType.LAZY)
+   @LazyGroup("metadata")
+   @Type(ImmutableJsonBinaryType.class)
    @Column(columnDefinition = "jsonb")
    public JsonNode metadata;
 
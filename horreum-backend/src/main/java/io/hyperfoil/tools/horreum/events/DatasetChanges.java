@@ -11,7 +11,7 @@ import io.hyperfoil.tools.horreum.api.data.Dataset;
 public class DatasetChanges {
    public static final String EVENT_NEW = "datasetChanges/new";
 
-   private static final long EMIT_DELAY = 1000;
+   public static final long EMIT_DELAY = 1000;
    public Dataset.Info dataset;
    public String fingerprint;
    public String testName;
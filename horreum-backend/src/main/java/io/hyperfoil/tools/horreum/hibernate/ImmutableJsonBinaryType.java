@@ -0,0 +1,36 @@
+package io.hyperfoil.tools.horreum.hibernate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.hibernate.HibernateException;
+
+/**
+ * Variant of {@link JsonBinaryType} for (potentially large) documents that are not modified after being loaded.
+ * Hibernate does not keep a snapshot copy of the value and the dirty check is a reference comparison,
+ * so the cost of loading and flushing the entity does not depend on the size of the document.
+ * <p>
+ * Modifications of the {@link JsonNode} in place are NOT detected; to update the column assign
+ * a new instance (e.g. a modified {@link JsonNode#deepCopy()}) to the entity field.
+ */
+public class ImmutableJsonBinaryType extends JsonBinaryType {
+
+    @Override
+    public JsonNode deepCopy(JsonNode value) throws HibernateException {
+        return value;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public boolean equals(JsonNode x, JsonNode y) {
+        // identity is enough: the value is replaced rather than modified
+        return x == y;
+    }
+
+    @Override
+    public int hashCode(JsonNode x) {
+        return System.identityHashCode(x);
+    }
+}
@@ -0,0 +1,51 @@
+package io.hyperfoil.tools.horreum.server;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import java.util.Set;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.Router;
+
+/*
+   The HTTP body limit (quarkus.http.limits.max-body-size) is raised to allow uploading large runs;
+   all other requests are held to the regular limit. The upload handlers check the size on their own.
+ */
+@ApplicationScoped
+public class BodySizeFilter {
+   private static final Logger log = Logger.getLogger(BodySizeFilter.class);
+   static final Set<String> UPLOAD_PATHS = Set.of("/api/run/test", "/api/run/bulk", "/api/run/data");
+
+   @ConfigProperty(name = "horreum.http.max-body-size", defaultValue = "10240K")
+   MemorySize maxBodySize;
+
+   public void init(@Observes Router router) {
+      router.route().order(Integer.MIN_VALUE).handler(rc -> {
+         String contentLength = rc.request().getHeader(HttpHeaders.CONTENT_LENGTH);
+         if (contentLength != null && !isUpload(rc.request().method(), rc.normalizedPath())) {
+            long length;
+            try {
+               length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+               rc.response().setStatusCode(400).end();
+               return;
+            }
+            if (length > maxBodySize.asLongValue()) {
+               log.debugf("Rejecting request to %s with %d bytes body", rc.normalizedPath(), length);
+               rc.response().setStatusCode(413).putHeader(HttpHeaders.CONNECTION, "close").end();
+               return;
+            }
+         }
+         rc.next();
+      });
+   }
+
+   static boolean isUpload(HttpMethod method, String path) {
+      return HttpMethod.POST.equals(method) && UPLOAD_PATHS.contains(path);
+   }
+}
@@ -3,6 +3,10 @@ package io.hyperfoil.tools.horreum.server;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
@@ -13,32 +17,62 @@ import java.util.concurrent.ThreadLocalRandom;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.Query;
+import jakarta.transaction.Status;
+import jakarta.transaction.SystemException;
+import jakarta.transaction.TransactionManager;
+import jakarta.transaction.TransactionScoped;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import jakarta.transaction.Transactional;
 
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
+import io.agroal.api.AgroalDataSource;
+import io.quarkus.scheduler.Scheduled;
 import io.quarkus.security.identity.SecurityIdentity;
 
 @ApplicationScoped
 public class RoleManager {
    private static final Logger log = Logger.getLogger(RoleManager.class);
 
-   static final String SET_ROLES = "SELECT current_setting('horreum.userroles', true), set_config('horreum.userroles', ?, false)";
+   // Signatures of all roles are verified once here rather than in each invocation of has_role()
+   static final String SET_ROLES = "SELECT current_setting('horreum.userroles', true), set_config('horreum.userroles', ?1, false), verify_userroles(?1)";
    static final String SET_TOKEN = "SELECT set_config('horreum.token', ?, false)";
+   // Settings local to the transaction are reset when it completes, before the connection returns to the pool
+   static final String SET_LOCAL = "SELECT set_config('horreum.userroles', ?, true), verify_userroles(?), set_config('horreum.token', ?, true)";
    static final CloseMe NOOP = () -> {};
+   private static final String APPLIED_KEY = RoleManager.class.getName() + ".applied";
 
    private final Map<String, String> signedRoleCache = new ConcurrentHashMap<>();
+   // Roles and token requested by interceptors on this thread; in a transaction these are applied to its
+   // connection only if they differ from what was already applied in that transaction.
+   private final ThreadLocal<String> currentRoles = ThreadLocal.withInitial(() -> "");
+   private final ThreadLocal<String> currentToken = ThreadLocal.withInitial(() -> "");
 
    @ConfigProperty(name = "horreum.db.secret")
    String dbSecret;
    byte[] dbSecretBytes;
 
+   @ConfigProperty(name = "horreum.db.verified-roles.max-age", defaultValue = "30d")
+   Duration verifiedRolesMaxAge;
+
    @Inject
    EntityManager em;
 
+   @Inject
+   TransactionManager tm;
+
+   @Inject
+   TransactionSynchronizationRegistry txRegistry;
+
+   @Inject
+   AgroalDataSource dataSource;
+
    @PostConstruct
    void init() {
       dbSecretBytes = dbSecret.getBytes(StandardCharsets.UTF_8);
@@ -81,11 +115,51 @@ public class RoleManager {
       return setRoles(signedRoles);
    }
 
+   /**
+    * Sets roles for subsequent statements. Pending changes are written first, with the roles they were made with.
+    *
+    * @return Previously set roles.
+    */
    String setRoles(String signedRoles) {
-      Query setRoles = em.createNativeQuery(SET_ROLES);
-      setRoles.setParameter(1, signedRoles == null ? "" : signedRoles);
-      Object[] row = (Object[]) setRoles.getSingleResult();
-      return (String) row[0];
+      if (signedRoles == null) {
+         signedRoles = "";
+      }
+      String previous = currentRoles.get();
+      int status = txStatus();
+      if (status == Status.STATUS_NO_TRANSACTION) {
+         // statements without transaction may run on any connection, we can't defer this
+         Query setRoles = em.createNativeQuery(SET_ROLES);
+         setRoles.setParameter(1, signedRoles);
+         setRoles.getSingleResult();
+         currentRoles.set(signedRoles);
+      } else if (!signedRoles.equals(previous)) {
+         flushPending();
+         currentRoles.set(signedRoles);
+         applyToTransaction();
+      }
+      return previous;
+   }
+
+   /**
+    * Restores roles returned from {@link #setRoles(String)}. Pending changes made within the scope that
+    * is being left are written first, with the roles they were made with.
+    */
+   void restoreRoles(String previous, boolean flush) {
+      if (previous == null) {
+         previous = "";
+      }
+      if (txStatus() == Status.STATUS_NO_TRANSACTION || previous.equals(currentRoles.get())) {
+         setRoles(previous);
+         return;
+      }
+      try {
+         if (flush) {
+            flushPending();
+         }
+      } finally {
+         currentRoles.set(previous);
+         applyToTransaction();
+      }
    }
 
    public CloseMe withRoles(Iterable<String> roles) {
@@ -103,16 +177,130 @@ public class RoleManager {
          return NOOP;
       }
       String previous = setRoles(signedRoles);
-      return () -> setRoles(previous);
+      return () -> restoreRoles(previous, true);
    }
 
-   void setToken(EntityManager em, String token) {
+   /**
+    * Sets token for subsequent statements, see {@link #setRoles(String)}.
+    *
+    * @return Previously set token.
+    */
+   String setToken(String token) {
       if (token == null) {
          token = "";
       }
-      Query setToken = em.createNativeQuery(SET_TOKEN);
-      setToken.setParameter(1, token);
-      setToken.getSingleResult();
+      String previous = currentToken.get();
+      int status = txStatus();
+      if (status == Status.STATUS_NO_TRANSACTION) {
+         Query setToken = em.createNativeQuery(SET_TOKEN);
+         setToken.setParameter(1, token);
+         setToken.getSingleResult();
+         currentToken.set(token);
+      } else if (!token.equals(previous)) {
+         flushPending();
+         currentToken.set(token);
+         applyToTransaction();
+      }
+      return previous;
+   }
+
+   /**
+    * Restores token returned from {@link #setToken(String)}, see {@link #restoreRoles(String, boolean)}.
+    */
+   void restoreToken(String previous, boolean flush) {
+      if (previous == null) {
+         previous = "";
+      }
+      if (txStatus() == Status.STATUS_NO_TRANSACTION || previous.equals(currentToken.get())) {
+         setToken(previous);
+         return;
+      }
+      try {
+         if (flush) {
+            flushPending();
+         }
+      } finally {
+         currentToken.set(previous);
+         applyToTransaction();
+      }
+   }
+
+   private void flushPending() {
+      if (txStatus() == Status.STATUS_ACTIVE) {
+         em.flush();
+      }
+   }
+
+   /**
+    * Roles and token set before the transaction started (e.g. outside of a <code>@Transactional</code> method)
+    * are applied to the connection of the new transaction.
+    */
+   void onTransactionBegin(@Observes @Initialized(TransactionScoped.class) Object event) {
+      applyToTransaction();
+   }
+
+   /**
+    * Applies roles and token to the connection of current transaction unless these are already set.
+    */
+   private void applyToTransaction() {
+      int status = txStatus();
+      if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+         return;
+      }
+      String roles = currentRoles.get();
+      String token = currentToken.get();
+      String[] applied = (String[]) txRegistry.getResource(APPLIED_KEY);
+      if (applied == null) {
+         // connections in the pool don't have any roles or token set
+         applied = new String[] { "", "" };
+         txRegistry.putResource(APPLIED_KEY, applied);
+      }
+      if (roles.equals(applied[0]) && token.equals(applied[1])) {
+         return;
+      }
+      // Within transaction Agroal hands out the connection already enlisted, the one used by Hibernate
+      try (Connection connection = dataSource.getConnection();
+           PreparedStatement statement = connection.prepareStatement(SET_LOCAL)) {
+         statement.setString(1, roles);
+         statement.setString(2, roles);
+         statement.setString(3, token);
+         statement.executeQuery().close();
+      } catch (SQLException e) {
+         if (status == Status.STATUS_MARKED_ROLLBACK) {
+            // the transaction won't be committed, and if the database has aborted it nothing can run there anyway
+            log.debugf(e, "Cannot set roles and token in transaction marked for rollback");
+            return;
+         }
+         throw new IllegalStateException("Cannot set roles and token", e);
+      }
+      applied[0] = roles;
+      applied[1] = token;
+   }
+
+   // Salts change when the application restarts; signatures that were verified long ago are verified again
+   @Scheduled(every = "{horreum.db.verified-roles.check}")
+   void purgeVerifiedRoles() {
+      int deleted = purgeVerifiedRoles(verifiedRolesMaxAge);
+      log.debugf("Purged %d verified role signatures", deleted);
+   }
+
+   /**
+    * Removes signatures verified earlier than <code>maxAge</code> ago from the table used by <code>has_role()</code>.
+    *
+    * @return Number of removed signatures.
+    */
+   @Transactional
+   public int purgeVerifiedRoles(Duration maxAge) {
+      return ((Number) em.createNativeQuery("SELECT purge_verified_role_signatures(make_interval(secs => ?1))")
+            .setParameter(1, (double) maxAge.toSeconds()).getSingleResult()).intValue();
+   }
+
+   private int txStatus() {
+      try {
+         return tm.getStatus();
+      } catch (SystemException e) {
+         throw new IllegalStateException(e);
+      }
    }
 
    public String getDebugQuery(SecurityIdentity identity) {
@@ -125,7 +313,7 @@ public class RoleManager {
 
    public String getDebugQuery(Collection<String> roles) {
       try {
-         return SET_ROLES.replace("?", '\'' + getSignedRoles(roles) + '\'');
+         return SET_ROLES.replace("?1", '\'' + getSignedRoles(roles) + '\'');
       } catch (NoSuchAlgorithmException e) {
          return "<error>";
       }
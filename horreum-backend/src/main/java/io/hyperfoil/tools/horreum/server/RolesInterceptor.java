@@ -10,11 +10,6 @@ import jakarta.inject.Inject;
 import jakarta.interceptor.AroundInvoke;
 import jakarta.interceptor.Interceptor;
 import jakarta.interceptor.InvocationContext;
-import jakarta.persistence.EntityManager;
-import jakarta.transaction.Status;
-import jakarta.transaction.TransactionManager;
-
-import org.hibernate.Session;
 
 import io.hyperfoil.tools.horreum.svc.Util;
 import io.quarkus.security.identity.SecurityIdentity;
@@ -31,12 +26,6 @@ public class RolesInterceptor {
    @Inject
    SecurityIdentity identity;
 
-   @Inject
-   EntityManager em;
-
-   @Inject
-   TransactionManager tm;
-
    public static void setCurrentIdentity(SecurityIdentity identity) {
       currentIdentity.set(identity);
    }
@@ -72,17 +61,15 @@ public class RolesInterceptor {
          t1 = t;
          throw t;
       } finally {
-         int status = tm.getStatus();
-         if (status == Status.STATUS_ACTIVE || status == Status.STATUS_NO_TRANSACTION) {
-            try {
-               roleManager.setRoles(previousRoles);
-            } catch (Throwable t2) {
-               if (t1 != null) {
-                  t2.addSuppressed(t1);
-               }
-               //noinspection ThrowFromFinallyBlock
-               throw t2;
+         // Changes made within this scope are written before the previous roles are restored
+         try {
+            roleManager.restoreRoles(previousRoles, t1 == null);
+         } catch (Throwable t2) {
+            if (t1 != null) {
+               t2.addSuppressed(t1);
             }
+            //noinspection ThrowFromFinallyBlock
+            throw t2;
          }
       }
    }
@@ -7,7 +7,6 @@ import jakarta.inject.Inject;
 import jakarta.interceptor.AroundInvoke;
 import jakarta.interceptor.Interceptor;
 import jakarta.interceptor.InvocationContext;
-import jakarta.persistence.EntityManager;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.UriInfo;
 
@@ -23,9 +22,6 @@ public class TokenInterceptor {
    @Inject
    RoleManager roleManager;
 
-   @Inject
-   EntityManager em;
-
    @Inject
    UriInfo uriInfo;
 
@@ -38,17 +34,20 @@ public class TokenInterceptor {
       List<String> tokens = uriInfo.getQueryParameters().get(queryParam);
       // TODO: fetch tokens from cookie
       String token = tokens != null && !tokens.isEmpty() ? tokens.get(0) : httpHeaders.getHeaderString(TOKEN_HEADER);
-      if (token != null && !token.isBlank()) {
-         if (looksLikeJWT(token)) {
-            throw new JWTBadRequestException();
-         }
-         roleManager.setToken(em, token);
+      if (token == null || token.isBlank()) {
+         return ctx.proceed();
+      } else if (looksLikeJWT(token)) {
+         throw new JWTBadRequestException();
       }
+      String previousToken = roleManager.setToken(token);
       // TODO: store query tokens in a cookie
+      boolean success = false;
       try {
-         return ctx.proceed();
+         Object result = ctx.proceed();
+         success = true;
+         return result;
       } finally {
-         roleManager.setToken(em, "");
+         roleManager.restoreToken(previousToken, success);
       }
    }
 
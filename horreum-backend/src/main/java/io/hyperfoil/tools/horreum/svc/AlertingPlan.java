@@ -0,0 +1,130 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.hyperfoil.tools.horreum.entity.alerting.VariableDAO;
+import io.hyperfoil.tools.horreum.entity.data.TestDAO;
+
+/**
+ * Everything needed to turn a dataset into datapoints: fingerprint filter, timeline function and variable
+ * calculations of a test. The plan is built once per test and cached until the test or its variables change;
+ * evaluating it for a dataset requires a single query for label values and a single Javascript context.
+ */
+final class AlertingPlan {
+   final int testId;
+   /**
+    * Value of <code>test.plan_version</code> this plan was built from.
+    */
+   final int version;
+   /**
+    * Fingerprint filter wrapped with {@link Util#makeFilter(String)}, or <code>null</code> if all datasets pass.
+    */
+   final String filter;
+   final String timelineFunction;
+   final List<String> timelineLabels;
+   final List<Variable> variables;
+   /**
+    * Names of all labels used by the timeline and variables, as JSON array for the query.
+    */
+   final ArrayNode labelNames;
+
+   private AlertingPlan(int testId, int version, String filter, String timelineFunction, List<String> timelineLabels, List<Variable> variables) {
+      this.testId = testId;
+      this.version = version;
+      this.filter = filter;
+      this.timelineFunction = timelineFunction;
+      this.timelineLabels = timelineLabels;
+      this.variables = variables;
+      Set<String> names = new LinkedHashSet<>(timelineLabels);
+      for (Variable variable : variables) {
+         names.addAll(variable.labels);
+      }
+      this.labelNames = JsonNodeFactory.instance.arrayNode();
+      names.forEach(labelNames::add);
+   }
+
+   static AlertingPlan of(TestDAO test, List<VariableDAO> variables, int version) {
+      String filter = test.fingerprintFilter == null || test.fingerprintFilter.isBlank() ? null : Util.makeFilter(test.fingerprintFilter);
+      List<Variable> planVariables = new ArrayList<>(variables.size());
+      for (VariableDAO variable : variables) {
+         planVariables.add(new Variable(variable.id, variable.name, variable.group, variable.calculation, labels(variable.labels)));
+      }
+      planVariables.sort(Comparator.comparingInt(v -> v.id));
+      return new AlertingPlan(test.id, version, filter, test.timelineFunction, labels(test.timelineLabels), Collections.unmodifiableList(planVariables));
+   }
+
+   private static List<String> labels(JsonNode node) {
+      if (node == null || !node.isArray()) {
+         return Collections.emptyList();
+      }
+      List<String> labels = new ArrayList<>(node.size());
+      for (JsonNode label : node) {
+         labels.add(label.asText());
+      }
+      return labels;
+   }
+
+   /**
+    * Combines values of labels the same way as other label-based functions: a single label yields its value,
+    * multiple labels yield an object with label names as keys.
+    *
+    * @param labels Labels used by the function.
+    * @param values Values of all labels in the dataset, a missing key means that the label has no value.
+    * @return Input for the function, or <code>null</code> if none of the labels has a value.
+    */
+   static JsonNode input(List<String> labels, Map<String, JsonNode> values) {
+      if (labels.size() == 1) {
+         String label = labels.get(0);
+         if (!values.containsKey(label)) {
+            return null;
+         }
+         JsonNode value = values.get(label);
+         return value == null ? JsonNodeFactory.instance.nullNode() : value;
+      }
+      ObjectNode object = null;
+      for (String label : labels) {
+         if (values.containsKey(label)) {
+            if (object == null) {
+               object = JsonNodeFactory.instance.objectNode();
+            }
+            object.set(label, values.get(label));
+         }
+      }
+      return object;
+   }
+
+   static final class Variable {
+      final int id;
+      final String name;
+      final String group;
+      final String calculation;
+      final List<String> labels;
+
+      Variable(int id, String name, String group, String calculation, List<String> labels) {
+         this.id = id;
+         this.name = name;
+         this.group = group;
+         this.calculation = calculation;
+         this.labels = labels;
+      }
+
+      boolean hasCalculation() {
+         return calculation != null && !calculation.isBlank();
+      }
+
+      String fullName() {
+         return (group == null || group.isEmpty()) ? name : group + "/" + name;
+      }
+   }
+}
@@ -29,6 +29,8 @@ import io.hyperfoil.tools.horreum.api.data.Run;
 import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
 import io.hyperfoil.tools.horreum.hibernate.IntArrayType;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -49,17 +51,21 @@ import io.hyperfoil.tools.horreum.api.changes.Dashboard;
 import io.hyperfoil.tools.horreum.api.changes.Target;
 import io.hyperfoil.tools.horreum.api.internal.services.AlertingService;
 import io.hyperfoil.tools.horreum.bus.MessageBus;
-import io.hyperfoil.tools.horreum.changedetection.FixedThresholdModel;
 import io.hyperfoil.tools.horreum.entity.FingerprintDAO;
 import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.*;
 import io.hyperfoil.tools.horreum.changedetection.ChangeDetectionModel;
+import io.hyperfoil.tools.horreum.changedetection.ChangeDetectionModelResolver;
+import io.hyperfoil.tools.horreum.changedetection.DataPointSeries;
 import io.hyperfoil.tools.horreum.changedetection.RelativeDifferenceChangeDetectionModel;
+import io.hyperfoil.tools.horreum.changedetection.RunningStatistics;
 
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
 import io.hyperfoil.tools.horreum.entity.data.TestDAO;
 import io.hyperfoil.tools.horreum.mapper.*;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Value;
 import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
@@ -78,6 +84,7 @@ import io.quarkus.runtime.Startup;
 import io.quarkus.scheduler.Scheduled;
 import io.quarkus.security.identity.SecurityIdentity;
 import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
 
 @ApplicationScoped
 @Startup
@@ -85,26 +92,9 @@ public class AlertingServiceImpl implements AlertingService {
    private static final Logger log = Logger.getLogger(AlertingServiceImpl.class);
 
    //@formatter:off
-   private static final String LOOKUP_TIMESTAMP =
-         "SELECT timeline_function, (CASE " +
-            "WHEN jsonb_array_length(timeline_labels) = 1 THEN jsonb_agg(lv.value)->0 " +
-            "ELSE COALESCE(jsonb_object_agg(label.name, lv.value) FILTER (WHERE label.name IS NOT NULL), '{}'::::jsonb) " +
-         "END) as value FROM test " +
-         "JOIN label ON json_contains(timeline_labels, label.name) " +
-         "JOIN label_values lv ON label.id = lv.label_id " +
-         "WHERE test.id = ?1 AND lv.dataset_id = ?2 " +
-            // the typeof check is needed as jsonb_array_length would fail on JSON nulls
-            "AND timeline_labels IS NOT NULL AND jsonb_typeof(timeline_labels) = 'array' AND jsonb_array_length(timeline_labels) > 0 " +
-         "GROUP BY timeline_function, timeline_labels";
-
-   private static final String LOOKUP_VARIABLES =
-         "SELECT var.id as variableId, var.name, var.\"group\", var.calculation, jsonb_array_length(var.labels) AS numLabels, (CASE " +
-            "WHEN jsonb_array_length(var.labels) = 1 THEN jsonb_agg(lv.value)->0 " +
-            "ELSE COALESCE(jsonb_object_agg(label.name, lv.value) FILTER (WHERE label.name IS NOT NULL), '{}'::::jsonb) " +
-         "END) AS value FROM variable var " +
-         "LEFT JOIN label ON json_contains(var.labels, label.name) LEFT JOIN label_values lv ON label.id = lv.label_id " +
-         "WHERE var.testid = ?1 AND lv.dataset_id = ?2 " +
-         "GROUP BY var.id, var.name, var.\"group\", var.calculation";
+   private static final String LOOKUP_LABEL_VALUES =
+         "SELECT label.name, lv.value FROM label_values lv JOIN label ON label.id = lv.label_id " +
+         "WHERE lv.dataset_id = ?1 AND json_contains((?2)::::jsonb, label.name)";
 
    private static final String LOOKUP_RULE_LABEL_VALUES =
          "SELECT mdr.id AS rule_id, mdr.condition, " +
@@ -136,19 +126,21 @@ public class AlertingServiceImpl implements AlertingService {
          "WHERE last_notification IS NULL OR EXTRACT(EPOCH FROM last_notification) * 1000 < EXTRACT(EPOCH FROM current_timestamp) * 1000 - mdr.maxstaleness " +
          "ORDER BY mdr.id, timestamp DESC";
 
+   // fingerprints are looked up through the index on fp_hash, equality is checked only for the candidates
    private static final String FIND_LAST_DATAPOINTS =
+         "SELECT DISTINCT ON(variable_id) variable_id AS variable, EXTRACT(EPOCH FROM timestamp) * 1000 AS timestamp " +
+         "FROM datapoint dp JOIN fingerprint fp ON fp.dataset_id = dp.dataset_id " +
+         "WHERE fp.fp_hash = ?3 AND json_equals(fp.fingerprint, (?1)::::jsonb) AND variable_id = ANY(?2) " +
+         "ORDER BY variable_id, timestamp DESC;";
+   private static final String FIND_LAST_DATAPOINTS_WITHOUT_FINGERPRINT =
          "SELECT DISTINCT ON(variable_id) variable_id AS variable, EXTRACT(EPOCH FROM timestamp) * 1000 AS timestamp " +
          "FROM datapoint dp LEFT JOIN fingerprint fp ON fp.dataset_id = dp.dataset_id " +
-         "WHERE ((fp.fingerprint IS NULL AND (?1)::::jsonb IS NULL) OR json_equals(fp.fingerprint, (?1)::::jsonb)) AND variable_id = ANY(?2) " +
+         "WHERE fp.fingerprint IS NULL AND variable_id = ANY(?1) " +
          "ORDER BY variable_id, timestamp DESC;";
    //@formatter:on
    private static final Instant LONG_TIME_AGO = Instant.ofEpochSecond(0);
    private static final Instant VERY_DISTANT_FUTURE = Instant.parse("2666-06-06T06:06:06.00Z");
 
-   private static final Map<String, ChangeDetectionModel> MODELS = Map.of(
-         RelativeDifferenceChangeDetectionModel.NAME, new RelativeDifferenceChangeDetectionModel(),
-         FixedThresholdModel.NAME, new FixedThresholdModel());
-
    @Inject
    TestServiceImpl testService;
 
@@ -164,6 +156,15 @@ public class AlertingServiceImpl implements AlertingService {
    @ConfigProperty(name = "horreum.alerting.updateLabel.retries", defaultValue = "5")
    Integer labelCalcRetries;
 
+   @ConfigProperty(name = "horreum.alerting.recalculation.batch-size", defaultValue = "100")
+   int recalculationBatchSize;
+
+   @ConfigProperty(name = "horreum.alerting.recalculation.parallelism", defaultValue = "4")
+   int recalculationParallelism;
+
+   // Dedicated pool: the caller waits for the workers and must not compete with them for the shared worker pool
+   private WorkerExecutor recalculationExecutor;
+
    @Inject
    TransactionManager tm;
 
@@ -182,17 +183,28 @@ public class AlertingServiceImpl implements AlertingService {
    @Inject
    Session session;
 
+   @Inject
+   JavascriptService jsService;
+
+   @Inject
+   ChangeDetectionModelResolver models;
+
    static ConcurrentHashMap<Integer, AtomicInteger> retryCounterSet = new ConcurrentHashMap<>();
 
    // entries can be removed from timer thread while normally this is updated from one of blocking threads
    private final ConcurrentMap<Integer, Recalculation> recalcProgress = new ConcurrentHashMap<>();
+   private final ConcurrentMap<Integer, AlertingPlan> plans = new ConcurrentHashMap<>();
+   private final AtomicInteger planGeneration = new AtomicInteger();
 
-   // A new datapoint invalidates anything past its timestamp. Any attempt to recalculate starts
-   // at the timestamp.
-   private final ConcurrentMap<VarAndFingerprint, UpTo> validUpTo = new ConcurrentHashMap<>();
+   @PostConstruct
+   void initExecutor() {
+      // the calling thread is one of the workers
+      recalculationExecutor = vertx.createSharedWorkerExecutor("horreum-recalculation", Math.max(1, recalculationParallelism - 1));
+   }
 
-   static {
-      System.setProperty("polyglot.engine.WarnInterpreterOnly", "false");
+   @PreDestroy
+   void closeExecutor() {
+      recalculationExecutor.close();
    }
 
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
@@ -231,7 +243,9 @@ public class AlertingServiceImpl implements AlertingService {
             sendNotifications = true;
          }
       }
-      recalculateDatapointsForDataset(dataset, sendNotifications, false, null);
+      Map<VarAndFingerprint, Instant> series = new HashMap<>();
+      recalculateDatapointsForDataset(dataset, sendNotifications, false, null, series);
+      onNewDataPoints(series, dataset.id, sendNotifications);
       recalculateMissingDataRules(dataset);
    }
 
@@ -244,7 +258,7 @@ public class AlertingServiceImpl implements AlertingService {
               .addScalar("condition", StandardBasicTypes.TEXT)
               .addScalar("value", JsonBinaryType.INSTANCE)
               .getResultList();
-      Util.evaluateWithCombinationFunction(ruleValues, row -> (String) row[1], row -> (JsonNode) row[2],
+      jsService.evaluateWithCombinationFunction(ruleValues, row -> (String) row[1], row -> (JsonNode) row[2],
               (row, result) -> {
                  int ruleId = (int) row[0];
                  if (result.isBoolean()) {
@@ -266,45 +280,79 @@ public class AlertingServiceImpl implements AlertingService {
       new MissingDataRuleResultDAO(ruleId, dataset.id, dataset.start).persist();
    }
 
-   private void recalculateDatapointsForDataset(DatasetDAO dataset, boolean notify, boolean debug, Recalculation recalculation) {
+   private void recalculateDatapointsForDataset(DatasetDAO dataset, boolean notify, boolean debug, Recalculation recalculation, Map<VarAndFingerprint, Instant> series) {
       log.debugf("Analyzing dataset %d (%d/%d)", (long)dataset.id, (long)dataset.run.id, dataset.ordinal);
-      TestDAO test = TestDAO.findById(dataset.testid);
-      if (test == null) {
+      AlertingPlan plan = plan(dataset.testid);
+      if (plan == null) {
          log.errorf("Cannot load test ID %d", dataset.testid);
          return;
       }
-      if (!testFingerprint(dataset, test.fingerprintFilter)) {
-         return;
+      emitDatapoints(plan, dataset, notify, debug, recalculation, series);
+   }
+
+   /**
+    * @return Cached evaluation plan for the test, or <code>null</code> if the test does not exist.
+    */
+   private AlertingPlan plan(int testId) {
+      // The version is changed by database triggers; this detects changes made through other Horreum instances
+      List<?> versions = em.createNativeQuery("SELECT plan_version FROM test WHERE id = ?1").setParameter(1, testId).getResultList();
+      if (versions.isEmpty()) {
+         return null;
+      }
+      int version = ((Number) versions.get(0)).intValue();
+      AlertingPlan plan = plans.get(testId);
+      if (plan != null && plan.version == version) {
+         return plan;
+      }
+      // A plan built from data read before concurrent invalidation must not be cached
+      int generation = planGeneration.get();
+      TestDAO test = TestDAO.findById(testId);
+      if (test == null) {
+         return null;
       }
+      plan = AlertingPlan.of(test, VariableDAO.list("testId", testId), version);
+      if (planGeneration.get() == generation) {
+         plans.put(testId, plan);
+      }
+      return plan;
+   }
 
-      emitDatapoints(dataset, notify, debug, recalculation);
+   /**
+    * Drops the cached evaluation plan; should be called when the fingerprint filter, timeline or variables
+    * of the test change. The plan is dropped once again after the transaction completes (e.g. when it was
+    * built from changes that were rolled back). Other instances notice the change through the plan version.
+    */
+   void invalidatePlan(int testId) {
+      plans.remove(testId);
+      Util.registerTxSynchronization(tm, txStatus -> {
+         planGeneration.incrementAndGet();
+         plans.remove(testId);
+      });
    }
 
-   private boolean testFingerprint(DatasetDAO dataset, String filter) {
-      if (filter == null || filter.isBlank()) {
+   private boolean testFingerprint(JavascriptService.Evaluator evaluator, AlertingPlan plan, DatasetDAO dataset, FingerprintDAO fp) {
+      if (plan.filter == null) {
          return true;
       }
-      Optional<JsonNode> result = session
-              .createNativeQuery("SELECT fp.fingerprint FROM fingerprint fp WHERE dataset_id = ?1")
-              .setParameter(1, dataset.id)
-              .addScalar("fingerprint", JsonBinaryType.INSTANCE)
-              .getResultStream().findFirst();
-      JsonNode fingerprint;
-      if (result.isPresent()) {
-         fingerprint = result.get();
-         if (fingerprint.isObject() && fingerprint.size() == 1) {
-            fingerprint = fingerprint.elements().next();
+      JsonNode fingerprint = fp == null || fp.fingerprint == null ? JsonNodeFactory.instance.nullNode() : fp.fingerprint;
+      if (fingerprint.isObject() && fingerprint.size() == 1) {
+         fingerprint = fingerprint.elements().next();
+      }
+      boolean testResult = false;
+      try {
+         Value value = evaluator.evaluate(plan.filter, fingerprint);
+         if (value.isBoolean()) {
+            testResult = value.asBoolean();
+         } else {
+            logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of fingerprint failed: '%s' is not a boolean", value);
          }
-      } else {
-         fingerprint = JsonNodeFactory.instance.nullNode();
-      }
-      boolean testResult = Util.evaluateTest(filter, fingerprint,
-            value -> {
-               logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of fingerprint failed: '%s' is not a boolean", value);
-               return false;
-            },
-            (code, e) -> logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of fingerprint filter failed: '%s' Code:<pre>%s</pre>", e.getMessage(), code),
-            output -> logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Output while evaluating fingerprint filter: <pre>%s</pre>", output));
+      } catch (PolyglotException e) {
+         logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of fingerprint filter failed: '%s' Code:<pre>%s</pre>", e.getMessage(), JavascriptService.describe(plan.filter, fingerprint));
+      }
+      String output = evaluator.takeOutput();
+      if (output != null) {
+         logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Output while evaluating fingerprint filter: <pre>%s</pre>", output);
+      }
       if (!testResult) {
          logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Fingerprint %s was filtered out.", fingerprint);
       }
@@ -344,6 +392,7 @@ public class AlertingServiceImpl implements AlertingService {
       } else {
          throw ServiceException.badRequest("Change detection variables are invalid: " + variablesNode.getNodeType());
       }
+      invalidatePlan(testId);
       JsonNode rulesNode = config.path("missingDataRules");
       if (rulesNode.isMissingNode() || rulesNode.isNull()) {
          log.debugf("Importing test %d: no missing data rules", testId);
@@ -368,119 +417,89 @@ public class AlertingServiceImpl implements AlertingService {
       }
    }
 
-   public static class VariableData {
-      public int variableId;
-      public String name;
-      public String group;
-      public String calculation;
-      public int numLabels;
-      public JsonNode value;
-
-      public String fullName() {
-         return (group == null || group.isEmpty()) ? name : group + "/" + name;
-      }
-   }
-
-   private void emitDatapoints(DatasetDAO dataset, boolean notify, boolean debug, Recalculation recalculation) {
+   /**
+    * Evaluates the fingerprint filter, timestamp and all variables of the test using a single query
+    * for label values and a single Javascript context.
+    *
+    * @param series Receives the series (variable and fingerprint) of created datapoints, with the earliest timestamp.
+    *               Change detection is not run for created datapoints, this is up to the caller.
+    */
+   private void emitDatapoints(AlertingPlan plan, DatasetDAO dataset, boolean notify, boolean debug, Recalculation recalculation, Map<VarAndFingerprint, Instant> series) {
+      FingerprintDAO fingerprint = FingerprintDAO.findById(dataset.id);
+      Integer fpHash = fingerprint == null ? null : fingerprint.fp_hash;
+      Map<String, JsonNode> labelValues = findLabelValues(dataset.id, plan.labelNames);
       Set<String> missingValueVariables = new HashSet<>();
-      List<VariableData> values = session.createNativeQuery(LOOKUP_VARIABLES, Tuple.class)
-            .setParameter(1, dataset.testid)
-            .setParameter(2, dataset.id)
-            .addScalar("variableId", StandardBasicTypes.INTEGER)
-            .addScalar("name", StandardBasicTypes.TEXT)
-            .addScalar("group", StandardBasicTypes.TEXT)
-            .addScalar("calculation", StandardBasicTypes.TEXT)
-            .addScalar("numLabels", StandardBasicTypes.INTEGER)
-            .addScalar("value", JsonBinaryType.INSTANCE)
-            .setTupleTransformer((tuples, aliases) -> {
-               VariableData data = new VariableData();
-               data.variableId = (int) tuples[0];
-               data.name = (String) tuples[1];
-               data.group = (String) tuples[2];
-               data.calculation = (String) tuples[3];
-               data.numLabels = (int) tuples[4];
-               data.value = (JsonNode) tuples[5];
-               return data;
-            })
-            .getResultList();
-      if (debug) {
-         for (VariableData data : values) {
-            logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Fetched value for variable %s: <pre>%s</pre>", data.fullName(), data.value);
+      Boolean accepted = jsService.evaluateInContext(evaluator -> {
+         if (!testFingerprint(evaluator, plan, dataset, fingerprint)) {
+            return false;
          }
-      }
-      List<Object[]> timestampList = session
-              .createNativeQuery(LOOKUP_TIMESTAMP, Object[].class)
-              .setParameter(1, dataset.testid)
-              .setParameter(2, dataset.id)
-              .addScalar("timeline_function", StandardBasicTypes.TEXT)
-              .addScalar("value", JsonBinaryType.INSTANCE)
-              .getResultList();
-      Instant timestamp = dataset.start;
-      if (!timestampList.isEmpty()) {
-         String timestampFunction = (String) timestampList.get(0)[0];
-         JsonNode value = (JsonNode) timestampList.get(0)[1];
-         if (timestampFunction != null && !timestampFunction.isBlank()) {
-            value = Util.evaluateOnce(timestampFunction, value, Util::convertToJson,
-                  (code, throwable) -> logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of timestamp failed: '%s' Code: <code><pre>%s</pre></code>", throwable.getMessage(), code),
-                  output -> logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Output while calculating timestamp: <pre>%s</pre>", output));
-         }
-         timestamp = Util.toInstant(value);
-         if (timestamp == null) {
-            logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Cannot parse timestamp, must be number or ISO-8601 timestamp: %s", value);
-            timestamp = dataset.start;
-         }
-      }
-      Instant finalTimestamp = timestamp;
-      Util.evaluateWithCombinationFunction(values, data -> data.calculation, data -> data.value,
-            (data, result) -> {
+         Instant timestamp = calculateTimestamp(evaluator, plan, dataset, labelValues);
+         for (AlertingPlan.Variable variable : plan.variables) {
+            JsonNode input = AlertingPlan.input(variable.labels, labelValues);
+            if (input == null) {
+               // none of the labels has a value in this dataset
+               continue;
+            }
+            if (debug) {
+               logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Fetched value for variable %s: <pre>%s</pre>", variable.fullName(), input);
+            }
+            if (variable.hasCalculation()) {
+               Value result;
+               try {
+                  result = evaluator.evaluate(variable.calculation, input);
+               } catch (PolyglotException e) {
+                  logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of variable %s failed: '%s' Code:<pre>%s</pre>", variable.fullName(), e.getMessage(), JavascriptService.describe(variable.calculation, input));
+                  continue;
+               }
                Double value = Util.toDoubleOrNull(result,
-                     error -> logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of variable %s failed: %s", data.fullName(), error),
-                     info -> logCalculationMessage(dataset, PersistentLogDAO.INFO, "Evaluation of variable %s: %s", data.fullName(), info));
+                     error -> logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of variable %s failed: %s", variable.fullName(), error),
+                     info -> logCalculationMessage(dataset, PersistentLogDAO.INFO, "Evaluation of variable %s: %s", variable.fullName(), info));
                if (value != null) {
-                  createDataPoint(dataset, finalTimestamp, data.variableId, value, notify);
+                  createDataPoint(dataset, timestamp, variable.id, value, notify, fpHash, series);
                } else {
                   if (recalculation != null) {
                      recalculation.datasetsWithoutValue.put(dataset.id, dataset.getInfo());
                   }
-                  missingValueVariables.add(data.fullName());
-               }
-            },
-            data -> {
-               if (data.numLabels > 1) {
-                  logCalculationMessage(dataset, PersistentLogDAO.WARN, "Variable %s has more than one label (%s) but no calculation function.", data.fullName(), data.value.fieldNames());
+                  missingValueVariables.add(variable.fullName());
                }
-               if (data.value == null || data.value.isNull()) {
-                  logCalculationMessage(dataset, PersistentLogDAO.INFO, "Null value for variable %s - datapoint is not created", data.fullName());
-                  if (recalculation != null) {
-                     recalculation.datasetsWithoutValue.put(dataset.id, dataset.getInfo());
-                  }
-                  missingValueVariables.add(data.fullName());
-                  return;
+               continue;
+            }
+            if (variable.labels.size() > 1) {
+               logCalculationMessage(dataset, PersistentLogDAO.WARN, "Variable %s has more than one label (%s) but no calculation function.", variable.fullName(), variable.labels);
+            }
+            if (input.isNull()) {
+               logCalculationMessage(dataset, PersistentLogDAO.INFO, "Null value for variable %s - datapoint is not created", variable.fullName());
+               if (recalculation != null) {
+                  recalculation.datasetsWithoutValue.put(dataset.id, dataset.getInfo());
                }
-
-               Double value = null;
-               if (data.value.isNumber()) {
-                  value = data.value.asDouble();
-               } else if (data.value.isTextual()) {
-                  try {
-                     value = Double.parseDouble(data.value.asText());
-                  } catch (NumberFormatException e) {
-                     // ignore
-                  }
+               missingValueVariables.add(variable.fullName());
+               continue;
+            }
+            Double value = null;
+            if (input.isNumber()) {
+               value = input.asDouble();
+            } else if (input.isTextual()) {
+               try {
+                  value = Double.parseDouble(input.asText());
+               } catch (NumberFormatException e) {
+                  // ignore
                }
-               if (value == null) {
-                  logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Cannot turn %s into a floating-point value for variable %s", data.value, data.fullName());
-                  if (recalculation != null) {
-                     recalculation.errors++;
-                  }
-                  missingValueVariables.add(data.fullName());
-               } else {
-                  createDataPoint(dataset, finalTimestamp, data.variableId, value, notify);
+            }
+            if (value == null) {
+               logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Cannot turn %s into a floating-point value for variable %s", input, variable.fullName());
+               if (recalculation != null) {
+                  recalculation.errors.incrementAndGet();
                }
-            },
-            (data, exception, code) -> logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of variable %s failed: '%s' Code:<pre>%s</pre>", data.fullName(), exception.getMessage(), code),
-            output -> logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Output while calculating variable: <pre>%s</pre>", output)
-      );
+               missingValueVariables.add(variable.fullName());
+            } else {
+               createDataPoint(dataset, timestamp, variable.id, value, notify, fpHash, series);
+            }
+         }
+         return true;
+      }, output -> logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Output while calculating variable: <pre>%s</pre>", output));
+      if (accepted == null || !accepted) {
+         return;
+      }
       if (!missingValueVariables.isEmpty()) {
          MissingValuesEvent event = new MissingValuesEvent(dataset.getInfo(), missingValueVariables, notify);
          if(mediator.testMode())
@@ -493,18 +512,68 @@ public class AlertingServiceImpl implements AlertingService {
       mediator.dataPointsProcessed(event);
    }
 
+   /**
+    * @return Values of given labels in the dataset by label name; labels without a value are not present.
+    */
+   private Map<String, JsonNode> findLabelValues(int datasetId, ArrayNode labelNames) {
+      if (labelNames.isEmpty()) {
+         return Collections.emptyMap();
+      }
+      List<Object[]> rows = session.createNativeQuery(LOOKUP_LABEL_VALUES, Object[].class)
+            .setParameter(1, datasetId)
+            .setParameter(2, labelNames, JsonBinaryType.INSTANCE)
+            .addScalar("name", StandardBasicTypes.TEXT)
+            .addScalar("value", JsonBinaryType.INSTANCE)
+            .getResultList();
+      Map<String, JsonNode> values = new HashMap<>();
+      for (Object[] row : rows) {
+         // labels with the same name may come from different schemas
+         values.putIfAbsent((String) row[0], (JsonNode) row[1]);
+      }
+      return values;
+   }
+
+   private Instant calculateTimestamp(JavascriptService.Evaluator evaluator, AlertingPlan plan, DatasetDAO dataset, Map<String, JsonNode> labelValues) {
+      JsonNode value = AlertingPlan.input(plan.timelineLabels, labelValues);
+      if (value == null) {
+         return dataset.start;
+      }
+      if (plan.timelineFunction != null && !plan.timelineFunction.isBlank()) {
+         try {
+            value = Util.convertToJson(evaluator.evaluate(plan.timelineFunction, value));
+         } catch (PolyglotException e) {
+            logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Evaluation of timestamp failed: '%s' Code: <code><pre>%s</pre></code>", e.getMessage(), JavascriptService.describe(plan.timelineFunction, value));
+            value = null;
+         }
+         String output = evaluator.takeOutput();
+         if (output != null) {
+            logCalculationMessage(dataset, PersistentLogDAO.DEBUG, "Output while calculating timestamp: <pre>%s</pre>", output);
+         }
+      }
+      Instant timestamp = Util.toInstant(value);
+      if (timestamp == null) {
+         logCalculationMessage(dataset, PersistentLogDAO.ERROR, "Cannot parse timestamp, must be number or ISO-8601 timestamp: %s", value);
+         return dataset.start;
+      }
+      return timestamp;
+   }
+
    @Transactional
-   void createDataPoint(DatasetDAO dataset, Instant timestamp, int variableId, double value, boolean notify) {
+   void createDataPoint(DatasetDAO dataset, Instant timestamp, int variableId, double value, boolean notify, Integer fpHash, Map<VarAndFingerprint, Instant> series) {
       DataPointDAO dataPoint = new DataPointDAO();
-      dataPoint.variable = VariableDAO.findById(variableId);
+      dataPoint.variable = em.getReference(VariableDAO.class, variableId);
       dataPoint.dataset = dataset;
       dataPoint.timestamp = timestamp;
       dataPoint.value = value;
-      dataPoint.persistAndFlush();
-      DataPoint.Event event = new DataPoint.Event(DataPointMapper.from( dataPoint), dataset.testid, notify);
-      onNewDataPoint(event); //Test failure if we do not start a new thread and new tx
-      if(mediator.testMode())
+      // inserts are batched on flush
+      dataPoint.persist();
+      if (fpHash != null) {
+         series.merge(new VarAndFingerprint(variableId, fpHash), timestamp, (t1, t2) -> t1.isBefore(t2) ? t1 : t2);
+      }
+      if(mediator.testMode()) {
+         DataPoint.Event event = new DataPoint.Event(DataPointMapper.from( dataPoint), dataset.testid, notify);
          Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.DATAPOINT_NEW, dataset.testid, event));
+      }
    }
 
    private void logCalculationMessage(DatasetDAO dataSet, int level, String format, Object... args) {
@@ -536,47 +605,82 @@ public class AlertingServiceImpl implements AlertingService {
             level, "changes", msg).persist();
    }
 
-   @WithRoles(extras = Roles.HORREUM_SYSTEM)
-   @Transactional
-   void onNewDataPoint(DataPoint.Event event) {
-      DataPoint dataPoint = event.dataPoint;
-      if (dataPoint.variable != null && dataPoint.variable.id != null) {
-         VariableDAO variable = VariableDAO.findById(dataPoint.variable.id);
-         if (variable != null) {
-            log.debugf("Processing new datapoint for dataset %d at %s, variable %d (%s), value %f",
-                dataPoint.datasetId, dataPoint.timestamp,
-                variable.id, variable.name, dataPoint.value);
-            FingerprintDAO fingerprint = FingerprintDAO.<FingerprintDAO>findByIdOptional(dataPoint.datasetId).orElse(null);
-            Integer fpHash = fingerprint != null ? fingerprint.fp_hash : null;
-
-            VarAndFingerprint key = new VarAndFingerprint(variable.id, fpHash);
-            log.debugf("Invalidating variable %d FP %s timestamp %s, current value is %s", variable.id, fingerprint == null ? null : fingerprint.fingerprint, dataPoint.timestamp, validUpTo.get(key));
-            validUpTo.compute(key, (ignored, current) -> {
-               if (current == null || !dataPoint.timestamp.isAfter(current.timestamp)) {
-                  return new UpTo(dataPoint.timestamp, false);
-               } else {
-                  return current;
-               }
-            });
-            runChangeDetection(VariableDAO.findById(variable.id), fpHash, event.notify, true);
-         } else {
-            log.warnf("Could not process new datapoint for dataset %d at %s, could not find variable by id %d ",
-                dataPoint.datasetId, dataPoint.timestamp, dataPoint.variable == null ? -1 : dataPoint.variable.id);
+   /**
+    * Runs change detection once for each series (variable and fingerprint) with new datapoints from given dataset.
+    */
+   private void onNewDataPoints(Map<VarAndFingerprint, Instant> series, int datasetId, boolean notify) {
+      if (series.isEmpty()) {
+         return;
+      }
+      // single batch insert for all datapoints of the dataset
+      em.flush();
+      // sorted to lock watermark rows in consistent order
+      for (var entry : new TreeMap<>(series).entrySet()) {
+         VarAndFingerprint key = entry.getKey();
+         VariableDAO variable = VariableDAO.findById(key.variableId);
+         if (variable == null) {
+            log.warnf("Could not process new datapoints for dataset %d, could not find variable by id %d ", datasetId, key.variableId);
+            continue;
+         }
+         log.debugf("Processing new datapoints for dataset %d at %s, variable %d (%s), fingerprint %d",
+               datasetId, entry.getValue(), variable.id, variable.name, key.fpHash);
+         invalidateSeries(key, entry.getValue(), datasetId);
+         if (runChangeDetection(variable, key.fpHash, notify, true)) {
+            scheduleChangeDetection(variable, key.fpHash, notify);
          }
-      } else {
-         log.warnf( "Could not process new datapoint for dataset %d when the supplied variable or id reference is null ",
-             dataPoint.datasetId);
       }
    }
 
+   /**
+    * Moves the watermark back to given timestamp and drops statistics that include any later datapoint;
+    * datapoints inserted out of order require the statistics to be rebuilt.
+    *
+    * @param datasetId ID of the new dataset, or -1 to drop statistics including any datapoint at given timestamp.
+    */
+   private void invalidateSeries(VarAndFingerprint key, Instant timestamp, int datasetId) {
+      log.debugf("Invalidating variable %d FP %d timestamp %s", key.variableId, key.fpHash, timestamp);
+      invalidateUpTo(key.variableId, key.fpHash, timestamp);
+      session.createNativeQuery("DELETE FROM datapoint_statistics WHERE variable_id = ?1 AND fp_hash = ?2 " +
+            "AND (last_timestamp > ?3 OR (last_timestamp = ?3 AND last_dataset_id >= ?4))")
+            .setParameter(1, key.variableId)
+            .setParameter(2, key.fpHash)
+            .setParameter(3, timestamp, StandardBasicTypes.INSTANT)
+            .setParameter(4, datasetId)
+            .executeUpdate();
+   }
+
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    @Transactional
    void tryRunChangeDetection(VariableDAO variable, Integer fpHash, boolean notify) {
-      runChangeDetection(variable, fpHash, notify, false);
+      if (runChangeDetection(variable, fpHash, notify, false)) {
+         scheduleChangeDetection(variable, fpHash, notify);
+      }
    }
 
-   private void runChangeDetection(VariableDAO variable, Integer fpHash, boolean notify, boolean expectExists) {
-      UpTo valid = validUpTo.get(new VarAndFingerprint(variable.id, fpHash));
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional(Transactional.TxType.REQUIRES_NEW)
+   boolean runChangeDetectionStep(int variableId, int fpHash, boolean notify) {
+      VariableDAO variable = VariableDAO.findById(variableId);
+      return variable != null && runChangeDetection(variable, fpHash, notify, false);
+   }
+
+   private void scheduleChangeDetection(VariableDAO variable, Integer fpHash, boolean notify) {
+      Util.doAfterCommit(tm, () -> messageBus.executeForTest(variable.testId, () -> tryRunChangeDetection(variable, fpHash, notify)));
+   }
+
+   /**
+    * Analyzes datapoints with the next timestamp following the watermark.
+    *
+    * @return True if there was a timestamp to analyze; the caller should run the analysis again (in a new transaction).
+    */
+   private boolean runChangeDetection(VariableDAO variable, Integer fpHash, boolean notify, boolean expectExists) {
+      if (fpHash == null) {
+         log.debugf("No fingerprint for variable %d, skipping change detection", variable.id);
+         return false;
+      }
+      // Holds the lock on the watermark row until commit: concurrent invocations (possibly on other nodes)
+      // for the same variable and fingerprint are serialized.
+      UpTo valid = lockUpTo(variable.id, fpHash);
       Instant nextTimestamp = session.createNativeQuery(
             "SELECT MIN(timestamp) FROM datapoint dp LEFT JOIN fingerprint fp ON dp.dataset_id = fp.dataset_id " +
                   "WHERE dp.variable_id = ?1 AND (timestamp > ?2 OR (timestamp = ?2 AND ?3)) AND fp_hash = ?4", Instant.class)
@@ -587,10 +691,10 @@ public class AlertingServiceImpl implements AlertingService {
             .getResultStream().filter(Objects::nonNull).findFirst().orElse(null);
       if (nextTimestamp == null) {
          log.debugf("No further datapoints for change detection");
-         return;
+         return false;
       }
 
-      // this should happen only after reboot, let's start with last change
+      // changes after the watermark were invalidated by a new datapoint, let's start with last change
       if (valid != null) {
          int numDeleted = session.createNativeQuery("DELETE FROM change cc WHERE cc.id IN (" +
                "SELECT id FROM change c LEFT JOIN fingerprint fp ON c.dataset_id = fp.dataset_id " +
@@ -621,33 +725,61 @@ public class AlertingServiceImpl implements AlertingService {
          changeTimestamp = lastChange.timestamp;
       }
 
-      List<DataPointDAO> dataPoints = session.createQuery(
-            "SELECT dp FROM DataPoint dp LEFT JOIN Fingerprint fp ON dp.dataset.id = fp.dataset.id " +
-            "JOIN dp.dataset " + // ignore datapoints (that were not deleted yet) from deleted datasets
-            "WHERE dp.variable = ?1 AND dp.timestamp BETWEEN ?2 AND ?3 " +
-            "AND fp.fp_hash = ?4 " +
-            "ORDER BY dp.timestamp DESC, dp.dataset.id DESC", DataPointDAO.class)
-            .setParameter(1, variable)
-            .setParameter(2, changeTimestamp)
-            .setParameter(3, nextTimestamp)
-            .setParameter(4, fpHash)
-            .getResultList();
+      List<ChangeDetectionDAO> detections = ChangeDetectionDAO.<ChangeDetectionDAO>find("variable", variable).list();
+      int window = 1;
+      for (ChangeDetectionDAO detection : detections) {
+         ChangeDetectionModel model = models.getModel(detection.model);
+         if (model != null) {
+            window = Math.max(window, model.window(detection.config));
+         }
+      }
+      // Try to continue from statistics persisted in previous invocation; rebuild these from all datapoints
+      // since last change when the statistics are missing (e.g. were invalidated by out-of-order datapoint).
+      List<Object[]> values = Collections.emptyList();
+      RunningStatistics statistics = null;
+      PersistedStatistics persisted = loadStatistics(variable.id, fpHash, changeTimestamp, nextTimestamp, window);
+      if (persisted != null) {
+         values = findDataPointValues(variable.id, fpHash, persisted.lastTimestamp, persisted.lastDatasetId, nextTimestamp);
+         if (!values.isEmpty()) {
+            log.debugf("Continuing change detection for variable %d, fingerprint %d from %s", variable.id, fpHash, persisted.statistics);
+            statistics = persisted.statistics;
+         }
+      }
+      DataPointSeries series = null;
+      if (statistics == null) {
+         statistics = new RunningStatistics(window);
+         values = findDataPointValues(variable.id, fpHash, changeTimestamp, -1, nextTimestamp);
+         series = toSeries(values);
+      }
       // Last datapoint is already in the list
-      if (dataPoints.isEmpty()) {
+      if (values.isEmpty()) {
          if (expectExists) {
             log.warn("The published datapoint should be already in the list");
          }
       } else {
-         int datasetId = dataPoints.get(0).getDatasetId();
-         for (ChangeDetectionDAO detection : ChangeDetectionDAO.<ChangeDetectionDAO>find("variable", variable).list()) {
-            ChangeDetectionModel model = MODELS.get(detection.model);
+         Instant lastTimestamp = null;
+         int lastDatasetId = -1;
+         for (Object[] row : values) {
+            lastTimestamp = (Instant) row[1];
+            lastDatasetId = (int) row[2];
+            statistics.add((double) row[0], lastTimestamp.toEpochMilli(), lastDatasetId, (int) row[3], (int) row[4]);
+         }
+         RunningStatistics stats = statistics;
+         int datasetId = lastDatasetId;
+         AtomicInteger changes = new AtomicInteger();
+         for (ChangeDetectionDAO detection : detections) {
+            ChangeDetectionModel model = models.getModel(detection.model);
             if (model == null) {
                logChangeDetectionMessage(variable.testId, datasetId, PersistentLogDAO.ERROR, "Cannot find change detection model %s", detection.model);
                continue;
             }
-            model.analyze(dataPoints, detection.config, change -> {
+            Consumer<ChangeDAO> changeConsumer = change -> {
+               changes.incrementAndGet();
+               if (change.variable == null) {
+                  change.variable = variable;
+               }
                logChangeDetectionMessage(variable.testId, datasetId, PersistentLogDAO.DEBUG,
-                     "Change %s detected using datapoints %s", change, reversedAndLimited(dataPoints));
+                     "Change %s detected using datapoints %s", change, stats);
                DatasetDAO.Info info = session
                        .createNativeQuery("SELECT id, runid as \"runId\", ordinal, testid as \"testId\" FROM dataset WHERE id = ?1", Tuple.class)
                        .setParameter(1, change.dataset.id)
@@ -666,37 +798,149 @@ public class AlertingServiceImpl implements AlertingService {
                if(mediator.testMode())
                   Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.CHANGE_NEW, change.dataset.testid, event));
                mediator.executeBlocking(() -> mediator.newChange(event)) ;
-            });
+            };
+            if (!model.analyze(stats, detection.config, changeConsumer)) {
+               if (series == null) {
+                  series = toSeries(findDataPointValues(variable.id, fpHash, changeTimestamp, -1, nextTimestamp));
+               }
+               model.analyze(series, detection.config, changeConsumer);
+            }
+         }
+         // New change resets the statistics; these will be rebuilt starting with the change
+         if (changes.get() == 0) {
+            saveStatistics(variable.id, fpHash, changeTimestamp, lastTimestamp, lastDatasetId, stats);
          }
       }
-      Util.doAfterCommit(tm, () -> {
-         validateUpTo(variable, fpHash, nextTimestamp);
-         messageBus.executeForTest(variable.testId, () -> tryRunChangeDetection(variable, fpHash, notify));
-      });
+      log.debugf("Variable %d, fingerprint %d was valid up to %s, now valid up to %s", variable.id, fpHash, valid, nextTimestamp);
+      validateUpTo(variable.id, fpHash, nextTimestamp);
+      return true;
    }
 
-   private void validateUpTo(VariableDAO variable, Integer fpHash, Instant timestamp) {
-      validUpTo.compute(new VarAndFingerprint(variable.id, fpHash), (ignored, current) -> {
-         log.debugf("Attempt %s, valid up to %s, ", timestamp, current);
-         if (current == null || !current.timestamp.isAfter(timestamp)) {
-            return new UpTo(timestamp, true);
-         } else {
-            return current;
-         }
-      });
+   /**
+    * A new datapoint invalidates anything past its timestamp. Any attempt to recalculate starts at the timestamp.
+    */
+   private void invalidateUpTo(int variableId, int fpHash, Instant timestamp) {
+      session.createNativeQuery("INSERT INTO change_detection_watermark(variable_id, fp_hash, timestamp, inclusive) VALUES (?1, ?2, ?3, false) " +
+                  "ON CONFLICT (variable_id, fp_hash) DO UPDATE SET timestamp = EXCLUDED.timestamp, inclusive = false " +
+                  "WHERE change_detection_watermark.timestamp IS NULL OR change_detection_watermark.timestamp >= EXCLUDED.timestamp")
+            .setParameter(1, variableId)
+            .setParameter(2, fpHash)
+            .setParameter(3, timestamp, StandardBasicTypes.INSTANT)
+            .executeUpdate();
    }
 
-   private String reversedAndLimited(List<DataPointDAO> list) {
-      int maxIndex = Math.min(list.size() - 1, 20);
-      StringBuilder sb = new StringBuilder("[");
-      if (maxIndex < list.size() - 1) {
-         sb.append("..., ");
+   private UpTo lockUpTo(int variableId, int fpHash) {
+      // make sure there's a row to lock
+      session.createNativeQuery("INSERT INTO change_detection_watermark(variable_id, fp_hash) VALUES (?1, ?2) ON CONFLICT DO NOTHING")
+            .setParameter(1, variableId)
+            .setParameter(2, fpHash)
+            .executeUpdate();
+      //noinspection unchecked
+      List<Object[]> rows = session.createNativeQuery("SELECT timestamp, inclusive FROM change_detection_watermark " +
+                  "WHERE variable_id = ?1 AND fp_hash = ?2 FOR UPDATE")
+            .setParameter(1, variableId)
+            .setParameter(2, fpHash)
+            .unwrap(NativeQuery.class)
+            .addScalar("timestamp", StandardBasicTypes.INSTANT)
+            .addScalar("inclusive", StandardBasicTypes.BOOLEAN)
+            .getResultList();
+      if (rows.isEmpty() || rows.get(0)[0] == null) {
+         return null;
       }
-      for (int i = maxIndex; i >= 0; --i) {
-         sb.append(list.get(i));
-         if (i != 0) sb.append(", ");
+      return new UpTo((Instant) rows.get(0)[0], (boolean) rows.get(0)[1]);
+   }
+
+   private void validateUpTo(int variableId, int fpHash, Instant timestamp) {
+      session.createNativeQuery("UPDATE change_detection_watermark SET timestamp = ?3, inclusive = true WHERE variable_id = ?1 AND fp_hash = ?2")
+            .setParameter(1, variableId)
+            .setParameter(2, fpHash)
+            .setParameter(3, timestamp, StandardBasicTypes.INSTANT)
+            .executeUpdate();
+   }
+
+   /**
+    * @return Value, timestamp, dataset ID, run ID and dataset ordinal of datapoints following (timestamp, datasetId)
+    * up to (inclusive) given timestamp, ordered from the oldest.
+    */
+   private List<Object[]> findDataPointValues(int variableId, Integer fpHash, Instant afterTimestamp, int afterDatasetId, Instant upTo) {
+      //noinspection unchecked
+      return session.createNativeQuery(
+            "SELECT dp.value, dp.timestamp, dp.dataset_id, dataset.runid AS run_id, dataset.ordinal FROM datapoint dp " +
+            "JOIN dataset ON dataset.id = dp.dataset_id " + // ignore datapoints (that were not deleted yet) from deleted datasets
+            "LEFT JOIN fingerprint fp ON fp.dataset_id = dp.dataset_id " +
+            "WHERE dp.variable_id = ?1 AND fp.fp_hash = ?2 AND dp.timestamp <= ?5 " +
+            "AND (dp.timestamp > ?3 OR (dp.timestamp = ?3 AND dp.dataset_id > ?4)) " +
+            "ORDER BY dp.timestamp, dp.dataset_id")
+            .setParameter(1, variableId)
+            .setParameter(2, fpHash)
+            .setParameter(3, afterTimestamp, StandardBasicTypes.INSTANT)
+            .setParameter(4, afterDatasetId)
+            .setParameter(5, upTo, StandardBasicTypes.INSTANT)
+            .unwrap(NativeQuery.class)
+            .addScalar("value", StandardBasicTypes.DOUBLE)
+            .addScalar("timestamp", StandardBasicTypes.INSTANT)
+            .addScalar("dataset_id", StandardBasicTypes.INTEGER)
+            .addScalar("run_id", StandardBasicTypes.INTEGER)
+            .addScalar("ordinal", StandardBasicTypes.INTEGER)
+            .getResultList();
+   }
+
+   private static DataPointSeries toSeries(List<Object[]> rows) {
+      double[] values = new double[rows.size()];
+      long[] epochMillis = new long[rows.size()];
+      int[] datasetIds = new int[rows.size()];
+      int[] runIds = new int[rows.size()];
+      int[] ordinals = new int[rows.size()];
+      for (int i = 0; i < rows.size(); ++i) {
+         Object[] row = rows.get(i);
+         values[i] = (double) row[0];
+         epochMillis[i] = ((Instant) row[1]).toEpochMilli();
+         datasetIds[i] = (int) row[2];
+         runIds[i] = (int) row[3];
+         ordinals[i] = (int) row[4];
+      }
+      return new DataPointSeries(values, epochMillis, datasetIds, runIds, ordinals);
+   }
+
+   private PersistedStatistics loadStatistics(int variableId, int fpHash, Instant changeTimestamp, Instant upTo, int window) {
+      //noinspection unchecked
+      List<Object[]> rows = session.createNativeQuery(
+            "SELECT last_timestamp, last_dataset_id, state FROM datapoint_statistics " +
+            "WHERE variable_id = ?1 AND fp_hash = ?2 AND last_change = ?3 AND last_timestamp <= ?4")
+            .setParameter(1, variableId)
+            .setParameter(2, fpHash)
+            .setParameter(3, changeTimestamp, StandardBasicTypes.INSTANT)
+            .setParameter(4, upTo, StandardBasicTypes.INSTANT)
+            .unwrap(NativeQuery.class)
+            .addScalar("last_timestamp", StandardBasicTypes.INSTANT)
+            .addScalar("last_dataset_id", StandardBasicTypes.INTEGER)
+            .addScalar("state", JsonBinaryType.INSTANCE)
+            .getResultList();
+      if (rows.isEmpty()) {
+         return null;
       }
-      return sb.append("]").toString();
+      Object[] row = rows.get(0);
+      RunningStatistics statistics = RunningStatistics.fromJson((JsonNode) row[2]);
+      if (statistics.capacity() < window) {
+         // window of some model has been extended
+         return null;
+      }
+      return new PersistedStatistics(statistics, (Instant) row[0], (int) row[1]);
+   }
+
+   private void saveStatistics(int variableId, int fpHash, Instant changeTimestamp, Instant lastTimestamp, int lastDatasetId, RunningStatistics statistics) {
+      session.createNativeQuery("INSERT INTO datapoint_statistics(variable_id, fp_hash, last_change, last_timestamp, last_dataset_id, state) " +
+                  "VALUES (?1, ?2, ?3, ?4, ?5, ?6) ON CONFLICT (variable_id, fp_hash) DO UPDATE SET " +
+                  "last_change = EXCLUDED.last_change, last_timestamp = EXCLUDED.last_timestamp, " +
+                  "last_dataset_id = EXCLUDED.last_dataset_id, state = EXCLUDED.state")
+            .setParameter(1, variableId)
+            .setParameter(2, fpHash)
+            .setParameter(3, changeTimestamp, StandardBasicTypes.INSTANT)
+            .setParameter(4, lastTimestamp, StandardBasicTypes.INSTANT)
+            .setParameter(5, lastDatasetId)
+            .unwrap(NativeQuery.class)
+            .setParameter(6, statistics.toJson(), JsonBinaryType.INSTANCE)
+            .executeUpdate();
    }
 
    @Override
@@ -742,6 +986,9 @@ public class AlertingServiceImpl implements AlertingService {
             current.name = matching.name;
             current.group = matching.group;
             current.labels = matching.labels;
+            if (!Objects.equals(current.calculation, matching.calculation)) {
+               jsService.invalidate(current.calculation);
+            }
             current.calculation = matching.calculation;
             if (matching.changeDetection != null) {
                ensureDefaults(matching.changeDetection);
@@ -761,10 +1008,12 @@ public class AlertingServiceImpl implements AlertingService {
          }, current -> {
             DataPointDAO.delete("variable.id", current.id);
             ChangeDAO.delete("variable.id", current.id);
+            jsService.invalidate(current.calculation);
             current.delete();
          });
 
          em.flush();
+         invalidatePlan(testId);
       } catch (PersistenceException e) {
          log.error("Failed to update variables", e);
          throw new WebApplicationException(e, Response.serverError().build());
@@ -774,7 +1023,7 @@ public class AlertingServiceImpl implements AlertingService {
 
    private void ensureDefaults(Set<ChangeDetectionDAO> rds) {
       rds.forEach(rd -> {
-         ChangeDetectionModel model = MODELS.get(rd.model);
+         ChangeDetectionModel model = models.getModel(rd.model);
          if (model == null) {
             throw ServiceException.badRequest("Unknown model " + rd.model);
          }
@@ -872,9 +1121,10 @@ public class AlertingServiceImpl implements AlertingService {
          return changes.stream().map(ChangeMapper::from).collect(Collectors.toList());
       }
       List<ChangeDAO> changes = session.createNativeQuery("SELECT change.* FROM change JOIN fingerprint fp ON change.dataset_id = fp.dataset_id " +
-            "WHERE variable_id = ?1 AND json_equals(fp.fingerprint, ?2)", ChangeDAO.class)
+            "WHERE variable_id = ?1 AND fp.fp_hash = ?3 AND json_equals(fp.fingerprint, ?2)", ChangeDAO.class)
             .setParameter(1, varId)
             .setParameter(2, fp, JsonBinaryType.INSTANCE)
+            .setParameter(3, FingerprintDAO.hash(fp))
             .getResultList();
       return changes.stream().map(ChangeMapper::from).collect(Collectors.toList());
    }
@@ -945,15 +1195,28 @@ public class AlertingServiceImpl implements AlertingService {
          recalculation.datasets = getDatasetsForRecalculation(testId, from, to);
          int numRuns = recalculation.datasets.size();
          log.debugf("Starting recalculation of test %d, %d runs", testId, numRuns);
-         int completed = 0;
          recalcProgress.put(testId, recalculation);
-         for (int datasetId : recalculation.datasets) {
-            // Since the evaluation might take few moments and we're dealing potentially with thousands
-            // of runs we'll process each run in a separate transaction
-            recalculateForDataset(datasetId, notify, debug, recalculation);
-            recalculation.progress = 100 * ++completed / numRuns;
+         // Datasets are ordered by start time; each batch covers a time range and is processed
+         // in its own transaction. Change detection is deferred until all datapoints are created.
+         List<List<Integer>> batches = new ArrayList<>();
+         for (int i = 0; i < numRuns; i += recalculationBatchSize) {
+            batches.add(recalculation.datasets.subList(i, Math.min(numRuns, i + recalculationBatchSize)));
          }
-
+         Set<VarAndFingerprint> series = ConcurrentHashMap.newKeySet();
+         recalculation.startedAt = System.nanoTime();
+         forEachInParallel(batches, batch -> {
+            series.addAll(recalculateForDatasets(batch, notify, debug, recalculation));
+            int completed = recalculation.completed.addAndGet(batch.size());
+            recalculation.progress = 100 * completed / numRuns;
+         });
+         log.debugf("Datapoints in test %d recalculated, running change detection for %d series", testId, series.size());
+         recalculation.detectingChanges = true;
+         // Each series is independent; the analysis of one series is sequential
+         forEachInParallel(new ArrayList<>(series), s -> {
+            //noinspection StatementWithEmptyBody
+            while (runChangeDetectionStep(s.variableId, s.fpHash, notify)) {
+            }
+         });
       } catch (Throwable t) {
          log.error("Recalculation failed", t);
          throw t;
@@ -983,15 +1246,29 @@ public class AlertingServiceImpl implements AlertingService {
       return ids;
    }
 
+   private <T> void forEachInParallel(List<T> items, Consumer<T> task) {
+      AtomicInteger next = new AtomicInteger();
+      Util.forEachInParallel(recalculationExecutor, Math.min(recalculationParallelism, items.size()), () -> {
+         int i = next.getAndIncrement();
+         return i < items.size() ? items.get(i) : null;
+      }, task);
+   }
+
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    @Transactional(Transactional.TxType.REQUIRES_NEW)
-   void recalculateForDataset(Integer datasetId, boolean notify, boolean debug, Recalculation recalculation) {
-      DatasetDAO dataset = DatasetDAO.findById(datasetId);
-      if ( dataset != null ) {
-         recalculateDatapointsForDataset(dataset, notify, debug, recalculation);
-      } else {
-         log.debugf("Could not find dataset with id: %d", datasetId);
+   Set<VarAndFingerprint> recalculateForDatasets(List<Integer> datasetIds, boolean notify, boolean debug, Recalculation recalculation) {
+      Map<VarAndFingerprint, Instant> series = new HashMap<>();
+      for (int datasetId : datasetIds) {
+         DatasetDAO dataset = DatasetDAO.findById(datasetId);
+         if (dataset != null) {
+            recalculateDatapointsForDataset(dataset, notify, debug, recalculation, series);
+         } else {
+            log.debugf("Could not find dataset with id: %d", datasetId);
+         }
       }
+      // Concurrent batches update the same watermark rows; sorting the keys prevents deadlocks.
+      new TreeMap<>(series).forEach((key, timestamp) -> invalidateSeries(key, timestamp, -1));
+      return series.keySet();
    }
 
    @Override
@@ -1003,8 +1280,16 @@ public class AlertingServiceImpl implements AlertingService {
       status.done = recalculation == null || recalculation.done;
       if (recalculation != null) {
          status.totalDatasets = recalculation.datasets.size();
-         status.errors = recalculation.errors;
+         status.errors = recalculation.errors.get();
          status.datasetsWithoutValue = recalculation.datasetsWithoutValue.values().stream().map(DatasetMapper::fromInfo).collect(Collectors.toList());
+         int completed = recalculation.completed.get();
+         status.processedDatasets = completed;
+         status.detectingChanges = recalculation.detectingChanges;
+         long elapsed = System.nanoTime() - recalculation.startedAt;
+         if (recalculation.startedAt != 0 && completed > 0 && elapsed > 0) {
+            status.throughput = completed * 1e9 / elapsed;
+            status.eta = (long) ((status.totalDatasets - completed) / status.throughput);
+         }
       }
       return status;
    }
@@ -1038,11 +1323,18 @@ public class AlertingServiceImpl implements AlertingService {
    @WithRoles
    @PermitAll
    public List<DatapointLastTimestamp> findLastDatapoints(LastDatapointsParams params) {
-      //noinspection unchecked
-      return em.createNativeQuery(FIND_LAST_DATAPOINTS)
-            .unwrap(NativeQuery.class)
-            .setParameter(1, Util.parseFingerprint(params.fingerprint), JsonBinaryType.INSTANCE)
-            .setParameter(2, params.variables, IntArrayType.INSTANCE)
+      JsonNode fingerprint = Util.parseFingerprint(params.fingerprint);
+      NativeQuery<?> query;
+      if (fingerprint == null) {
+         query = em.createNativeQuery(FIND_LAST_DATAPOINTS_WITHOUT_FINGERPRINT).unwrap(NativeQuery.class)
+               .setParameter(1, params.variables, IntArrayType.INSTANCE);
+      } else {
+         query = em.createNativeQuery(FIND_LAST_DATAPOINTS).unwrap(NativeQuery.class)
+               .setParameter(1, fingerprint, JsonBinaryType.INSTANCE)
+               .setParameter(2, params.variables, IntArrayType.INSTANCE)
+               .setParameter(3, FingerprintDAO.hash(fingerprint));
+      }
+      return query
                     .setTupleTransformer((tuples, aliases) -> {
                         return new DatapointLastTimestamp((int) tuples[0], (Number) tuples[1]);
                     }).getResultList();
@@ -1088,6 +1380,7 @@ public class AlertingServiceImpl implements AlertingService {
       test.fingerprintFilter = "";
       test.fingerprintFilter = update.fingerprintFilter;
       test.persistAndFlush();
+      invalidatePlan(testId);
    }
 
    private ArrayNode toJsonArray(List<String> labels) {
@@ -1100,7 +1393,7 @@ public class AlertingServiceImpl implements AlertingService {
    @PermitAll
    @Override
    public List<ConditionConfig> changeDetectionModels() {
-      return MODELS.values().stream().map(ChangeDetectionModel::config).collect(Collectors.toList());
+      return models.getModels().stream().map(ChangeDetectionModel::config).collect(Collectors.toList());
    }
 
    @PermitAll
@@ -1189,7 +1482,7 @@ public class AlertingServiceImpl implements AlertingService {
       boolean match = true;
       if (rule.condition != null && !rule.condition.isBlank()) {
          String ruleName = rule.name == null ? "#" + rule.id : rule.name;
-         match = Util.evaluateTest(rule.condition, value, notBoolean -> {
+         match = jsService.evaluateTest(rule.condition, value, notBoolean -> {
             logMissingDataMessage(rule.testId(), datasetId, PersistentLogDAO.ERROR,
                   "Missing data rule %s result is not a boolean: %s", ruleName, notBoolean);
             return true;
@@ -1246,6 +1539,7 @@ public class AlertingServiceImpl implements AlertingService {
       }
       MissingDataRuleDAO.delete("test.id", testId);
       em.flush();
+      invalidatePlan(testId);
    }
 
    @Transactional
@@ -1269,34 +1563,60 @@ public class AlertingServiceImpl implements AlertingService {
    // Note: this class must be public - otherwise when this is used as a parameter to
    // a method in AlertingServiceImpl the interceptors would not be invoked.
    public static class Recalculation {
-      List<Integer> datasets = Collections.emptyList();
-      int progress;
-      boolean done;
-      public int errors;
-      Map<Integer, DatasetDAO.Info> datasetsWithoutValue = new HashMap<>();
+      volatile List<Integer> datasets = Collections.emptyList();
+      volatile int progress;
+      volatile boolean done;
+      volatile boolean detectingChanges;
+      volatile long startedAt;
+      final AtomicInteger completed = new AtomicInteger();
+      public final AtomicInteger errors = new AtomicInteger();
+      Map<Integer, DatasetDAO.Info> datasetsWithoutValue = new ConcurrentHashMap<>();
    }
 
-   static final class VarAndFingerprint {
-      final int varId;
-      final Integer fp_hash;
+   // Note: this class must be public as well, see above.
+   public static final class VarAndFingerprint implements Comparable<VarAndFingerprint> {
+      final int variableId;
+      final int fpHash;
 
-      VarAndFingerprint(int varId, Integer fp_hash) {
-         this.varId = varId;
-         this.fp_hash = fp_hash;
+      VarAndFingerprint(int variableId, int fpHash) {
+         this.variableId = variableId;
+         this.fpHash = fpHash;
       }
 
-
       @Override
       public boolean equals(Object o) {
          if (this == o) return true;
          if (o == null || getClass() != o.getClass()) return false;
          VarAndFingerprint that = (VarAndFingerprint) o;
-         return varId == that.varId && Objects.equals(fp_hash, that.fp_hash);
+         return variableId == that.variableId && fpHash == that.fpHash;
       }
 
       @Override
       public int hashCode() {
-         return Objects.hash(varId, fp_hash);
+         return Objects.hash(variableId, fpHash);
+      }
+
+      @Override
+      public int compareTo(VarAndFingerprint o) {
+         int result = Integer.compare(variableId, o.variableId);
+         return result != 0 ? result : Integer.compare(fpHash, o.fpHash);
+      }
+
+      @Override
+      public String toString() {
+         return "{variable=" + variableId + ", fp=" + fpHash + '}';
+      }
+   }
+
+   private static class PersistedStatistics {
+      final RunningStatistics statistics;
+      final Instant lastTimestamp;
+      final int lastDatasetId;
+
+      private PersistedStatistics(RunningStatistics statistics, Instant lastTimestamp, int lastDatasetId) {
+         this.statistics = statistics;
+         this.lastTimestamp = lastTimestamp;
+         this.lastDatasetId = lastDatasetId;
       }
    }
 
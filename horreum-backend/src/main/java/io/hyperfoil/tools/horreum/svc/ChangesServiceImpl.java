@@ -1,7 +1,9 @@
 package io.hyperfoil.tools.horreum.svc;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.security.PermitAll;
@@ -17,13 +19,15 @@ import org.eclipse.microprofile.config.ConfigProvider;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import io.hyperfoil.tools.horreum.api.internal.services.ChangesService;
+import io.hyperfoil.tools.horreum.changedetection.DataPointSeries;
+import io.hyperfoil.tools.horreum.entity.FingerprintDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
-import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.VariableDAO;
 import io.hyperfoil.tools.horreum.api.changes.Target;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
+import org.hibernate.type.StandardBasicTypes;
 
 /**
  * This service is a backend for the Changes report panels
@@ -31,6 +35,8 @@ import org.hibernate.query.NativeQuery;
 @PermitAll
 @ApplicationScoped
 public class ChangesServiceImpl implements ChangesService {
+   private static final int FETCH_SIZE = 1000;
+
    @Inject
    EntityManager em;
 
@@ -97,32 +103,57 @@ public class ChangesServiceImpl implements ChangesService {
          tt.variableId = variableId;
          result.add(tt);
 
-         StringBuilder sql = new StringBuilder("WITH dp AS (")
-               .append("(SELECT * FROM datapoint WHERE variable_id = ?1 AND timestamp BETWEEN ?2 AND ?3)");
-         if (query.range.oneBeforeAndAfter) {
-               sql.append("UNION (SELECT * FROM datapoint WHERE variable_id = ?1 AND timestamp < ?2 ORDER BY timestamp DESC LIMIT 1) ")
-                  .append("UNION (SELECT * FROM datapoint WHERE variable_id = ?1 AND timestamp > ?3 ORDER BY timestamp LIMIT 1)");
-         }
-         sql.append(") SELECT dp.* FROM dp ");
-         if (fingerprint != null) {
-            sql.append("LEFT JOIN fingerprint fp ON fp.dataset_id = dp.dataset_id WHERE json_equals(fp.fingerprint, (?4)::::jsonb) ");
-         }
-         sql.append("ORDER BY timestamp ASC");
-         NativeQuery<DataPointDAO> nativeQuery = em.unwrap(Session.class).createNativeQuery(sql.toString(), DataPointDAO.class)
-               .setParameter(1, variableId)
-               .setParameter(2, query.range.from)
-               .setParameter(3, query.range.to);
-         if (fingerprint != null) {
-            nativeQuery.setParameter(4, fingerprint.toString());
-         }
-         List<DataPointDAO> datapoints = nativeQuery.getResultList();
-         for (DataPointDAO dp : datapoints) {
-            tt.datapoints.add(new Number[] { dp.value, dp.timestamp.toEpochMilli(), /* non-standard! */ dp.dataset.id });
+         DataPointSeries series = readSeries(variableId, fingerprint, query.range);
+         if (query.maxDataPoints != null && query.maxDataPoints > 0 && series.size() > query.maxDataPoints) {
+            for (int i : Downsampling.select(series, query.downsampling, query.maxDataPoints)) {
+               tt.datapoints.add(new Number[] { series.values[i], series.epochMillis[i], /* non-standard! */ series.datasetIds[i] });
+            }
+         } else {
+            for (int i = 0; i < series.size(); ++i) {
+               tt.datapoints.add(new Number[] { series.values[i], series.epochMillis[i], /* non-standard! */ series.datasetIds[i] });
+            }
          }
       }
       return result;
    }
 
+   /**
+    * Reads values, timestamps and datasets (ID, run ID and ordinal) of datapoints without loading the entities.
+    * Fingerprint is looked up using the index on its hash; equality is checked only for matching hashes.
+    */
+   private DataPointSeries readSeries(int variableId, JsonNode fingerprint, Range range) {
+      String select = "SELECT dp.value, dp.timestamp, dp.dataset_id, dataset.runid AS run_id, dataset.ordinal FROM datapoint dp " +
+            "JOIN dataset ON dataset.id = dp.dataset_id ";
+      if (fingerprint != null) {
+         select += "JOIN fingerprint fp ON fp.dataset_id = dp.dataset_id AND fp.fp_hash = ?4 AND json_equals(fp.fingerprint, (?5)::::jsonb) ";
+      }
+      StringBuilder sql = new StringBuilder("(").append(select).append("WHERE dp.variable_id = ?1 AND dp.timestamp BETWEEN ?2 AND ?3) ");
+      if (range.oneBeforeAndAfter) {
+         sql.append("UNION ALL (").append(select).append("WHERE dp.variable_id = ?1 AND dp.timestamp < ?2 ORDER BY dp.timestamp DESC LIMIT 1) ")
+               .append("UNION ALL (").append(select).append("WHERE dp.variable_id = ?1 AND dp.timestamp > ?3 ORDER BY dp.timestamp LIMIT 1) ");
+      }
+      sql.append("ORDER BY timestamp ASC");
+      NativeQuery<Object[]> nativeQuery = em.unwrap(Session.class).createNativeQuery(sql.toString(), Object[].class)
+            .setParameter(1, variableId)
+            .setParameter(2, range.from)
+            .setParameter(3, range.to);
+      if (fingerprint != null) {
+         nativeQuery.setParameter(4, FingerprintDAO.hash(fingerprint));
+         nativeQuery.setParameter(5, fingerprint.toString());
+      }
+      nativeQuery.addScalar("value", StandardBasicTypes.DOUBLE)
+            .addScalar("timestamp", StandardBasicTypes.INSTANT)
+            .addScalar("dataset_id", StandardBasicTypes.INTEGER)
+            .addScalar("run_id", StandardBasicTypes.INTEGER)
+            .addScalar("ordinal", StandardBasicTypes.INTEGER)
+            .setFetchSize(FETCH_SIZE);
+      DataPointSeries.Builder builder = new DataPointSeries.Builder();
+      try (Stream<Object[]> rows = nativeQuery.getResultStream()) {
+         rows.forEach(row -> builder.add((double) row[0], ((Instant) row[1]).toEpochMilli(), (int) row[2], (int) row[3], (int) row[4]));
+      }
+      return builder.build();
+   }
+
    private int parseVariableId(String target) {
       int variableId;
       try {
@@ -174,14 +205,15 @@ public class ChangesServiceImpl implements ChangesService {
       }
       sql.append(" WHERE variable_id = ?1 AND timestamp BETWEEN ?2 AND ?3 ");
       if (fingerprint != null) {
-         sql.append("AND json_equals(fp.fingerprint, (?4)::::jsonb)");
+         sql.append("AND fp.fp_hash = ?4 AND json_equals(fp.fingerprint, (?5)::::jsonb)");
       }
       NativeQuery<ChangeDAO> nativeQuery = em.unwrap(Session.class).createNativeQuery(sql.toString(), ChangeDAO.class)
             .setParameter(1, variableId)
             .setParameter(2, query.range.from)
             .setParameter(3, query.range.to);
       if (fingerprint != null) {
-         nativeQuery.setParameter(4, fingerprint.toString());
+         nativeQuery.setParameter(4, FingerprintDAO.hash(fingerprint));
+         nativeQuery.setParameter(5, fingerprint.toString());
       }
 
       List<ChangeDAO> changes = nativeQuery.getResultList();
@@ -3,7 +3,10 @@ package io.hyperfoil.tools.horreum.svc;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
@@ -15,7 +18,9 @@ import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.ValidationError;
 import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
 import io.hyperfoil.tools.horreum.entity.FingerprintDAO;
+import io.hyperfoil.tools.horreum.hibernate.IntArrayType;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.security.PermitAll;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -23,6 +28,8 @@ import jakarta.persistence.EntityManager;
 import jakarta.persistence.NoResultException;
 import jakarta.persistence.PersistenceException;
 import jakarta.persistence.Tuple;
+import jakarta.transaction.Status;
+import jakarta.transaction.SystemException;
 import jakarta.transaction.TransactionManager;
 import jakarta.transaction.Transactional;
 
@@ -32,6 +39,8 @@ import io.hyperfoil.tools.horreum.api.data.Label;
 import io.hyperfoil.tools.horreum.entity.data.*;
 import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
 import jakarta.ws.rs.DefaultValue;
+import org.graalvm.polyglot.PolyglotException;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
@@ -50,6 +59,9 @@ import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
 import io.hyperfoil.tools.horreum.entity.alerting.DatasetLogDAO;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.runtime.Startup;
 import io.quarkus.security.identity.SecurityIdentity;
 
@@ -57,19 +69,21 @@ import io.quarkus.security.identity.SecurityIdentity;
 @Startup
 public class DatasetServiceImpl implements DatasetService {
    private static final Logger log = Logger.getLogger(DatasetServiceImpl.class);
+   // first key for pg_advisory_xact_lock, the second one is test ID
+   private static final int RECALCULATION_LOCK_NAMESPACE = 0x686f7272;
 
    //@formatter:off
    private static final String LABEL_QUERY = """
          WITH 
          used_labels AS (
-            SELECT label.id AS label_id, label.name, ds.schema_id, count(le) AS count 
+            SELECT ds.dataset_id, label.id AS label_id, label.name, ds.schema_id, count(le) AS count 
             FROM dataset_schemas ds 
             JOIN label ON label.schema_id = ds.schema_id 
             LEFT JOIN label_extractors le ON le.label_id = label.id 
-            WHERE ds.dataset_id = ?1 AND (?2 < 0 OR label.id = ?2) GROUP BY label.id, label.name, ds.schema_id
+            WHERE ds.dataset_id = ANY(?1) AND (?2 < 0 OR label.id = ?2) GROUP BY ds.dataset_id, label.id, label.name, ds.schema_id
          ), 
          lvalues AS (
-            SELECT ul.label_id, le.name, 
+            SELECT ul.dataset_id, ul.label_id, le.name, 
                   (CASE WHEN le.isarray THEN 
                      jsonb_path_query_array(dataset.data -> ds.index, le.jsonpath::::jsonpath) 
                  ELSE 
@@ -77,11 +91,11 @@ public class DatasetServiceImpl implements DatasetService {
                   END) AS value 
             FROM dataset 
             JOIN dataset_schemas ds ON dataset.id = ds.dataset_id 
-            JOIN used_labels ul ON ul.schema_id = ds.schema_id 
+            JOIN used_labels ul ON ul.schema_id = ds.schema_id AND ul.dataset_id = ds.dataset_id 
             LEFT JOIN label_extractors le ON ul.label_id = le.label_id 
-            WHERE dataset.id = ?1
+            WHERE dataset.id = ANY(?1)
          ) 
-         SELECT lvalues.label_id, ul.name, function, 
+         SELECT lvalues.dataset_id, lvalues.label_id, ul.name, function, 
                (CASE 
                   WHEN ul.count > 1 THEN jsonb_object_agg(COALESCE(lvalues.name, ''), lvalues.value) 
                   WHEN ul.count = 1 THEN jsonb_agg(lvalues.value) -> 0 
@@ -89,8 +103,9 @@ public class DatasetServiceImpl implements DatasetService {
                ) AS value 
          FROM label 
          JOIN lvalues ON lvalues.label_id = label.id 
-         JOIN used_labels ul ON label.id = ul.label_id 
-         GROUP BY lvalues.label_id, ul.name, function, ul.count
+         JOIN used_labels ul ON label.id = ul.label_id AND lvalues.dataset_id = ul.dataset_id 
+         GROUP BY lvalues.dataset_id, lvalues.label_id, ul.name, function, ul.count
+         ORDER BY lvalues.dataset_id
          """;
    protected static final String LABEL_PREVIEW = """
          WITH
@@ -171,11 +186,39 @@ public class DatasetServiceImpl implements DatasetService {
    @Inject
    TransactionManager tm;
 
-   // This is a nasty hack that will serialize all run -> dataset transformations and label calculations
+   @Inject
+   JavascriptService jsService;
+
+   @Inject
+   MeterRegistry meterRegistry;
+
+   @ConfigProperty(name = "horreum.recalculation.lock-stripes", defaultValue = "64")
+   int lockStripes;
+
+   // Run -> dataset transformations and label calculations within one test are serialized.
    // The problem is that PostgreSQL's SSI will for some (unknown) reason rollback some transactions,
-   // probably due to false sharing of locks. For some reason even using advisory locks in DB does not
-   // solve the issue so we have to serialize this even outside the problematic transactions.
-   private final ReentrantLock recalculationLock = new ReentrantLock();
+   // probably due to false sharing of locks. This used to be a single global lock; now it is done per test,
+   // with a fixed number of locks shared by tests that hash to the same stripe. Calculations for different
+   // tests can still run concurrently and SSI may roll back one of them (SQLSTATE 40001) - these are retried
+   // in calculateLabelValuesWithRetry.
+   private ReentrantLock[] recalculationLocks;
+   private Timer lockWaitTimer;
+   private Timer dbLockWaitTimer;
+   private Counter serializationRetries;
+
+   @PostConstruct
+   void init() {
+      recalculationLocks = new ReentrantLock[lockStripes];
+      for (int i = 0; i < recalculationLocks.length; ++i) {
+         recalculationLocks[i] = new ReentrantLock();
+      }
+      lockWaitTimer = Timer.builder("horreum.recalculation.lock.wait")
+            .description("Time spent waiting for the per-test recalculation lock").register(meterRegistry);
+      dbLockWaitTimer = Timer.builder("horreum.recalculation.db-lock.wait")
+            .description("Time spent waiting for the per-test advisory lock in the database").register(meterRegistry);
+      serializationRetries = Counter.builder("horreum.recalculation.serialization.retries")
+            .description("Label calculations retried after a serialization failure").register(meterRegistry);
+   }
 
    @PermitAll
    @WithRoles
@@ -185,12 +228,19 @@ public class DatasetServiceImpl implements DatasetService {
             .append(SCHEMAS_SELECT).append(" WHERE testid = :testId GROUP BY dataset_id")
             .append("), ").append(VALIDATION_SELECT);
       JsonNode jsonFilter = null;
+      Integer fpHash = null;
       if (filter != null && !filter.isBlank()) {
-         sql.append(", all_labels AS (").append(ALL_LABELS_SELECT).append(" WHERE testid = :testId GROUP BY dataset.id)");
+         jsonFilter = Util.parseFingerprint(filter);
+         fpHash = fingerprintHash(testId, jsonFilter);
+         sql.append(", all_labels AS (").append(ALL_LABELS_SELECT).append(" WHERE testid = :testId");
+         if (fpHash != null) {
+            // aggregate labels only for candidates found through the index
+            sql.append(" AND dataset.id IN (SELECT dataset_id FROM fingerprint WHERE fp_hash = :fpHash)");
+         }
+         sql.append(" GROUP BY dataset.id)");
          sql.append(DATASET_SUMMARY_SELECT);
          addViewIdCondition(sql, viewId);
          sql.append(" JOIN all_labels ON all_labels.dataset_id = ds.id WHERE testid = :testId AND all_labels.values @> :jsonFilter");
-         jsonFilter = Util.parseFingerprint(filter);
       } else {
          sql.append(DATASET_SUMMARY_SELECT);
          addViewIdCondition(sql, viewId);
@@ -202,6 +252,9 @@ public class DatasetServiceImpl implements DatasetService {
       if (jsonFilter != null) {
          query.setParameter("jsonFilter", jsonFilter, JsonBinaryType.INSTANCE);
       }
+      if (fpHash != null) {
+         query.setParameter("fpHash", fpHash);
+      }
       if (viewId != null) {
          query.setParameter("viewId", viewId);
       }
@@ -211,6 +264,32 @@ public class DatasetServiceImpl implements DatasetService {
       return list;
    }
 
+   /**
+    * When the filter selects values of all fingerprint labels, matching datasets must have fingerprint
+    * with the same hash.
+    *
+    * @return Hash of the fingerprint or <code>null</code> if the filter does not cover all fingerprint labels.
+    */
+   private Integer fingerprintHash(int testId, JsonNode filter) {
+      if (filter == null || !filter.isObject()) {
+         return null;
+      }
+      TestDAO test = TestDAO.findById(testId);
+      if (test == null || test.fingerprintLabels == null || test.fingerprintLabels.size() != filter.size()) {
+         return null;
+      }
+      ObjectNode fingerprint = JsonNodeFactory.instance.objectNode();
+      for (JsonNode label : test.fingerprintLabels) {
+         JsonNode value = filter.get(label.asText());
+         if (value == null) {
+            return null;
+         }
+         // same as in createFingerprint
+         fingerprint.put(label.asText(), value.asText());
+      }
+      return FingerprintDAO.hash(fingerprint);
+   }
+
    private void addViewIdCondition(StringBuilder sql, Integer viewId) {
       if (viewId == null) {
          sql.append("(SELECT id FROM view WHERE test_id = :testId AND name = 'Default')");
@@ -349,7 +428,7 @@ public class DatasetServiceImpl implements DatasetService {
       } else {
          AtomicReference<String> errorRef = new AtomicReference<>();
          AtomicReference<String> outputRef = new AtomicReference<>();
-         JsonNode result = Util.evaluateOnce(label.function, extracted, Util::convertToJson,
+         JsonNode result = jsService.evaluateOnce(label.function, extracted, Util::convertToJson,
                (code, exception) -> errorRef.set("Execution failed: " + exception.getMessage() + ":\n" + code), outputRef::set);
          preview.value = errorRef.get() == null ? result : JsonNodeFactory.instance.textNode(errorRef.get());
          preview.output = outputRef.get();
@@ -401,25 +480,37 @@ public class DatasetServiceImpl implements DatasetService {
       messageBus.executeForTest(testId, () -> calculateLabelValues(testId, datasetId, labelId, true));
    }
 
+   void calculateLabelValues(int testId, int datasetId, int queryLabelId, boolean isRecalculation) {
+      calculateLabelValues(testId, List.of(datasetId), queryLabelId, isRecalculation);
+   }
+
+   /**
+    * Calculates labels for a batch of datasets from the same test: the values are extracted in a single query,
+    * all functions are evaluated in one Javascript context and the label values are inserted in JDBC batches.
+    */
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    @Transactional
-   void calculateLabelValues(int testId, int datasetId, int queryLabelId, boolean isRecalculation) {
-      log.debugf("Calculating label values for dataset %d, label %d", datasetId, queryLabelId);
+   void calculateLabelValues(int testId, List<Integer> datasetIds, int queryLabelId, boolean isRecalculation) {
+      log.debugf("Calculating label values for datasets %s, label %d", datasetIds, queryLabelId);
+      lockTestInDatabase(testId);
       List<Object[]> extracted;
       try {
          // Note: we are fetching even labels that are marked as private/could be otherwise inaccessible
          // to the uploading user. However, the uploader should not have rights to fetch these anyway...
          extracted =  em.unwrap(Session.class).createNativeQuery(LABEL_QUERY, Object[].class)
-                     .setParameter(1, datasetId)
+                     .setParameter(1, datasetIds.stream().mapToInt(Integer::intValue).toArray(), IntArrayType.INSTANCE)
                      .setParameter(2, queryLabelId)
+                     .addScalar("dataset_id", StandardBasicTypes.INTEGER)
                      .addScalar("label_id", StandardBasicTypes.INTEGER)
                      .addScalar("name", StandardBasicTypes.TEXT)
                      .addScalar("function", StandardBasicTypes.TEXT)
                      .addScalar("value", JsonBinaryType.INSTANCE)
                      .getResultList();
       } catch (PersistenceException e) {
-         logMessageInNewTx(datasetId, PersistentLogDAO.ERROR, "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
-         findFailingExtractor(datasetId);
+         for (int datasetId : datasetIds) {
+            logMessageInNewTx(datasetId, PersistentLogDAO.ERROR, "Failed to extract data (JSONPath expression error?): " + Util.explainCauses(e));
+            findFailingExtractor(datasetId);
+         }
          return;
       }
 
@@ -428,29 +519,49 @@ public class DatasetServiceImpl implements DatasetService {
       // before the first event is processed. The second event would then find the label_value
       // already present and would fail with a constraint violation.
       if (queryLabelId < 0) {
-         LabelValueDAO.delete("datasetId", datasetId);
+         LabelValueDAO.delete("datasetId IN ?1", datasetIds);
       } else {
-         LabelValueDAO.delete("datasetId = ?1 AND labelId = ?2", datasetId, queryLabelId);
+         LabelValueDAO.delete("datasetId IN ?1 AND labelId = ?2", datasetIds, queryLabelId);
+      }
+      FingerprintDAO.delete("datasetId IN ?1", datasetIds);
+
+      Map<Integer, List<Object[]>> rowsByDataset = extracted.stream()
+            .collect(Collectors.groupingBy(row -> (Integer) row[0], LinkedHashMap::new, Collectors.toList()));
+      jsService.withEvaluator(evaluator -> rowsByDataset.forEach((datasetId, rows) -> {
+         for (Object[] row : rows) {
+            int labelId = (int) row[1];
+            String function = (String) row[3];
+            JsonNode value = (JsonNode) row[4];
+            if (function == null || function.isBlank()) {
+               createLabelValue(datasetId, labelId, value);
+               continue;
+            }
+            JsonNode input = value instanceof ArrayNode ? flatten((ArrayNode) value) : value;
+            try {
+               createLabelValue(datasetId, labelId, Util.convertToJson(evaluator.evaluate(function, input)));
+            } catch (PolyglotException e) {
+               logMessage(datasetId, PersistentLogDAO.ERROR, "Evaluation of label %s failed: '%s' Code:<pre>%s</pre>",
+                     labelId, e.getMessage(), JavascriptService.describe(function, input));
+            }
+         }
+         String output = evaluator.takeOutput();
+         if (output != null) {
+            logMessage(datasetId, PersistentLogDAO.DEBUG, "Output while calculating labels: <pre>%s</pre>", output);
+         }
+      }), output -> log.debugf("Output while calculating labels for datasets %s: %s", datasetIds, output));
+      // label values are inserted in batches
+      em.flush();
+
+      for (int datasetId : datasetIds) {
+         //Create new dataset views from the recently created label values
+         em.createNativeQuery("DELETE FROM dataset_view WHERE dataset_id = ?1").setParameter(1, datasetId).executeUpdate();
+         em.createNativeQuery("call calc_dataset_view(?1);").setParameter(1, datasetId).executeUpdate();
+
+         createFingerprint(datasetId, testId);
+         mediator.updateLabels(new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation));
+         if(mediator.testMode())
+            Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.DATASET_UPDATED_LABELS, testId, new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation)));
       }
-
-      FingerprintDAO.deleteById(datasetId);
-      Util.evaluateWithCombinationFunction(extracted,
-              (row)              -> (String) row[2],
-              (row)              -> (row[3] instanceof ArrayNode ? flatten((ArrayNode) row[3]) : (JsonNode) row[3]),
-              (row, result)      -> createLabelValue(datasetId, testId, (int) row[0], Util.convertToJson(result)),
-              (row)              -> createLabelValue(datasetId, testId, (int) row[0], (JsonNode) row[3]),
-              (row, e, jsCode)   -> logMessage(datasetId, PersistentLogDAO.ERROR,
-                      "Evaluation of label %s failed: '%s' Code:<pre>%s</pre>", row[0], e.getMessage(), jsCode),
-              (out)              -> logMessage(datasetId, PersistentLogDAO.DEBUG, "Output while calculating labels: <pre>%s</pre>", out));
-
-      //Create new dataset views from the recently created label values
-      em.createNativeQuery("DELETE FROM dataset_view WHERE dataset_id = ?1").setParameter(1, datasetId).executeUpdate();
-      em.createNativeQuery("call calc_dataset_view(?1);").setParameter(1, datasetId).executeUpdate();
-
-      createFingerprint(datasetId, testId);
-      mediator.updateLabels(new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation));
-      if(mediator.testMode())
-         Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.DATASET_UPDATED_LABELS, testId, new Dataset.LabelsUpdatedEvent(testId, datasetId, isRecalculation)));
    }
    
    @Transactional
@@ -495,7 +606,7 @@ public class DatasetServiceImpl implements DatasetService {
       logMessage(datasetId, PersistentLogDAO.DEBUG, "We thought there's an error in one of the JSONPaths but independent validation did not find any problems.");
    }
 
-   private void createLabelValue(int datasetId, int testId, int labelId, JsonNode value) {
+   private void createLabelValue(int datasetId, int labelId, JsonNode value) {
       LabelValueDAO labelValue = new LabelValueDAO();
       labelValue.datasetId = datasetId;
       labelValue.labelId = labelId;
@@ -529,7 +640,7 @@ public class DatasetServiceImpl implements DatasetService {
       fp.datasetId = datasetId;
       fp.dataset = DatasetDAO.findById(datasetId);
       fp.fingerprint = fpNode;
-      fp.fp_hash = fpNode.hashCode();
+      fp.fp_hash = FingerprintDAO.hash(fpNode);
       if(fp.datasetId > 0 && fp.dataset != null)
          fp.persist();
    }
@@ -542,21 +653,79 @@ public class DatasetServiceImpl implements DatasetService {
       }
    }
 
-   void withRecalculationLock(Runnable runnable) {
-      recalculationLock.lock();
+   void withRecalculationLock(int testId, Runnable runnable) {
+      ReentrantLock lock = recalculationLocks[Math.floorMod(Integer.hashCode(testId), recalculationLocks.length)];
+      long start = System.nanoTime();
+      lock.lock();
+      lockWaitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
       try {
          runnable.run();
       } finally {
-         recalculationLock.unlock();
+         lock.unlock();
       }
    }
 
-   public void onNewDataset(Dataset.EventNew event) {
-      withRecalculationLock(() -> calculateLabelValues(event.testId, event.datasetId, event.labelId, event.isRecalculation));
+   /**
+    * Serializes label calculations for the test across all Horreum instances until the end of current transaction.
+    * The lock must not be held while waiting for a {@link #withRecalculationLock(int, Runnable) stripe lock}:
+    * PostgreSQL cannot see that wait and would not detect the deadlock.
+    */
+   private void lockTestInDatabase(int testId) {
+      long start = System.nanoTime();
+      em.createNativeQuery("SELECT 1 FROM pg_advisory_xact_lock(?1, ?2)")
+            .setParameter(1, RECALCULATION_LOCK_NAMESPACE).setParameter(2, testId).getSingleResult();
+      dbLockWaitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+   }
+
+   public void onNewDatasets(List<Dataset.EventNew> events) {
+      // Datasets are batched only if the rest of the event is identical
+      Map<List<Object>, List<Integer>> batches = events.stream().collect(Collectors.groupingBy(
+            e -> List.of(e.testId, e.labelId, e.isRecalculation), LinkedHashMap::new,
+            Collectors.mapping(e -> e.datasetId, Collectors.toList())));
+      boolean inTransaction = inTransaction();
+      batches.forEach((key, datasetIds) -> {
+         Runnable calculation = () -> calculateLabelValuesWithRetry((int) key.get(0), datasetIds, (int) key.get(1), (boolean) key.get(2));
+         if (inTransaction) {
+            // The database lock taken in the calculation is held until the caller's transaction completes, after
+            // we would release the stripe lock; taking that here could deadlock with a thread that holds the stripe
+            // and waits for our database lock. The database lock alone serializes the calculations.
+            calculation.run();
+         } else {
+            // Our transaction (and the database lock) completes before the stripe lock is released
+            withRecalculationLock((int) key.get(0), calculation);
+         }
+      });
+   }
+
+   private boolean inTransaction() {
+      try {
+         return tm.getStatus() != Status.STATUS_NO_TRANSACTION;
+      } catch (SystemException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private void calculateLabelValuesWithRetry(int testId, List<Integer> datasetIds, int queryLabelId, boolean isRecalculation) {
+      boolean ownTransaction = !inTransaction();
+      for (int retry = 1;; ++retry) {
+         try {
+            calculateLabelValues(testId, datasetIds, queryLabelId, isRecalculation);
+            return;
+         } catch (RuntimeException e) {
+            // We can retry only if the rolled back transaction was ours
+            if (!ownTransaction || retry > Util.MAX_TRANSACTION_RETRIES || !Util.isSerializationFailure(e)) {
+               throw e;
+            }
+            serializationRetries.increment();
+            log.infof("Retrying label calculation for test %d, datasets %s after serialization failure, attempt %d/%d",
+                  testId, datasetIds, retry, Util.MAX_TRANSACTION_RETRIES);
+            Util.backoff(retry);
+         }
+      }
    }
 
    public void onNewDatasetNoLock(Dataset.EventNew event) {
-      calculateLabelValues(event.testId, event.datasetId, event.labelId , event.isRecalculation);
+      calculateLabelValuesWithRetry(event.testId, List.of(event.datasetId), event.labelId, event.isRecalculation);
    }
 
    @Transactional(Transactional.TxType.REQUIRES_NEW)
@@ -0,0 +1,140 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.Arrays;
+
+import io.hyperfoil.tools.horreum.changedetection.DataPointSeries;
+
+/**
+ * Reduces the number of datapoints sent to charts. Both algorithms select a subset of datapoints
+ * (rather than aggregating them) so that the values and dataset IDs remain valid, and always keep
+ * the first and last datapoint.
+ */
+final class Downsampling {
+   static final String LTTB = "lttb";
+   static final String MIN_MAX = "minmax";
+
+   private Downsampling() {
+   }
+
+   /**
+    * @return Indices of selected datapoints in ascending order.
+    */
+   static int[] select(DataPointSeries series, String algorithm, int maxDataPoints) {
+      if (algorithm == null || algorithm.isBlank() || LTTB.equalsIgnoreCase(algorithm)) {
+         return largestTriangleThreeBuckets(series.values, series.epochMillis, maxDataPoints);
+      } else if (MIN_MAX.equalsIgnoreCase(algorithm)) {
+         return minMax(series.values, series.epochMillis, maxDataPoints);
+      } else {
+         throw ServiceException.badRequest("Unknown downsampling algorithm '" + algorithm + "', supported are '" + LTTB + "' and '" + MIN_MAX + "'");
+      }
+   }
+
+   /**
+    * Largest-Triangle-Three-Buckets: splits datapoints into buckets with the same number of datapoints and from each
+    * bucket selects the one that forms the largest triangle with the previously selected datapoint and the average
+    * of the next bucket. This preserves the visual shape of the series, including spikes.
+    */
+   static int[] largestTriangleThreeBuckets(double[] values, long[] timestamps, int threshold) {
+      int n = values.length;
+      if (threshold >= n || threshold <= 0) {
+         return all(n);
+      } else if (threshold < 3) {
+         return threshold == 1 ? new int[] { n - 1 } : new int[] { 0, n - 1 };
+      }
+      int[] selected = new int[threshold];
+      int count = 0;
+      // timestamps relative to the first datapoint retain precision in double arithmetic
+      long origin = timestamps[0];
+      double every = (double) (n - 2) / (threshold - 2);
+      int a = 0;
+      selected[count++] = a;
+      for (int i = 0; i < threshold - 2; ++i) {
+         int averageStart = (int) Math.floor((i + 1) * every) + 1;
+         int averageEnd = Math.min((int) Math.floor((i + 2) * every) + 1, n);
+         double averageX = 0;
+         double averageY = 0;
+         for (int j = averageStart; j < averageEnd; ++j) {
+            averageX += timestamps[j] - origin;
+            averageY += values[j];
+         }
+         int averageLength = averageEnd - averageStart;
+         averageX /= averageLength;
+         averageY /= averageLength;
+
+         int rangeStart = (int) Math.floor(i * every) + 1;
+         int rangeEnd = (int) Math.floor((i + 1) * every) + 1;
+         double pointAX = timestamps[a] - origin;
+         double pointAY = values[a];
+         double maxArea = -1;
+         int next = rangeStart;
+         for (int j = rangeStart; j < rangeEnd; ++j) {
+            double area = Math.abs((pointAX - averageX) * (values[j] - pointAY) - (pointAX - (timestamps[j] - origin)) * (averageY - pointAY));
+            if (area > maxArea) {
+               maxArea = area;
+               next = j;
+            }
+         }
+         selected[count++] = next;
+         a = next;
+      }
+      selected[count++] = n - 1;
+      return selected;
+   }
+
+   /**
+    * Splits the time range into buckets of the same duration and selects the minimum and maximum from each bucket.
+    * Unlike {@link #largestTriangleThreeBuckets(double[], long[], int) LTTB} this never hides outliers.
+    */
+   static int[] minMax(double[] values, long[] timestamps, int maxDataPoints) {
+      int n = values.length;
+      if (maxDataPoints >= n || maxDataPoints <= 0) {
+         return all(n);
+      } else if (maxDataPoints < 4) {
+         // not enough room for a single bucket
+         return largestTriangleThreeBuckets(values, timestamps, maxDataPoints);
+      }
+      // the first and last datapoints are added explicitly
+      int buckets = Math.max(1, (maxDataPoints - 2) / 2);
+      long origin = timestamps[0];
+      double duration = timestamps[n - 1] - origin + 1;
+      int[] min = new int[buckets];
+      int[] max = new int[buckets];
+      Arrays.fill(min, -1);
+      Arrays.fill(max, -1);
+      for (int i = 1; i < n - 1; ++i) {
+         int bucket = Math.min(buckets - 1, (int) ((timestamps[i] - origin) / duration * buckets));
+         if (min[bucket] < 0 || values[i] < values[min[bucket]]) {
+            min[bucket] = i;
+         }
+         if (max[bucket] < 0 || values[i] > values[max[bucket]]) {
+            max[bucket] = i;
+         }
+      }
+      int[] selected = new int[2 * buckets + 2];
+      int count = 0;
+      selected[count++] = 0;
+      for (int bucket = 0; bucket < buckets; ++bucket) {
+         if (min[bucket] < 0) {
+            continue;
+         }
+         int first = Math.min(min[bucket], max[bucket]);
+         int second = Math.max(min[bucket], max[bucket]);
+         selected[count++] = first;
+         if (second != first) {
+            selected[count++] = second;
+         }
+      }
+      if (n > 1) {
+         selected[count++] = n - 1;
+      }
+      return Arrays.copyOf(selected, count);
+   }
+
+   private static int[] all(int n) {
+      int[] indices = new int[n];
+      for (int i = 0; i < n; ++i) {
+         indices[i] = i;
+      }
+      return indices;
+   }
+}
@@ -1,65 +1,313 @@
 package io.hyperfoil.tools.horreum.svc;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.TransactionManager;
 import jakarta.transaction.Transactional;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.type.StandardBasicTypes;
+import org.jboss.logging.Logger;
+
 import io.hyperfoil.tools.horreum.api.alerting.Change;
 import io.hyperfoil.tools.horreum.bus.MessageBus;
+import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
+import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
 import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.entity.data.TestDAO;
 import io.hyperfoil.tools.horreum.events.DatasetChanges;
+import io.hyperfoil.tools.horreum.hibernate.IntArrayType;
+import io.hyperfoil.tools.horreum.mapper.ChangeMapper;
+import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
 import io.hyperfoil.tools.horreum.server.WithRoles;
+import io.quarkus.panache.common.Sort;
 import io.quarkus.runtime.Startup;
+import io.quarkus.scheduler.Scheduled;
 import io.vertx.core.Vertx;
 
+/**
+ * Aggregates changes in the same dataset into a single notification, emitted once there was no new change
+ * for {@link DatasetChanges#EMIT_DELAY}. Pending aggregates are kept either in memory or, with
+ * <code>horreum.alerting.changes.persistent=true</code>, in the database where they survive a restart
+ * and are emitted by whichever replica gets to them first. A persisted aggregate is removed only after it was emitted;
+ * should the emit fail (or the replica stop) it is emitted again once the claim expires.
+ */
 @Startup
 @ApplicationScoped
 public class EventAggregator {
-   private final Map<Integer, DatasetChanges> datasetChanges = new HashMap<>();
+   private static final Logger log = Logger.getLogger(EventAggregator.class);
+   private static final int BATCH_SIZE = 100;
+
+   private final ConcurrentMap<Integer, DatasetChanges> datasetChanges = new ConcurrentHashMap<>();
+   // In memory mode there's exactly one entry for each pending dataset; when the entry is due but the dataset
+   // has received more changes since it was queued, it's queued again with the new emit timestamp.
+   private final PriorityBlockingQueue<Deadline> deadlines = new PriorityBlockingQueue<>();
+   // Earliest deadline with an armed timer
+   private final AtomicLong timerDeadline = new AtomicLong(Long.MAX_VALUE);
+
+   @ConfigProperty(name = "horreum.alerting.changes.persistent", defaultValue = "false")
+   boolean persistent;
+
+   @ConfigProperty(name = "horreum.alerting.changes.lease", defaultValue = "1m")
+   Duration lease;
 
    @Inject
    Vertx vertx;
 
    @Inject
-   MessageBus messageBus;
+   EntityManager em;
+
+   @Inject
+   TransactionManager tm;
 
    @Inject
    ServiceMediator mediator;
 
-   private long timerId = -1;
+   @Inject
+   MessageBus messageBus;
 
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    @Transactional
-   public synchronized void onNewChange(Change.Event event) {
-      datasetChanges.computeIfAbsent(event.dataset.id, id -> {
-         String fingerprint = DatasetDAO.getEntityManager().getReference(DatasetDAO.class, event.dataset.id).getFingerprint();
-         return new DatasetChanges(event.dataset, fingerprint, event.testName, event.notify);
-      }).addChange(event);
-      handleDatasetChanges();
+   public void onNewChange(Change.Event event) {
+      int datasetId = event.dataset.id;
+      if (persistent) {
+         long emitTimestamp = System.currentTimeMillis() + DatasetChanges.EMIT_DELAY;
+         em.createNativeQuery("INSERT INTO dataset_changes_queue AS q (dataset_id, emit_at, notify, changes) VALUES (?1, ?2, ?3, ARRAY[?4]) " +
+                     "ON CONFLICT (dataset_id) DO UPDATE SET emit_at = EXCLUDED.emit_at, notify = q.notify OR EXCLUDED.notify, changes = q.changes || EXCLUDED.changes")
+               .unwrap(NativeQuery.class)
+               .setParameter(1, datasetId)
+               .setParameter(2, Instant.ofEpochMilli(emitTimestamp), StandardBasicTypes.INSTANT)
+               .setParameter(3, event.notify)
+               .setParameter(4, event.change.id)
+               .executeUpdate();
+         Util.registerTxSynchronization(tm, status -> schedule(emitTimestamp));
+         return;
+      }
+      String fingerprint = datasetChanges.containsKey(datasetId) ? null : fingerprint(datasetId);
+      boolean[] created = new boolean[1];
+      DatasetChanges changes = datasetChanges.compute(datasetId, (id, current) -> {
+         if (current == null) {
+            current = new DatasetChanges(event.dataset, fingerprint != null ? fingerprint : fingerprint(id), event.testName, event.notify);
+            created[0] = true;
+         }
+         current.addChange(event);
+         return current;
+      });
+      if (created[0]) {
+         long emitTimestamp = changes.emitTimestamp();
+         deadlines.add(new Deadline(emitTimestamp, datasetId));
+         schedule(emitTimestamp);
+      }
    }
 
-   @Transactional
-   void handleDatasetChanges() {
+   private String fingerprint(int datasetId) {
+      return em.getReference(DatasetDAO.class, datasetId).getFingerprint();
+   }
+
+   private void schedule(long deadline) {
+      long current;
+      do {
+         current = timerDeadline.get();
+         if (current <= deadline) {
+            // the timer will fire earlier and re-schedule
+            return;
+         }
+      } while (!timerDeadline.compareAndSet(current, deadline));
+      // Timer armed earlier for a later deadline is not cancelled; when it fires there's just nothing to do
+      vertx.setTimer(Math.max(1, deadline - System.currentTimeMillis()), timerId -> {
+         timerDeadline.compareAndSet(deadline, Long.MAX_VALUE);
+         mediator.executeBlocking(mediator::emitDatasetChanges);
+      });
+   }
+
+   void emitDue() {
+      if (persistent) {
+         mediator.emitPersistedDatasetChanges();
+         return;
+      }
       long now = System.currentTimeMillis();
-      while (true) {
-         DatasetChanges next = this.datasetChanges.values().stream().reduce((dc1, dc2) -> dc1.emitTimestamp() < dc2.emitTimestamp() ? dc1 : dc2).orElse(null);
-         if (next == null) {
+      for (;;) {
+         Deadline head = deadlines.poll();
+         if (head == null) {
             return;
-         } else if (next.emitTimestamp() <= now) {
-            mediator.executeBlocking(() -> mediator.newDatasetChanges(next)) ;
-            datasetChanges.remove(next.dataset.id);
-         } else {
-            if (timerId >= 0) {
-               vertx.cancelTimer(timerId);
-            }
-            timerId = vertx.setTimer(next.emitTimestamp() - now,
-                  timerId -> messageBus.executeForTest(next.dataset.testId, this::handleDatasetChanges));
+         } else if (head.timestamp > now) {
+            deadlines.add(head);
+            schedule(head.timestamp);
             return;
          }
+         DatasetChanges[] due = new DatasetChanges[1];
+         DatasetChanges postponed = datasetChanges.computeIfPresent(head.datasetId, (id, current) -> {
+            if (current.emitTimestamp() <= now) {
+               due[0] = current;
+               return null;
+            }
+            return current;
+         });
+         if (due[0] != null) {
+            emit(due[0]);
+         } else if (postponed != null) {
+            deadlines.add(new Deadline(postponed.emitTimestamp(), head.datasetId));
+         }
+      }
+   }
+
+   private boolean emit(DatasetChanges changes) {
+      try {
+         mediator.newDatasetChanges(changes);
+         if (mediator.testMode()) {
+            messageBus.publish(MessageBusChannels.DATASET_CHANGES_NEW, changes.dataset.testId, changes);
+         }
+         return true;
+      } catch (Throwable t) {
+         log.errorf(t, "Failed to emit changes in dataset %d", changes.dataset.id);
+         return false;
+      }
+   }
+
+   /**
+    * Claims pending aggregates from the database and emits these after the claim is committed;
+    * aggregates locked by another replica are skipped.
+    *
+    * @return True if there could be more due aggregates.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   boolean emitPersisted() {
+      Instant now = Instant.now();
+      @SuppressWarnings("unchecked")
+      List<Object[]> rows = em.createNativeQuery("SELECT dataset_id, notify, changes FROM dataset_changes_queue " +
+                  "WHERE emit_at <= ?1 ORDER BY emit_at LIMIT ?2 FOR UPDATE SKIP LOCKED")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, now, StandardBasicTypes.INSTANT)
+            .setParameter(2, BATCH_SIZE)
+            .addScalar("dataset_id", StandardBasicTypes.INTEGER)
+            .addScalar("notify", StandardBasicTypes.BOOLEAN)
+            .addScalar("changes", IntArrayType.INSTANCE)
+            .getResultList();
+      if (rows.size() < BATCH_SIZE) {
+         // aggregates postponed by further changes; those already due are being emitted by another replica
+         Instant next = em.unwrap(Session.class).createNativeQuery("SELECT MIN(emit_at) FROM dataset_changes_queue WHERE emit_at > ?1", Instant.class)
+               .setParameter(1, now, StandardBasicTypes.INSTANT).getResultStream().filter(Objects::nonNull).findFirst().orElse(null);
+         if (next != null) {
+            Util.registerTxSynchronization(tm, status -> schedule(next.toEpochMilli()));
+         }
+      }
+      if (rows.isEmpty()) {
+         return false;
       }
+      List<Integer> claimed = new ArrayList<>(rows.size());
+      List<Integer> obsolete = new ArrayList<>();
+      List<DatasetChanges> due = new ArrayList<>(rows.size());
+      List<int[]> dueChangeIds = new ArrayList<>(rows.size());
+      for (Object[] row : rows) {
+         int datasetId = (int) row[0];
+         DatasetChanges changes = load(datasetId, (boolean) row[1], (int[]) row[2]);
+         if (changes == null) {
+            obsolete.add(datasetId);
+         } else {
+            claimed.add(datasetId);
+            due.add(changes);
+            dueChangeIds.add((int[]) row[2]);
+         }
+      }
+      if (!obsolete.isEmpty()) {
+         em.createNativeQuery("DELETE FROM dataset_changes_queue WHERE dataset_id = ANY(?1)")
+               .unwrap(NativeQuery.class)
+               .setParameter(1, obsolete.stream().mapToInt(Integer::intValue).toArray(), IntArrayType.INSTANCE)
+               .executeUpdate();
+      }
+      if (!claimed.isEmpty()) {
+         // The claim expires if this replica fails to emit the aggregate (or stops), then anyone can emit it again
+         Instant expires = now.plus(lease);
+         em.createNativeQuery("UPDATE dataset_changes_queue SET emit_at = ?1 WHERE dataset_id = ANY(?2)")
+               .unwrap(NativeQuery.class)
+               .setParameter(1, expires, StandardBasicTypes.INSTANT)
+               .setParameter(2, claimed.stream().mapToInt(Integer::intValue).toArray(), IntArrayType.INSTANCE)
+               .executeUpdate();
+         // Notifications are sent only after the claim is committed, so that the rows are not locked while notifying
+         Util.registerTxSynchronization(tm, status -> schedule(expires.toEpochMilli()));
+         Util.doAfterCommit(tm, () -> mediator.executeBlocking(() -> {
+            for (int i = 0; i < due.size(); ++i) {
+               DatasetChanges changes = due.get(i);
+               if (emit(changes)) {
+                  acknowledge(changes.dataset.id, dueChangeIds.get(i));
+               }
+            }
+         }));
+      }
+      return rows.size() == BATCH_SIZE;
    }
 
+   /**
+    * Removes emitted changes from the queue. Changes added to the aggregate while it was being emitted stay queued.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   void acknowledge(int datasetId, int[] changeIds) {
+      em.createNativeQuery("UPDATE dataset_changes_queue SET changes = ARRAY(SELECT c FROM unnest(changes) AS c WHERE c <> ALL(?2)) WHERE dataset_id = ?1")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, datasetId)
+            .setParameter(2, changeIds, IntArrayType.INSTANCE)
+            .executeUpdate();
+      em.createNativeQuery("DELETE FROM dataset_changes_queue WHERE dataset_id = ?1 AND cardinality(changes) = 0")
+            .setParameter(1, datasetId)
+            .executeUpdate();
+   }
+
+   private DatasetChanges load(int datasetId, boolean notify, int[] changeIds) {
+      DatasetDAO dataset = DatasetDAO.findById(datasetId);
+      if (dataset == null) {
+         return null;
+      }
+      List<ChangeDAO> changeList = ChangeDAO.list("id IN ?1", Sort.by("id"), Arrays.stream(changeIds).boxed().toList());
+      if (changeList.isEmpty()) {
+         log.debugf("Changes in dataset %d were deleted before emitting", datasetId);
+         return null;
+      }
+      TestDAO test = TestDAO.findById(dataset.testid);
+      String testName = test == null ? "unknown" : test.name;
+      DatasetChanges changes = new DatasetChanges(DatasetMapper.fromInfo(dataset.getInfo()), fingerprint(datasetId), testName, notify);
+      for (ChangeDAO change : changeList) {
+         Change.Event event = new Change.Event(ChangeMapper.from(change), testName, changes.dataset, notify);
+         changes.addChange(event);
+      }
+      return changes;
+   }
+
+   // Picks up aggregates left behind by a replica that has stopped
+   @Scheduled(every = "{horreum.alerting.changes.check}", delayed = "{horreum.alerting.changes.check}")
+   void emitOrphaned() {
+      if (persistent) {
+         mediator.emitPersistedDatasetChanges();
+      }
+   }
+
+   private static final class Deadline implements Comparable<Deadline> {
+      final long timestamp;
+      final int datasetId;
+
+      Deadline(long timestamp, int datasetId) {
+         this.timestamp = timestamp;
+         this.datasetId = datasetId;
+      }
+
+      @Override
+      public int compareTo(Deadline other) {
+         return Long.compare(timestamp, other.timestamp);
+      }
+   }
 }
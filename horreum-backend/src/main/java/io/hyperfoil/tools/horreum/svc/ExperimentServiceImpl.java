@@ -64,6 +64,8 @@ public class ExperimentServiceImpl implements ExperimentService {
    ServiceMediator mediator;
    @Inject
    MessageBus messageBus;
+   @Inject
+   JavascriptService jsService;
 
    @Inject
    TransactionManager tm;
@@ -177,7 +179,7 @@ public class ExperimentServiceImpl implements ExperimentService {
             .getResultList();
 
       List<Integer> matchingProfile = new ArrayList<>();
-      Util.evaluateWithCombinationFunction(selectorRows, r -> Util.makeFilter((String) r[1]), r -> (JsonNode) r[2], (r, result) -> {
+      jsService.evaluateWithCombinationFunction(selectorRows, r -> Util.makeFilter((String) r[1]), r -> (JsonNode) r[2], (r, result) -> {
          if (result.asBoolean()) {
             matchingProfile.add((Integer) r[0]);
          }
@@ -215,7 +217,7 @@ public class ExperimentServiceImpl implements ExperimentService {
 
       Map<Integer, List<Integer>> baselines = new HashMap<>();
       Map<Integer, List<DatasetLogDAO>> perProfileLogs = matchingProfile.stream().collect(Collectors.toMap(Function.identity(), id -> new ArrayList<>(logs)));
-      Util.evaluateWithCombinationFunction(baselineRows, r -> Util.makeFilter((String) r[1]), r -> (JsonNode) r[2], (r, v) -> {
+      jsService.evaluateWithCombinationFunction(baselineRows, r -> Util.makeFilter((String) r[1]), r -> (JsonNode) r[2], (r, v) -> {
          if (v.asBoolean()) {
             baselines.computeIfAbsent((Integer) r[0], profileId -> new ArrayList<>()).add((Integer) r[3]);
          }
@@ -0,0 +1,482 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Evaluates user-provided Javascript functions (transformers, labels, variables, filters...).
+ * All contexts share a single {@link Engine} and are borrowed from a bounded pool so that we don't
+ * set up the interpreter for each evaluation. Builtin objects (including prototypes) are frozen when the context
+ * is created and globals defined by the evaluated code are removed before the context is returned to the pool,
+ * so one evaluation cannot affect another. Input is passed to functions as {@link JsonProxy lazy views}
+ * of the JSON tree.
+ * <p>
+ * Each context keeps compiled functions, cached by their source code; repeated evaluation in the same context only
+ * invokes the cached value. The cache should be {@link #invalidate(String) invalidated} when the owner of the function
+ * (transformer, label, variable) changes. What is cached is a factory that instantiates the function for each
+ * evaluation, so the function can't keep any state in closures.
+ */
+@ApplicationScoped
+public class JavascriptService {
+   private static final Logger log = Logger.getLogger(JavascriptService.class);
+   // Assigning a property inherited from a frozen prototype fails; properties that are commonly set on instances
+   // (e.g. name of a custom error) are turned into accessors that define the property on the instance instead.
+   private static final Source FREEZE_BUILTINS = Source.newBuilder("js", """
+         (function() {
+            const { defineProperty, freeze, getOwnPropertyDescriptor, getPrototypeOf } = Object;
+            const ownKeys = Reflect.ownKeys;
+            const global = globalThis;
+            const allowOverride = (proto, key) => {
+               const desc = getOwnPropertyDescriptor(proto, key);
+               if (desc === undefined || !('value' in desc) || !desc.configurable) {
+                  return;
+               }
+               const value = desc.value;
+               defineProperty(proto, key, {
+                  get() {
+                     return value;
+                  },
+                  set(newValue) {
+                     if (this === proto) {
+                        throw new TypeError("Cannot assign to read only property '" + String(key) + "'");
+                     } else if (this !== null && (typeof this === 'object' || typeof this === 'function')) {
+                        defineProperty(this, key, { value: newValue, writable: true, enumerable: true, configurable: true });
+                     }
+                  },
+                  enumerable: desc.enumerable,
+                  configurable: false,
+               });
+            };
+            for (const type of [Object, Function, Array, Promise, Error, EvalError, RangeError, ReferenceError, SyntaxError, TypeError, URIError]) {
+               for (const key of ['constructor', 'name', 'message', 'toString', 'toLocaleString', 'valueOf']) {
+                  allowOverride(type.prototype, key);
+               }
+            }
+            // The global object itself stays extensible: sloppy code may assign undeclared variables
+            const visited = new Set([global]);
+            const deepFreeze = o => {
+               if (o === null || (typeof o !== 'object' && typeof o !== 'function') || visited.has(o)) {
+                  return;
+               }
+               visited.add(o);
+               freeze(o);
+               deepFreeze(getPrototypeOf(o));
+               for (const key of ownKeys(o)) {
+                  const desc = getOwnPropertyDescriptor(o, key);
+                  deepFreeze(desc.value);
+                  deepFreeze(desc.get);
+                  deepFreeze(desc.set);
+               }
+            };
+            deepFreeze(getPrototypeOf(global));
+            for (const key of ownKeys(global)) {
+               const desc = getOwnPropertyDescriptor(global, key);
+               if (desc.configurable) {
+                  defineProperty(global, key, 'value' in desc ? { writable: false, configurable: false } : { configurable: false });
+               }
+               deepFreeze(desc.value);
+               deepFreeze(desc.get);
+               deepFreeze(desc.set);
+            }
+         })()
+         """, "freeze-builtins.js").buildLiteral();
+
+   @ConfigProperty(name = "horreum.js.pool.max-size", defaultValue = "16")
+   int maxPoolSize;
+
+   @ConfigProperty(name = "horreum.js.pool.acquire-timeout", defaultValue = "5s")
+   Duration acquireTimeout;
+
+   @ConfigProperty(name = "horreum.js.function-cache.max-size", defaultValue = "1000")
+   int functionCacheSize;
+
+   @Inject
+   MeterRegistry meterRegistry;
+
+   private final BlockingQueue<PooledContext> idle = new LinkedBlockingQueue<>();
+   // number of contexts owned by the pool, either idle or in use
+   private final AtomicInteger poolSize = new AtomicInteger();
+   private final AtomicInteger active = new AtomicInteger();
+   // All open contexts, either idle or in use, so that we can invalidate their cached functions
+   private final Set<PooledContext> contexts = ConcurrentHashMap.newKeySet();
+   // Number of contexts borrowed by current thread; nested evaluation must not wait for the pool
+   private final ThreadLocal<Integer> borrowed = ThreadLocal.withInitial(() -> 0);
+   private Engine engine;
+   private Counter overflowCounter;
+   private Timer acquireTimer;
+   private Counter cacheHits;
+   private Counter cacheMisses;
+
+   @PostConstruct
+   void init() {
+      engine = Engine.newBuilder().option("engine.WarnInterpreterOnly", "false").build();
+      Gauge.builder("horreum.js.pool.size", poolSize, AtomicInteger::get)
+            .description("Number of Javascript contexts held by the pool").register(meterRegistry);
+      Gauge.builder("horreum.js.pool.active", active, AtomicInteger::get)
+            .description("Number of Javascript contexts currently in use").register(meterRegistry);
+      Gauge.builder("horreum.js.pool.idle", idle, BlockingQueue::size)
+            .description("Number of Javascript contexts ready to be used").register(meterRegistry);
+      overflowCounter = Counter.builder("horreum.js.pool.overflow")
+            .description("Evaluations that did not get a pooled context in time and used a temporary one").register(meterRegistry);
+      acquireTimer = Timer.builder("horreum.js.pool.wait")
+            .description("Time spent waiting for a pooled context").register(meterRegistry);
+      cacheHits = Counter.builder("horreum.js.function-cache.hits")
+            .description("Evaluations that reused a parsed function").register(meterRegistry);
+      cacheMisses = Counter.builder("horreum.js.function-cache.misses")
+            .description("Evaluations that had to parse the function").register(meterRegistry);
+   }
+
+   @PreDestroy
+   void destroy() {
+      PooledContext ctx;
+      while ((ctx = idle.poll()) != null) {
+         ctx.close();
+      }
+      engine.close();
+   }
+
+   <T> T evaluateOnce(String function, JsonNode input, Function<Value, T> processResult, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
+      return evaluateInContext(evaluator -> {
+         try {
+            return processResult.apply(evaluator.evaluate(function, input));
+         } catch (PolyglotException e) {
+            onException.accept(describe(function, input), e);
+            return null;
+         }
+      }, onOutput);
+   }
+
+   boolean evaluateTest(String function, JsonNode input,
+                        Predicate<Value> onNotBoolean, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
+      Boolean res = evaluateOnce(Util.makeFilter(function), input, result -> {
+         if (result.isBoolean()) {
+            return result.asBoolean();
+         } else {
+            return onNotBoolean.test(result);
+         }
+      }, onException, onOutput);
+      return res != null && res;
+   }
+
+   /*
+    * Evaluates a List of Objects, executing Javascript Combination Functions, if defined.
+    * Callbacks for JS evaluation exceptions and output logging allow for custom error handling
+    * */
+   <T> void evaluateWithCombinationFunction(List<T> inputData,
+                                            Function<T, String> jsCombinationFunction,
+                                            Function<T, JsonNode> evaluationInputObject,
+                                            BiConsumer<T, Value> jsFuncResultConsumer,
+                                            Consumer<T> nonFuncResultConsumer,
+                                            Util.ExecutionExceptionConsumer<T> onJsEvaluationException,
+                                            Consumer<String> jsOutputConsumer) {
+      withEvaluator(evaluator -> {
+         for (T element : inputData) {
+            String jsFuncBody = jsCombinationFunction.apply(element);
+            if (jsFuncBody != null && !jsFuncBody.isBlank()) {
+               JsonNode input = evaluationInputObject.apply(element);
+               try {
+                  Value value = evaluator.evaluate(jsFuncBody, input);
+                  jsFuncResultConsumer.accept(element, value);
+               } catch (PolyglotException e) {
+                  onJsEvaluationException.accept(element, e, describe(jsFuncBody, input));
+               }
+            } else {
+               nonFuncResultConsumer.accept(element);
+            }
+         }
+      }, jsOutputConsumer);
+   }
+
+   /**
+    * Borrows a context for evaluation of multiple functions. The {@link Evaluator} and any {@link Value values}
+    * it produced must not be used after the action completes.
+    */
+   void withEvaluator(Consumer<Evaluator> action, Consumer<String> onOutput) {
+      evaluateInContext(evaluator -> {
+         action.accept(evaluator);
+         return null;
+      }, onOutput);
+   }
+
+   /**
+    * Like {@link #withEvaluator(Consumer, Consumer)} but returns the result of the action.
+    */
+   <T> T evaluateInContext(Function<Evaluator, T> action, Consumer<String> onOutput) {
+      PooledContext ctx = acquire();
+      String output;
+      try {
+         return action.apply(new Evaluator(ctx));
+      } finally {
+         output = ctx.takeOutput();
+         release(ctx);
+         if (output != null) {
+            onOutput.accept(output);
+         }
+      }
+   }
+
+   /**
+    * Drops compiled function from the cache of all contexts. Should be called when the function is modified or removed.
+    */
+   void invalidate(String function) {
+      if (function == null || function.isBlank()) {
+         return;
+      }
+      for (PooledContext ctx : contexts) {
+         ctx.invalidate(function);
+      }
+   }
+
+   boolean isCached(String function) {
+      for (PooledContext ctx : contexts) {
+         if (ctx.isCached(function)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Code equivalent to the evaluation, used for error reporting.
+    */
+   static String describe(String function, JsonNode input) {
+      return "const __obj = " + input + ";\n" +
+            "const __func = " + function + ";\n" +
+            "__func(__obj)";
+   }
+
+   private PooledContext acquire() {
+      PooledContext ctx = idle.poll();
+      if (ctx == null) {
+         if (poolSize.incrementAndGet() <= maxPoolSize) {
+            try {
+               ctx = new PooledContext(true);
+            } catch (RuntimeException e) {
+               poolSize.decrementAndGet();
+               throw e;
+            }
+         } else if (borrowed.get() > 0) {
+            poolSize.decrementAndGet();
+            // This thread holds a context already; waiting could only time out if all contexts are held by it
+            log.debug("No Javascript context available for nested evaluation, creating a temporary one.");
+            overflowCounter.increment();
+            ctx = new PooledContext(false);
+         } else {
+            poolSize.decrementAndGet();
+            long start = System.nanoTime();
+            try {
+               ctx = idle.poll(acquireTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            acquireTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (ctx == null) {
+               // Rather than failing (or deadlocking on nested evaluation) we'll use a context outside the pool
+               log.debugf("No Javascript context available within %s, creating a temporary one.", acquireTimeout);
+               overflowCounter.increment();
+               ctx = new PooledContext(false);
+            }
+         }
+      }
+      active.incrementAndGet();
+      borrowed.set(borrowed.get() + 1);
+      ctx.context.enter();
+      return ctx;
+   }
+
+   private void release(PooledContext ctx) {
+      borrowed.set(borrowed.get() - 1);
+      boolean reusable = ctx.pooled && !ctx.broken && ctx.removeGlobals();
+      try {
+         ctx.context.leave();
+      } finally {
+         active.decrementAndGet();
+      }
+      if (reusable) {
+         idle.add(ctx);
+      } else {
+         if (ctx.pooled) {
+            poolSize.decrementAndGet();
+         }
+         ctx.close();
+      }
+   }
+
+   private static String wrapFunction(String function) {
+      // Evaluates to a factory that declares the function in its own scope, not clashing with previous evaluations;
+      // newline protects against trailing line comment
+      return "(function() {\nconst __func = " + function + "\n;\nreturn __func;\n})";
+   }
+
+   final class Evaluator {
+      private final PooledContext ctx;
+
+      private Evaluator(PooledContext ctx) {
+         this.ctx = ctx;
+      }
+
+      /**
+       * Executes the function with the input as its only argument.
+       *
+       * @param function Source code of the function, e.g. <code>value => value * 2</code>
+       * @param input Argument for the function
+       * @return Result of the invocation; valid only while the context is borrowed.
+       */
+      Value evaluate(String function, JsonNode input) {
+         try {
+            Value func = ctx.factory(function).execute();
+            return func.execute(JsonProxy.wrap(input));
+         } catch (PolyglotException e) {
+            if (e.isInternalError() || e.isCancelled() || e.isResourceExhausted()) {
+               ctx.broken = true;
+            }
+            throw e;
+         }
+      }
+
+      /**
+       * @return Output written by functions evaluated since the last call, or <code>null</code> if there was none.
+       */
+      String takeOutput() {
+         return ctx.takeOutput();
+      }
+   }
+
+   private final class PooledContext {
+      final boolean pooled;
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final Context context;
+      final Value bindings;
+      final Set<String> builtins;
+      // Guarded by itself; the lock is contended only by invalidation
+      final Map<String, Value> functions = new LinkedHashMap<>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Value> eldest) {
+            return size() > functionCacheSize;
+         }
+      };
+      boolean broken;
+
+      PooledContext(boolean pooled) {
+         this.pooled = pooled;
+         context = Context.newBuilder("js").engine(engine).out(out).err(out)
+               .allowExperimentalOptions(true)
+               // input is passed as proxies; this lets functions use e.g. Array.prototype.map on them
+               .option("js.foreign-object-prototype", "true")
+               // RegExp.$1, RegExp.lastMatch etc. would expose input of the previous evaluation
+               .option("js.regexp-static-result", "false")
+               .build();
+         try {
+            context.eval(FREEZE_BUILTINS);
+         } catch (PolyglotException e) {
+            context.close();
+            throw e;
+         }
+         bindings = context.getBindings("js");
+         builtins = new HashSet<>(bindings.getMemberKeys());
+         contexts.add(this);
+      }
+
+      /**
+       * Must be called only while the context is entered.
+       */
+      Value factory(String function) {
+         synchronized (functions) {
+            Value factory = functions.get(function);
+            if (factory != null) {
+               cacheHits.increment();
+               return factory;
+            }
+         }
+         cacheMisses.increment();
+         // The engine shares the parsed code between contexts evaluating the same source
+         Value factory = context.eval(Source.create("js", wrapFunction(function)));
+         synchronized (functions) {
+            functions.put(function, factory);
+         }
+         return factory;
+      }
+
+      void invalidate(String function) {
+         synchronized (functions) {
+            functions.remove(function);
+         }
+      }
+
+      boolean isCached(String function) {
+         synchronized (functions) {
+            return functions.containsKey(function);
+         }
+      }
+
+      String takeOutput() {
+         if (out.size() == 0) {
+            return null;
+         }
+         String output = out.toString(StandardCharsets.UTF_8);
+         out.reset();
+         return output;
+      }
+
+      boolean removeGlobals() {
+         try {
+            for (String key : bindings.getMemberKeys()) {
+               if (!builtins.contains(key)) {
+                  bindings.removeMember(key);
+               }
+            }
+            return true;
+         } catch (PolyglotException | UnsupportedOperationException | IllegalStateException e) {
+            log.debug("Cannot clean up Javascript context, discarding it.", e);
+            return false;
+         }
+      }
+
+      void close() {
+         contexts.remove(this);
+         synchronized (functions) {
+            functions.clear();
+         }
+         try {
+            context.close();
+         } catch (PolyglotException | IllegalStateException e) {
+            log.debug("Failed to close Javascript context", e);
+         }
+      }
+   }
+}
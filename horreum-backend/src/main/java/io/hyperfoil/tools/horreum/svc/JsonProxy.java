@@ -0,0 +1,284 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.Proxy;
+import org.graalvm.polyglot.proxy.ProxyArray;
+import org.graalvm.polyglot.proxy.ProxyObject;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Exposes {@link JsonNode} trees to Javascript without serializing them to source code.
+ * The views are lazy: nested nodes are wrapped only when accessed. Javascript code can modify
+ * the views but the modifications are never written to the underlying node; instead the view
+ * switches to a copy of its members.
+ */
+interface JsonProxy extends Proxy {
+
+   /**
+    * @return Independent copy of the current state of this view, including modifications.
+    */
+   JsonNode toJsonNode();
+
+   boolean isModified();
+
+   /**
+    * Converts the node to a value that can be passed to Javascript.
+    */
+   static Object wrap(JsonNode node) {
+      if (node == null || node.isNull() || node.isMissingNode()) {
+         return null;
+      } else if (node.isObject()) {
+         return new ObjectView((ObjectNode) node);
+      } else if (node.isArray()) {
+         return new ArrayView((ArrayNode) node);
+      } else if (node.isTextual()) {
+         return node.textValue();
+      } else if (node.isBoolean()) {
+         return node.booleanValue();
+      } else if (node.isInt()) {
+         return node.intValue();
+      } else if (node.isLong()) {
+         return node.longValue();
+      } else if (node.isNumber()) {
+         // Javascript has no native big integer/decimal representation
+         return node.doubleValue();
+      } else {
+         return node.asText();
+      }
+   }
+
+   private static Object unwrap(Value value) {
+      if (value.isProxyObject() && value.asProxyObject() instanceof JsonProxy proxy) {
+         return proxy;
+      }
+      return value;
+   }
+
+   private static JsonNode toJsonNode(Object element) {
+      if (element == null) {
+         return JsonNodeFactory.instance.nullNode();
+      } else if (element instanceof JsonProxy proxy) {
+         return proxy.toJsonNode();
+      } else if (element instanceof Value value) {
+         return Util.convertToJson(value);
+      } else {
+         return Util.OBJECT_MAPPER.valueToTree(element);
+      }
+   }
+
+   final class ObjectView implements ProxyObject, JsonProxy {
+      private final ObjectNode node;
+      // wrapped objects and arrays, to keep identity and nested modifications
+      private Map<String, JsonProxy> children;
+      // members after the first modification
+      private LinkedHashMap<String, Object> copy;
+
+      private ObjectView(ObjectNode node) {
+         this.node = node;
+      }
+
+      @Override
+      public Object getMember(String key) {
+         if (copy != null) {
+            return copy.get(key);
+         }
+         JsonNode child = node.get(key);
+         if (child == null || !child.isContainerNode()) {
+            return wrap(child);
+         }
+         if (children == null) {
+            children = new HashMap<>();
+         }
+         return children.computeIfAbsent(key, k -> (JsonProxy) wrap(child));
+      }
+
+      @Override
+      public Object getMemberKeys() {
+         if (copy != null) {
+            return ProxyArray.fromList(new ArrayList<>(copy.keySet()));
+         }
+         List<Object> keys = new ArrayList<>(node.size());
+         node.fieldNames().forEachRemaining(keys::add);
+         return ProxyArray.fromList(keys);
+      }
+
+      @Override
+      public boolean hasMember(String key) {
+         return copy != null ? copy.containsKey(key) : node.has(key);
+      }
+
+      @Override
+      public void putMember(String key, Value value) {
+         materialize().put(key, unwrap(value));
+      }
+
+      @Override
+      public boolean removeMember(String key) {
+         LinkedHashMap<String, Object> members = materialize();
+         if (!members.containsKey(key)) {
+            return false;
+         }
+         members.remove(key);
+         return true;
+      }
+
+      private LinkedHashMap<String, Object> materialize() {
+         if (copy == null) {
+            LinkedHashMap<String, Object> members = new LinkedHashMap<>();
+            for (Iterator<String> it = node.fieldNames(); it.hasNext(); ) {
+               String name = it.next();
+               members.put(name, getMember(name));
+            }
+            copy = members;
+            children = null;
+         }
+         return copy;
+      }
+
+      @Override
+      public boolean isModified() {
+         return copy != null || (children != null && children.values().stream().anyMatch(JsonProxy::isModified));
+      }
+
+      @Override
+      public JsonNode toJsonNode() {
+         if (!isModified()) {
+            return node.deepCopy();
+         }
+         ObjectNode result = JsonNodeFactory.instance.objectNode();
+         if (copy != null) {
+            copy.forEach((key, element) -> result.set(key, JsonProxy.toJsonNode(element)));
+         } else {
+            for (var it = node.fields(); it.hasNext(); ) {
+               var entry = it.next();
+               JsonProxy child = children.get(entry.getKey());
+               result.set(entry.getKey(), child != null ? child.toJsonNode() : entry.getValue().deepCopy());
+            }
+         }
+         return result;
+      }
+
+      @Override
+      public String toString() {
+         return toJsonNode().toString();
+      }
+   }
+
+   final class ArrayView implements ProxyArray, JsonProxy {
+      private final ArrayNode node;
+      private JsonProxy[] children;
+      private ArrayList<Object> copy;
+
+      private ArrayView(ArrayNode node) {
+         this.node = node;
+      }
+
+      @Override
+      public Object get(long index) {
+         if (copy != null) {
+            return copy.get(checkIndex(index, copy.size()));
+         }
+         int i = checkIndex(index, node.size());
+         JsonNode child = node.get(i);
+         if (!child.isContainerNode()) {
+            return wrap(child);
+         }
+         if (children == null) {
+            children = new JsonProxy[node.size()];
+         }
+         if (children[i] == null) {
+            children[i] = (JsonProxy) wrap(child);
+         }
+         return children[i];
+      }
+
+      @Override
+      public void set(long index, Value value) {
+         ArrayList<Object> elements = materialize();
+         if (index < 0 || index > Integer.MAX_VALUE) {
+            throw new ArrayIndexOutOfBoundsException("Invalid index " + index);
+         }
+         while (elements.size() <= index) {
+            elements.add(null);
+         }
+         elements.set((int) index, unwrap(value));
+      }
+
+      @Override
+      public boolean remove(long index) {
+         ArrayList<Object> elements = materialize();
+         elements.remove(checkIndex(index, elements.size()));
+         return true;
+      }
+
+      @Override
+      public long getSize() {
+         return copy != null ? copy.size() : node.size();
+      }
+
+      private static int checkIndex(long index, int size) {
+         if (index < 0 || index >= size) {
+            throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+         }
+         return (int) index;
+      }
+
+      private ArrayList<Object> materialize() {
+         if (copy == null) {
+            ArrayList<Object> elements = new ArrayList<>(node.size());
+            for (int i = 0; i < node.size(); ++i) {
+               elements.add(get(i));
+            }
+            copy = elements;
+            children = null;
+         }
+         return copy;
+      }
+
+      @Override
+      public boolean isModified() {
+         if (copy != null) {
+            return true;
+         } else if (children != null) {
+            for (JsonProxy child : children) {
+               if (child != null && child.isModified()) {
+                  return true;
+               }
+            }
+         }
+         return false;
+      }
+
+      @Override
+      public JsonNode toJsonNode() {
+         if (!isModified()) {
+            return node.deepCopy();
+         }
+         ArrayNode result = JsonNodeFactory.instance.arrayNode();
+         if (copy != null) {
+            copy.forEach(element -> result.add(JsonProxy.toJsonNode(element)));
+         } else {
+            for (int i = 0; i < node.size(); ++i) {
+               result.add(children[i] != null ? children[i].toJsonNode() : node.get(i).deepCopy());
+            }
+         }
+         return result;
+      }
+
+      @Override
+      public String toString() {
+         return toJsonNode().toString();
+      }
+   }
+}
@@ -1,6 +1,5 @@
 package io.hyperfoil.tools.horreum.svc;
 
-import java.io.ByteArrayOutputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,7 +25,6 @@ import io.hyperfoil.tools.horreum.api.report.TableReport;
 import io.hyperfoil.tools.horreum.entity.report.*;
 import io.hyperfoil.tools.horreum.mapper.ReportCommentMapper;
 import io.hyperfoil.tools.horreum.mapper.TableReportMapper;
-import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.PolyglotException;
 import org.graalvm.polyglot.Value;
 import org.hibernate.Hibernate;
@@ -53,10 +51,6 @@ import io.quarkus.security.identity.SecurityIdentity;
 public class ReportServiceImpl implements ReportService {
    private static final Logger log = Logger.getLogger(ReportServiceImpl.class);
 
-   static {
-      System.setProperty("polyglot.engine.WarnInterpreterOnly", "false");
-   }
-
    @Inject
    SecurityIdentity identity;
 
@@ -66,6 +60,9 @@ public class ReportServiceImpl implements ReportService {
    @Inject
    TimeService timeService;
 
+   @Inject
+   JavascriptService jsService;
+
    @PermitAll
    @WithRoles
    @Override
@@ -369,7 +366,7 @@ public class ReportServiceImpl implements ReportService {
       List<List<Object[]>> values = config.components.stream()
             .map(component -> selectByDatasets(component.labels, datasetIds))
             .collect(Collectors.toList());
-      executeInContext(config, context -> {
+      executeInContext(config, evaluator -> {
          for (int i = 0; i < values.size(); i++) {
             List<Object[]> valuesForComponent = values.get(i);
             ReportComponentDAO component = config.components.get(i);
@@ -389,9 +386,8 @@ public class ReportServiceImpl implements ReportService {
                      }
                   }
                } else {
-                  String jsCode = buildCode(component.function, String.valueOf(value));
                   try {
-                     Value calculatedValue = context.eval("js", jsCode);
+                     Value calculatedValue = evaluator.evaluate(component.function, value);
                      Double maybeDouble = Util.toDoubleOrNull(calculatedValue,
                            err -> log(report, PersistentLogDAO.ERROR, err),
                            info -> log(report, PersistentLogDAO.INFO, info));
@@ -402,7 +398,7 @@ public class ReportServiceImpl implements ReportService {
                      }
                   } catch (PolyglotException e) {
                      log(report, PersistentLogDAO.ERROR, "Failed to run report %s(%d) label function on run %d. Offending code: <br><pre>%s</pre>",
-                           config.title, config.id, datasetId, jsCode);
+                           config.title, config.id, datasetId, JavascriptService.describe(component.function, value));
                      log.debug("Caused by exception", e);
                   }
                }
@@ -432,7 +428,7 @@ public class ReportServiceImpl implements ReportService {
       assert !scales.isEmpty();
 
       Map<Integer, TableReportDAO.Data> datasetData = new HashMap<>();
-      executeInContext(config, context -> {
+      executeInContext(config, evaluator -> {
          for (Object[] row : categories) {
             TableReportDAO.Data data = new TableReportDAO.Data();
             data.datasetId = (Integer) row[0];
@@ -443,12 +439,11 @@ public class ReportServiceImpl implements ReportService {
             if (nullOrEmpty(config.categoryFunction)) {
                data.category = toText(value);
             } else {
-               String jsCode = buildCode(config.categoryFunction, String.valueOf(value));
                try {
-                  data.category = Util.convert(context.eval("js", jsCode)).toString();
+                  data.category = Util.convert(evaluator.evaluate(config.categoryFunction, value)).toString();
                } catch (PolyglotException e) {
                   log(report, PersistentLogDAO.ERROR, "Failed to run report %s(%d) category function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
-                        config.title, config.id, data.runId, data.ordinal + 1, data.datasetId, jsCode);
+                        config.title, config.id, data.runId, data.ordinal + 1, data.datasetId, JavascriptService.describe(config.categoryFunction, value));
                   log.debug("Caused by exception", e);
                   continue;
                }
@@ -468,11 +463,10 @@ public class ReportServiceImpl implements ReportService {
             if (nullOrEmpty(config.seriesFunction)) {
                data.series = toText(value);
             } else {
-               String jsCode = buildCode(config.seriesFunction, String.valueOf(value));
                try {
-                  data.series = Util.convert(context.eval("js", jsCode)).toString();
+                  data.series = Util.convert(evaluator.evaluate(config.seriesFunction, value)).toString();
                } catch (PolyglotException e) {
-                  log(report, PersistentLogDAO.ERROR, "Failed to run report %s(%d) series function on run %d/%d (%d). Offending code: <br><pre>%s</pre>", config.title, config.id, runId, ordinal + 1, datasetId, jsCode);
+                  log(report, PersistentLogDAO.ERROR, "Failed to run report %s(%d) series function on run %d/%d (%d). Offending code: <br><pre>%s</pre>", config.title, config.id, runId, ordinal + 1, datasetId, JavascriptService.describe(config.seriesFunction, value));
                   log.debug("Caused by exception", e);
                }
             }
@@ -490,12 +484,11 @@ public class ReportServiceImpl implements ReportService {
             if (nullOrEmpty(config.scaleFunction)) {
                data.scale = toText(value);
             } else {
-               String jsCode = buildCode(config.scaleFunction, String.valueOf(value));
                try {
-                  data.scale = Util.convert(context.eval("js", jsCode)).toString();
+                  data.scale = Util.convert(evaluator.evaluate(config.scaleFunction, value)).toString();
                } catch (PolyglotException e) {
                   log(report, PersistentLogDAO.ERROR, "Failed to run report %s(%d) label function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
-                        config.title, config.id, runId, ordinal + 1, datasetId, jsCode);
+                        config.title, config.id, runId, ordinal + 1, datasetId, JavascriptService.describe(config.scaleFunction, value));
                   log.debug("Caused by exception", e);
                }
             }
@@ -633,19 +626,19 @@ public class ReportServiceImpl implements ReportService {
          }
          log(report, PersistentLogDAO.DEBUG, "Datasets considered for report: %s", debugList);
       } else {
-         executeInContext(config, context -> {
+         executeInContext(config, evaluator -> {
             StringBuilder debugList = new StringBuilder();
             for (Object[] row : list) {
                Integer datasetId = (Integer) row[0];
                int runId = (int) row[1];
                int ordinal = (int) row[2];
-               String jsCode = buildCode(config.filterFunction, String.valueOf(row[3]));
+               JsonNode input = (JsonNode) row[3];
                if (debugList.length() != 0) {
                   debugList.append(", ");
                }
                debugList.append(runId).append('/').append(ordinal + 1);
                try {
-                  org.graalvm.polyglot.Value value = context.eval("js", jsCode);
+                  Value value = evaluator.evaluate(config.filterFunction, input);
                   if (value.isBoolean()) {
                      if (value.asBoolean()) {
                         datasetIds.add(datasetId);
@@ -657,12 +650,12 @@ public class ReportServiceImpl implements ReportService {
                   } else {
                      debugList.append("(filtered: not boolean)");
                      log(report, PersistentLogDAO.ERROR, "Report %s(%d) filter result for dataset %d/%d (%d) is not a boolean: %s. Offending code: <br><pre>%s</pre>",
-                           config.title, config.id, runId, ordinal + 1, datasetId, value, jsCode);
+                           config.title, config.id, runId, ordinal + 1, datasetId, value, JavascriptService.describe(config.filterFunction, input));
                   }
                } catch (PolyglotException e) {
                   debugList.append("(filtered: JS error)");
                   log(report, PersistentLogDAO.ERROR, "Failed to run report %s(%d) filter function on dataset %d/%d (%d). Offending code: <br><pre>%s</pre>",
-                        config.title, config.id, runId, ordinal + 1, datasetId, jsCode);
+                        config.title, config.id, runId, ordinal + 1, datasetId, JavascriptService.describe(config.filterFunction, input));
                   log.debug("Caused by exception", e);
                }
             }
@@ -677,26 +670,9 @@ public class ReportServiceImpl implements ReportService {
       report.logs.add(new ReportLogDAO(report, level, message));
    }
 
-   private String buildCode(String function, String param) {
-       return  "var __obj = " + param + ";\n" +
-               "var __func = " + function + ";\n" +
-               "__func(__obj)";
-   }
-
-   private void executeInContext(TableReportConfigDAO config, Consumer<Context> consumer) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      try (Context context = Context.newBuilder("js").out(out).err(out).build()) {
-         context.enter();
-         try {
-            consumer.accept(context);
-         } finally {
-            context.leave();
-         }
-      } finally {
-         if (out.size() > 0) {
-            log.infof("Output while calculating data for report %s(%d): <pre>%s</pre>", config.title, config.id, out.toString());
-         }
-      }
+   private void executeInContext(TableReportConfigDAO config, Consumer<JavascriptService.Evaluator> consumer) {
+      jsService.withEvaluator(consumer, output ->
+            log.infof("Output while calculating data for report %s(%d): <pre>%s</pre>", config.title, config.id, output));
    }
 
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
@@ -1,29 +1,45 @@
 package io.hyperfoil.tools.horreum.svc;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.hyperfoil.tools.horreum.api.data.Dataset;
 import io.hyperfoil.tools.horreum.api.data.JsonpathValidation;
 import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
 import io.hyperfoil.tools.horreum.entity.alerting.DataPointDAO;
+import io.hyperfoil.tools.horreum.hibernate.IntArrayType;
 import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -34,6 +50,7 @@ import jakarta.persistence.Query;
 import jakarta.persistence.TransactionRequiredException;
 import jakarta.persistence.Tuple;
 import jakarta.transaction.InvalidTransactionException;
+import jakarta.transaction.Status;
 import jakarta.transaction.SystemException;
 import jakarta.transaction.Transaction;
 import jakarta.transaction.TransactionManager;
@@ -50,6 +67,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.databind.node.ValueNode;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.Run;
@@ -65,8 +83,11 @@ import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
 import io.quarkus.narayana.jta.runtime.TransactionConfiguration;
 import io.quarkus.runtime.Startup;
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.scheduler.Scheduled;
 import io.quarkus.security.identity.SecurityIdentity;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
@@ -97,6 +118,10 @@ public class RunServiceImpl implements RunService {
          "(metadata IS NOT NULL AND ?1 IN (SELECT jsonb_array_elements(metadata)->>'$schema')))";
    //@formatter:on
    private static final String[] CONDITION_SELECT_TERMINAL = { "==", "!=", "<>", "<", "<=", ">", ">=", " " };
+   private static final Pattern SIMPLE_PATH = Pattern.compile("\\$(\\.[a-zA-Z_][a-zA-Z0-9_]*)+");
+   private static final long WAIT_FOR_DATASETS_TIMEOUT = 10_000;
+   // transformations on other instances are not notified, these are noticed by polling
+   private static final long WAIT_FOR_DATASETS_POLL_INTERVAL = 1000;
    private static final String UPDATE_TOKEN = "UPDATE run SET token = ? WHERE id = ?";
    private static final String CHANGE_ACCESS = "UPDATE run SET owner = ?, access = ? WHERE id = ?";
    private static final String SCHEMA_USAGE = "COALESCE(jsonb_agg(jsonb_build_object(" +
@@ -124,12 +149,47 @@ public class RunServiceImpl implements RunService {
    @Inject
    ObjectMapper mapper;
 
+   @Inject
+   HttpHeaders httpHeaders;
+
    @Inject
    ServiceMediator mediator;
 
+   @Inject
+   JavascriptService jsService;
+
    @Inject
    Session session;
 
+   @ConfigProperty(name = "horreum.upload.max-size", defaultValue = "200M")
+   MemorySize maxUploadSize;
+
+   @ConfigProperty(name = "horreum.upload.memory-budget", defaultValue = "1G")
+   MemorySize uploadMemoryBudget;
+
+   @ConfigProperty(name = "horreum.upload.budget-timeout", defaultValue = "30s")
+   Duration uploadBudgetTimeout;
+
+   @ConfigProperty(name = "horreum.upload.async-transformation", defaultValue = "false")
+   boolean asyncTransformation;
+
+   @ConfigProperty(name = "horreum.transformation.retry.stale-after", defaultValue = "10m")
+   Duration transformationStaleAfter;
+
+   @ConfigProperty(name = "horreum.transformation.retry.max-attempts", defaultValue = "3")
+   int transformationMaxAttempts;
+
+   // Completed when a transformation of the run commits on this instance
+   private final ConcurrentMap<Integer, CompletableFuture<Void>> transformedRuns = new ConcurrentHashMap<>();
+
+   // Permits are kilobytes of uploaded data that are being parsed and persisted concurrently
+   private Semaphore uploadBudget;
+
+   @PostConstruct
+   void init() {
+      uploadBudget = new Semaphore(toKilobytes(uploadMemoryBudget.asLongValue()));
+   }
+
    @Transactional
    @WithRoles(extras = Roles.HORREUM_SYSTEM)
    void onTestDeleted(int testId) {
@@ -351,13 +411,115 @@ public class RunServiceImpl implements RunService {
       return Response.status(Response.Status.OK).entity(String.valueOf(runId)).header(HttpHeaders.LOCATION, "/run/" + runId).build();
    }
 
+   @PermitAll // all because of possible token-based upload
+   @WithRoles
+   @WithToken
+   @Transactional
+   @Override
+   public List<Integer> addBulk(String testNameOrId, String owner, Access access, String token, InputStream runsBody) {
+      // the budget is reserved before the runs are read
+      int permits = reserveRequestBudget();
+      try {
+         List<Run> runs = readRuns(limitUpload(runsBody));
+         if (runs.isEmpty()) {
+            throw ServiceException.badRequest("No runs provided");
+         }
+         log.debugf("About to add %d new runs to test %s using owner %s", runs.size(), testNameOrId, owner);
+         return persistBulk(testNameOrId, owner, access, token, runs);
+      } finally {
+         releaseUploadBudget(permits);
+      }
+   }
+
+   /**
+    * Runs are deserialized one by one as the array is read from the stream.
+    */
+   private List<Run> readRuns(LimitedInputStream stream) {
+      List<Run> runs = new ArrayList<>();
+      try (JsonParser parser = mapper.getFactory().createParser(stream)) {
+         if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw ServiceException.badRequest("Expected an array of runs");
+         }
+         while (parser.nextToken() == JsonToken.START_OBJECT) {
+            runs.add(mapper.readValue(parser, Run.class));
+         }
+         if (parser.currentToken() != JsonToken.END_ARRAY) {
+            throw ServiceException.badRequest("Expected an array of runs");
+         }
+      } catch (IOException e) {
+         throw uploadReadFailure(stream, e);
+      }
+      return runs;
+   }
+
+   private List<Integer> persistBulk(String testNameOrId, String owner, Access access, String token, List<Run> runs) {
+      Map<String, TestDAO> tests = new HashMap<>();
+      List<RunDAO> entities = new ArrayList<>(runs.size());
+      for (Run run : runs) {
+         if (owner != null) {
+            run.owner = owner;
+         }
+         if (access != null) {
+            run.access = access;
+         }
+         String runTest = testNameOrId;
+         if (runTest == null || runTest.isEmpty()) {
+            if (run.testid == null || run.testid == 0) {
+               throw ServiceException.badRequest("No test name or id provided");
+            }
+            runTest = run.testid.toString();
+         }
+         TestDAO test = tests.computeIfAbsent(runTest, t -> testService.ensureTestExists(t, token));
+         run.testid = test.id;
+         RunDAO entity = RunMapper.to(run);
+         checkOwnerAndPersist(entity, test);
+         entities.add(entity);
+      }
+      // the inserts are sent in JDBC batches
+      flushRuns();
+      log.debugf("Bulk upload flushed, %d runs", entities.size());
+
+      List<Integer> runIds = new ArrayList<>(entities.size());
+      for (RunDAO run : entities) {
+         mediator.newRun(RunMapper.from(run));
+         if (mediator.testMode()) {
+            Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.RUN_NEW, run.testid, RunMapper.from(run)));
+         }
+         runIds.add(run.id);
+      }
+      // Datasets are not created in this transaction; the runs are transformed once they are committed.
+      queueTransformation(runIds, true);
+      return runIds;
+   }
+
 
    @Override
    public Response addRunFromData(String start, String stop, String test,
                                   String owner, Access access, String token,
                                   String schemaUri, String description,
-                                  String data) {
-      return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, data, null);
+                                  InputStream data) {
+      if (data == null) {
+         log.debugf("Failed to upload for test %s with description %s because of missing data.", test, description);
+         throw ServiceException.badRequest("No data!");
+      }
+      // the budget is reserved before the data is read
+      int permits = reserveRequestBudget();
+      try {
+         LimitedInputStream stream = limitUpload(data);
+         JsonNode dataNode;
+         try {
+            dataNode = readJson(stream);
+         } catch (IOException e) {
+            throw uploadReadFailure(stream, e);
+         }
+         if (dataNode == null) {
+            log.debugf("Failed to upload for test %s with description %s because of missing data.", test, description);
+            throw ServiceException.badRequest("No data!");
+         }
+         return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, dataNode, null);
+      } finally {
+         releaseUploadBudget(permits);
+      }
    }
 
    @Override
@@ -373,12 +535,18 @@ public class RunServiceImpl implements RunService {
          log.debugf("Failed to upload for test %s with description %s because of wrong metadata content type: %s.", test, description, metadata.contentType());
          throw ServiceException.badRequest("Part 'metadata' must use content-type: application/json, currently: " + metadata.contentType());
       }
-      JsonNode dataNode;
-      JsonNode metadataNode = null;
+      int permits = reserveUploadBudget(data.size() + (metadata != null ? metadata.size() : 0));
       try {
-         dataNode = Util.OBJECT_MAPPER.readTree(data.uploadedFile().toFile());
+         // the files are parsed only once and the trees are passed on as-is
+         JsonNode dataNode;
+         try (InputStream stream = Files.newInputStream(data.uploadedFile())) {
+            dataNode = readJson(stream);
+         }
+         JsonNode metadataNode = null;
          if (metadata != null) {
-            metadataNode = Util.OBJECT_MAPPER.readTree(metadata.uploadedFile().toFile());
+            try (InputStream stream = Files.newInputStream(metadata.uploadedFile())) {
+               metadataNode = readJson(stream);
+            }
             if (metadataNode.isArray()) {
                for (JsonNode item : metadataNode) {
                   if (!item.isObject()) {
@@ -397,37 +565,197 @@ public class RunServiceImpl implements RunService {
                metadataNode = instance.arrayNode().add(metadataNode);
             }
          }
+         return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, dataNode, metadataNode);
       } catch (IOException e) {
          log.error("Failed to read data/metadata from upload file", e);
          throw ServiceException.badRequest("Provided data/metadata can't be read (JSON encoding problem?)");
+      } finally {
+         releaseUploadBudget(permits);
       }
-      return addRunFromData(start, stop, test, owner, access, token, schemaUri, description, dataNode.toString(), metadataNode);
    }
 
-   @Override
-   public void waitForDatasets(int runId) {
-      //first check if we have a dataset already generated
-      if(DatasetDAO.count("run.id = ?1", runId) > 0)
-         return;
+   /**
+    * Limits the amount of uploaded data that is held in memory at the same time.
+    *
+    * @return Number of permits that must be released after the upload is processed.
+    */
+   int reserveUploadBudget(long size) {
+      if (size > maxUploadSize.asLongValue()) {
+         throw new ServiceException(Response.Status.REQUEST_ENTITY_TOO_LARGE,
+               "Uploaded data has " + size + " bytes, the limit is " + maxUploadSize.asLongValue() + " bytes.");
+      }
+      // a single upload can always proceed when the server is otherwise idle
+      int permits = Math.min(toKilobytes(size), toKilobytes(uploadMemoryBudget.asLongValue()));
+      try {
+         if (!uploadBudget.tryAcquire(permits, uploadBudgetTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            throw new ServiceException(Response.Status.SERVICE_UNAVAILABLE, "Too many concurrent uploads, please retry later.");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new ServiceException(Response.Status.SERVICE_UNAVAILABLE, "Interrupted while waiting for other uploads.");
+      }
+      return permits;
+   }
+
+   void releaseUploadBudget(int permits) {
+      uploadBudget.release(permits);
+   }
+
+   /**
+    * Reserves budget for the request body as declared in <code>Content-Length</code>; when the length is not
+    * declared (chunked encoding) the budget for the largest allowed upload is reserved.
+    */
+   private int reserveRequestBudget() {
+      String contentLength = httpHeaders.getHeaderString(HttpHeaders.CONTENT_LENGTH);
+      if (contentLength == null) {
+         return reserveUploadBudget(maxUploadSize.asLongValue());
+      }
+      try {
+         return reserveUploadBudget(Long.parseLong(contentLength));
+      } catch (NumberFormatException e) {
+         throw ServiceException.badRequest("Invalid Content-Length: " + contentLength);
+      }
+   }
+
+   private LimitedInputStream limitUpload(InputStream stream) {
+      return new LimitedInputStream(stream, maxUploadSize.asLongValue());
+   }
 
-      // wait for at least one (1) dataset. we do not know how many datasets will be produced
-      CountDownLatch dsAvailableLatch = new CountDownLatch(1);
-      // create new dataset listener
-      messageBus.subscribe(MessageBusChannels.DATASET_NEW,"DatasetService", Dataset.EventNew.class, (event) -> {
-         if (event.runId == runId) {
-            dsAvailableLatch.countDown();
+   /**
+    * Builds the tree directly from the stream, without an intermediate copy of the document.
+    *
+    * @return Parsed document or <code>null</code> if the input is empty.
+    */
+   private JsonNode readJson(InputStream stream) throws IOException {
+      try (JsonParser parser = mapper.getFactory().createParser(stream)) {
+         JsonNode node = mapper.readTree(parser);
+         if (node != null && parser.nextToken() != null) {
+            throw ServiceException.badRequest("Unexpected content after the JSON document");
          }
-      });
+         return node;
+      }
+   }
+
+   private ServiceException uploadReadFailure(LimitedInputStream stream, IOException e) {
+      if (stream.exceeded) {
+         return new ServiceException(Response.Status.REQUEST_ENTITY_TOO_LARGE,
+               "Uploaded data exceeds the limit of " + maxUploadSize.asLongValue() + " bytes.");
+      }
+      return ServiceException.badRequest("Could not map incoming data to JsonNode: " + e.getMessage());
+   }
+
+   /**
+    * The declared length of the body is not trusted: reading more than the limit fails.
+    */
+   private static class LimitedInputStream extends FilterInputStream {
+      private final long limit;
+      private long count;
+      boolean exceeded;
+
+      LimitedInputStream(InputStream in, long limit) {
+         super(in);
+         this.limit = limit;
+      }
 
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            count(1);
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         if (n > 0) {
+            count(n);
+         }
+         return n;
+      }
+
+      private void count(int n) throws IOException {
+         count += n;
+         if (count > limit) {
+            exceeded = true;
+            throw new IOException("Upload exceeds " + limit + " bytes");
+         }
+      }
+   }
+
+   private static int toKilobytes(long bytes) {
+      return (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024);
+   }
+
+   @Override
+   public void waitForDatasets(int runId) {
+      // wait until the run is transformed and has at least one (1) dataset; we do not know how many datasets will be produced
+      long deadline = System.currentTimeMillis() + WAIT_FOR_DATASETS_TIMEOUT;
+      CompletableFuture<Void> transformed = null;
       try {
-         // if there is not already a dataset in the db, wait for msg back from db that at least one dataset is available
-         if (DatasetDAO.find("run.id", runId).count() == 0) {
-            dsAvailableLatch.await(10L, TimeUnit.SECONDS);
+         for (;;) {
+            RunService.RunTransformationStatus status = transformationStatus(runId);
+            if (!status.pending && status.datasets > 0) {
+               return;
+            }
+            //TODO :: make timeout configurable
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+               log.debugf("Datasets for run %d were not produced within %d ms", runId, WAIT_FOR_DATASETS_TIMEOUT);
+               return;
+            }
+            if (transformed == null || transformed.isDone()) {
+               // registered before checking the status again so that we cannot miss the notification
+               transformed = transformedRuns.computeIfAbsent(runId, id -> new CompletableFuture<>());
+               continue;
+            }
+            try {
+               transformed.get(Math.min(remaining, WAIT_FOR_DATASETS_POLL_INTERVAL), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+               // poll the status
+            } catch (ExecutionException e) {
+               throw new IllegalStateException(e);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw ServiceException.serverError("Interrupted while waiting for datasets");
+            }
          }
-      } catch (InterruptedException e) {
-         //TODO :: make timeout configurable
-         ServiceException.serverError("Dataset was not produced within 10 seconds");
+      } finally {
+         if (transformed != null && !transformed.isDone()) {
+            // other waiters for the same run will fall back to polling
+            transformedRuns.remove(runId, transformed);
+         }
+      }
+   }
+
+   @PermitAll
+   @WithRoles
+   @WithToken
+   @Transactional
+   @Override
+   public RunService.RunTransformationStatus getTransformationStatus(int runId, String token) {
+      // the run must be visible to the caller
+      if (em.createNativeQuery("SELECT 1 FROM run WHERE id = ?1").setParameter(1, runId).getResultList().isEmpty()) {
+         throw ServiceException.notFound("Run " + runId + " not found");
       }
+      return transformationStatus(runId);
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   RunService.RunTransformationStatus transformationStatus(int runId) {
+      // After the last attempt has gone stale the transformation is given up and is not pending anymore
+      Object[] row = (Object[]) em.createNativeQuery("""
+            SELECT q.runid IS NOT NULL AND (q.attempts < ?2 OR coalesce(q.last_attempt, q.queued) >= now() - make_interval(secs => ?3)),
+               (SELECT count(*) FROM dataset WHERE runid = ?1), coalesce(q.attempts, 0), q.error
+            FROM (SELECT 1) AS dummy LEFT JOIN run_transformation_queue q ON q.runid = ?1
+            """)
+            .setParameter(1, runId).setParameter(2, transformationMaxAttempts)
+            .setParameter(3, (double) transformationStaleAfter.toSeconds())
+            .getSingleResult();
+      return new RunService.RunTransformationStatus(runId, (Boolean) row[0], ((Number) row[1]).intValue(),
+            ((Number) row[2]).intValue(), (String) row[3]);
    }
 
    @PermitAll // all because of possible token-based upload
@@ -437,17 +765,11 @@ public class RunServiceImpl implements RunService {
    Response addRunFromData(String start, String stop, String test,
                                 String owner, Access access, String token,
                                 String schemaUri, String description,
-                                String stringData, JsonNode metadata) {
-      if (stringData == null) {
+                                JsonNode data, JsonNode metadata) {
+      if (data == null) {
          log.debugf("Failed to upload for test %s with description %s because of missing data.", test, description);
          throw ServiceException.badRequest("No data!");
       }
-      JsonNode data = null;
-      try {
-         data = Util.OBJECT_MAPPER.readValue(stringData, JsonNode.class);
-      } catch (JsonProcessingException e) {
-         throw ServiceException.badRequest("Could not map incoming data to JsonNode: "+e.getMessage());
-      }
       Object foundTest = findIfNotSet(test, data);
       Object foundStart = findIfNotSet(start, data);
       Object foundStop = findIfNotSet(stop, data);
@@ -508,6 +830,13 @@ public class RunServiceImpl implements RunService {
    private Object findIfNotSet(String value, JsonNode data) {
       if (value != null && !value.isEmpty()) {
          if (value.startsWith("$.")) {
+            // simple paths are resolved directly in the tree, without compiling JSONPath
+            if (SIMPLE_PATH.matcher(value).matches()) {
+               JsonNode node = data.at("/" + value.substring(2).replace('.', '/'));
+               if (node.isValueNode()) {
+                  return Util.convertValueNode((ValueNode) node);
+               }
+            }
             return Util.findJsonPath(data, value);
          } else {
             return value;
@@ -537,6 +866,23 @@ public class RunServiceImpl implements RunService {
    }
 
    private Integer addAuthenticated(RunDAO run, TestDAO test) {
+      checkOwnerAndPersist(run, test);
+      flushRuns();
+      log.debugf("Upload flushed, run ID %d", run.id);
+
+      mediator.newRun(RunMapper.from(run));
+      if (asyncTransformation) {
+         queueTransformation(Collections.singletonList(run.id), false);
+      } else {
+         transform(run.id, false);
+      }
+      if(mediator.testMode())
+         Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.RUN_NEW, test.id, RunMapper.from(run)));
+
+      return run.id;
+   }
+
+   private void checkOwnerAndPersist(RunDAO run, TestDAO test) {
       // Id will be always generated anew
       run.id = null;
       //if run.metadata is null on the client, it will be converted to a NullNode, not null...
@@ -567,19 +913,83 @@ public class RunServiceImpl implements RunService {
             trashConnectedDatasets(run.id, run.testid);
             em.merge(run);
          }
-         em.flush();
       } catch (Exception e) {
          log.error("Failed to persist run.", e);
          throw ServiceException.serverError("Failed to persist run");
       }
-      log.debugf("Upload flushed, run ID %d", run.id);
+   }
 
-      mediator.newRun(RunMapper.from(run));
-      transform(run.id, false);
-      if(mediator.testMode())
-         Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.RUN_NEW, test.id, RunMapper.from(run)));
+   private void queueTransformation(List<Integer> runIds, boolean isRecalculation) {
+      // The records let clients find out that the datasets are not ready yet; transform() removes them
+      // and retryStaleTransformations() re-emits those that were not removed.
+      em.createNativeQuery("INSERT INTO run_transformation_queue (runid, recalculation) SELECT unnest(?1), ?2 ON CONFLICT DO NOTHING")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, runIds.stream().mapToInt(Integer::intValue).toArray(), IntArrayType.INSTANCE)
+            .setParameter(2, isRecalculation)
+            .executeUpdate();
+      IntConsumer queue = isRecalculation ? mediator::queueRunRecalculation : mediator::queueRunUpload;
+      Util.registerTxSynchronization(tm, txStatus -> {
+         if (txStatus == Status.STATUS_COMMITTED) {
+            runIds.forEach(queue::accept);
+         }
+      });
+   }
 
-      return run.id;
+   /**
+    * The transformation of a run might have failed, or the message might have been lost. This re-emits runs that
+    * stayed in the queue for too long, up to the maximum number of attempts.
+    */
+   @Scheduled(every = "{horreum.transformation.retry.check}", delayed = "{horreum.transformation.retry.check}",
+         concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   void retryStaleTransformations() {
+      // Rows of transformations in progress are locked by their DELETE and skipped
+      List<Object[]> stale = unchecked(em.createNativeQuery("""
+            UPDATE run_transformation_queue SET attempts = attempts + 1, last_attempt = now()
+            WHERE runid IN (
+               SELECT runid FROM run_transformation_queue
+               WHERE attempts < ?1 AND coalesce(last_attempt, queued) < now() - make_interval(secs => ?2)
+               ORDER BY queued LIMIT 1000 FOR UPDATE SKIP LOCKED
+            ) RETURNING runid, recalculation, attempts, error
+            """)
+            .setParameter(1, transformationMaxAttempts)
+            .setParameter(2, (double) transformationStaleAfter.toSeconds())
+            .getResultList());
+      for (Object[] row : stale) {
+         int runId = (int) row[0];
+         boolean isRecalculation = (boolean) row[1];
+         log.infof("Retrying transformation of run %d, attempt %d/%d, last error: %s", runId, (int) row[2], transformationMaxAttempts, row[3]);
+         Util.registerTxSynchronization(tm, txStatus -> {
+            if (txStatus == Status.STATUS_COMMITTED) {
+               if (isRecalculation) {
+                  mediator.queueRunRecalculation(runId);
+               } else {
+                  mediator.queueRunUpload(runId);
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * Records the failure in the queue so that the transformation status can report it.
+    */
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional(Transactional.TxType.REQUIRES_NEW)
+   void transformationFailed(int runId, Throwable t) {
+      log.errorf(t, "Transformation of run %d failed", runId);
+      em.createNativeQuery("UPDATE run_transformation_queue SET last_attempt = now(), error = ?2 WHERE runid = ?1")
+            .setParameter(1, runId).setParameter(2, limitLength(Util.explainCauses(t))).executeUpdate();
+   }
+
+   private void flushRuns() {
+      try {
+         em.flush();
+      } catch (Exception e) {
+         log.error("Failed to persist run.", e);
+         throw ServiceException.serverError("Failed to persist run");
+      }
    }
 
    @PermitAll
@@ -1041,12 +1451,23 @@ public class RunServiceImpl implements RunService {
          mediator.propagatedDatasetDelete(old.id);
       }
 
+      em.createNativeQuery("DELETE FROM run_transformation_queue WHERE runid = ?1").setParameter(1, runId).executeUpdate();
+      Util.registerTxSynchronization(tm, txStatus -> {
+         if (txStatus == Status.STATUS_COMMITTED) {
+            CompletableFuture<Void> transformed = transformedRuns.remove(runId);
+            if (transformed != null) {
+               transformed.complete(null);
+            }
+         }
+      });
+
       RunDAO run = RunDAO.findById(runId);
       if (run == null) {
          log.errorf("Cannot load run ID %d for transformation", runId);
          return 0;
       }
       int ordinal = 0;
+      List<Dataset.EventNew> newDatasets = new ArrayList<>();
       Map<Integer, JsonNode> transformerResults = new TreeMap<>();
       // naked nodes (those produced by implicit identity transformers) are all added to each dataset
       List<JsonNode> nakedNodes = new ArrayList<>();
@@ -1122,7 +1543,7 @@ public class RunServiceImpl implements RunService {
             logMessage(run, PersistentLogDAO.DEBUG, "Run transformer %s/%s with input: <pre>%s</pre>, function: <pre>%s</pre>",
                   uri, t.name, limitLength(root.toPrettyString()), t.function);
             if (t.function != null && !t.function.isBlank()) {
-               result = Util.evaluateOnce(t.function, root, Util::convertToJson,
+               result = jsService.evaluateOnce(t.function, root, Util::convertToJson,
                      (code, e) -> logMessage(run, PersistentLogDAO.ERROR,
                            "Evaluation of transformer %s/%s failed: '%s' Code: <pre>%s</pre>", uri, t.name, e.getMessage(), code),
                      output -> logMessage(run, PersistentLogDAO.DEBUG, "Output while running transformer %s/%s: <pre>%s</pre>", uri, t.name, output));
@@ -1213,15 +1634,18 @@ public class RunServiceImpl implements RunService {
                }
             }
             nakedNodes.forEach(all::add);
-            createDataset(new DatasetDAO(run, ordinal++, run.description, all), isRecalculation);
+            createDataset(new DatasetDAO(run, ordinal++, run.description, all), isRecalculation, newDatasets);
          }
+         // labels for all datasets are calculated in one batch
+         mediator.newDatasets(newDatasets);
          mediator.validateRun(run.id);
          return ordinal;
       } else {
          logMessage(run, PersistentLogDAO.INFO, "No applicable schema, dataset will be empty.");
          createDataset(new DatasetDAO(
                run, 0, "Empty Dataset for run data without any schema.",
-               instance.arrayNode()), isRecalculation);
+               instance.arrayNode()), isRecalculation, newDatasets);
+         mediator.newDatasets(newDatasets);
          mediator.validateRun(run.id);
          return 1;
       }
@@ -1231,10 +1655,10 @@ public class RunServiceImpl implements RunService {
       return str.length() > 1024 ? str.substring(0, 1024) + "...(truncated)" : str;
    }
 
-   private void createDataset(DatasetDAO ds, boolean isRecalculation) {
+   private void createDataset(DatasetDAO ds, boolean isRecalculation, List<Dataset.EventNew> newDatasets) {
       try {
          ds.persistAndFlush();
-         mediator.newDataset(new Dataset.EventNew(DatasetMapper.from(ds), isRecalculation));
+         newDatasets.add(new Dataset.EventNew(DatasetMapper.from(ds), isRecalculation));
          mediator.validateDataset(ds.id);
          if(mediator.testMode())
             Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.DATASET_NEW, ds.testid, new Dataset.EventNew(DatasetMapper.from(ds), isRecalculation)));
@@ -1,6 +1,5 @@
 package io.hyperfoil.tools.horreum.svc;
 
-import com.networknt.schema.JsonMetaSchema;
 import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.Dataset;
 import io.hyperfoil.tools.horreum.api.data.Extractor;
@@ -22,14 +21,19 @@ import io.hyperfoil.tools.horreum.api.services.SchemaService;
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import io.hyperfoil.tools.horreum.bus.MessageBus;
 import io.hyperfoil.tools.horreum.entity.ValidationErrorDAO;
+import io.hyperfoil.tools.horreum.hibernate.IntArrayType;
+import io.hyperfoil.tools.horreum.hibernate.JsonBinaryType;
 import io.hyperfoil.tools.horreum.mapper.ValidationErrorMapper;
 import io.hyperfoil.tools.horreum.server.WithRoles;
 import io.hyperfoil.tools.horreum.server.WithToken;
-import io.quarkus.narayana.jta.runtime.TransactionConfiguration;
 import io.quarkus.panache.common.Page;
 import io.quarkus.panache.common.Sort;
 import io.quarkus.security.identity.SecurityIdentity;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -41,31 +45,32 @@ import jakarta.transaction.TransactionManager;
 import jakarta.persistence.Tuple;
 import jakarta.transaction.Transactional;
 
-import java.io.ByteArrayInputStream;
-import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import jakarta.ws.rs.DefaultValue;
-import org.hibernate.ScrollMode;
-import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.query.NativeQuery;
 import org.hibernate.query.SelectionQuery;
 import org.hibernate.type.StandardBasicTypes;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -74,10 +79,6 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import com.networknt.schema.JsonSchemaFactory;
-import com.networknt.schema.uri.URIFactory;
-import com.networknt.schema.uri.URIFetcher;
-import com.networknt.schema.uri.URLFactory;
 
 @ApplicationScoped
 public class SchemaServiceImpl implements SchemaService {
@@ -86,33 +87,15 @@ public class SchemaServiceImpl implements SchemaService {
    //@formatter:off
    private static final String UPDATE_TOKEN = "UPDATE schema SET token = ? WHERE id = ?";
    private static final String CHANGE_ACCESS = "UPDATE schema SET owner = ?, access = ? WHERE id = ?";
-   private static final String FETCH_SCHEMAS_RECURSIVE = "WITH RECURSIVE refs(uri) AS (" +
-         "SELECT ? UNION ALL " +
-         "SELECT substring(jsonb_path_query(schema, '$.**.\"$ref\" ? (! (@ starts with \"#\"))')#>>'{}' from '[^#]*') as uri " +
-            "FROM refs INNER JOIN schema on refs.uri = schema.uri) " +
-         "SELECT schema.* FROM schema INNER JOIN refs ON schema.uri = refs.uri";
+   private static final String FIND_RUN_IDS_FOR_REVALIDATION = "SELECT id FROM (" + RunServiceImpl.FIND_RUNS_WITH_URI + ") AS runs " +
+         "WHERE id > ?2 ORDER BY id LIMIT ?3";
+   private static final String COUNT_DATASETS_WITH_URI = "SELECT COUNT(*) FROM dataset WHERE ?1 IN (SELECT jsonb_array_elements(data)->>'$schema')";
+   private static final String FIND_DATASET_IDS_FOR_REVALIDATION = "SELECT id FROM dataset " +
+         "WHERE id > ?2 AND ?1 IN (SELECT jsonb_array_elements(data)->>'$schema') ORDER BY id LIMIT ?3";
+   private static final String FIND_VALIDATING_SCHEMAS_FOR_RUN = "SELECT DISTINCT schema.uri FROM run_schemas rs " +
+         "JOIN schema ON schema.id = rs.schemaid WHERE rs.runid = ?1 AND schema.schema IS NOT NULL";
    //@formatter:on
 
-   private static final JsonSchemaFactory JSON_SCHEMA_FACTORY = new JsonSchemaFactory.Builder()
-         .defaultMetaSchemaURI(JsonMetaSchema.getV4().getUri())
-         .addMetaSchema(JsonMetaSchema.getV4())
-         .addMetaSchema(JsonMetaSchema.getV6())
-         .addMetaSchema(JsonMetaSchema.getV7())
-         .addMetaSchema(JsonMetaSchema.getV201909()).build();
-   private static final URIFactory URN_FACTORY = new URIFactory() {
-      @Override
-      public URI create(String uri) {
-         return URI.create(uri);
-      }
-
-      @Override
-      public URI create(URI baseURI, String segment) {
-         throw new UnsupportedOperationException();
-      }
-   };
-   private static final String[] ALL_URNS = Stream.concat(
-         URLFactory.SUPPORTED_SCHEMES.stream(), Stream.of("urn", "uri")).toArray(String[]::new);
-
    @Inject
    EntityManager em;
 
@@ -131,7 +114,36 @@ public class SchemaServiceImpl implements SchemaService {
    @Inject
    MessageBus messageBus;
    @Inject
+   JavascriptService jsService;
+   @Inject
    Session session;
+   @Inject
+   SchemaValidators validators;
+   @Inject
+   Vertx vertx;
+
+   @ConfigProperty(name = "horreum.schema.revalidation.batch-size", defaultValue = "100")
+   int revalidationBatchSize;
+
+   @ConfigProperty(name = "horreum.schema.revalidation.parallelism", defaultValue = "4")
+   int revalidationParallelism;
+
+   // Dedicated pool: the caller waits for the workers and must not compete with them for the shared worker pool
+   private WorkerExecutor revalidationExecutor;
+
+   // Validations running on this instance; status of a validation started on another instance is not available here
+   private final ConcurrentMap<Integer, Revalidation> revalidations = new ConcurrentHashMap<>();
+
+   @PostConstruct
+   void initExecutor() {
+      // the calling thread is one of the workers
+      revalidationExecutor = vertx.createSharedWorkerExecutor("horreum-revalidation", Math.max(1, revalidationParallelism - 1));
+   }
+
+   @PreDestroy
+   void closeExecutor() {
+      revalidationExecutor.close();
+   }
    @WithToken
    @WithRoles
    @PermitAll
@@ -168,6 +180,7 @@ public class SchemaServiceImpl implements SchemaService {
          SchemaDAO existing = SchemaDAO.findById(schema.id);
          if(existing == null)
             throw ServiceException.badRequest("An id was given, but it does not exist.");
+         validators.invalidate(existing.uri, schema.uri);
          em.merge(schema);
          em.flush();
          if(!Objects.equals(schema.uri, existing.uri) ||
@@ -186,6 +199,7 @@ public class SchemaServiceImpl implements SchemaService {
          schema.id = null;
          schema.persist();
          em.flush();
+         validators.invalidate(schema.uri);
          mediator.newOrUpdatedSchema(schema);
       }
       log.debugf("Added schema %s (%d), URI %s", schema.name, schema.id, schema.uri);
@@ -193,8 +207,8 @@ public class SchemaServiceImpl implements SchemaService {
    }
 
    private void verifyNewSchema(Schema schemaDTO) {
-      if (schemaDTO.uri == null || Arrays.stream(ALL_URNS).noneMatch(scheme -> schemaDTO.uri.startsWith(scheme + ":"))) {
-         throw ServiceException.badRequest("Please use URI starting with one of these schemes: " + Arrays.toString(ALL_URNS));
+      if (schemaDTO.uri == null || Arrays.stream(SchemaValidators.ALL_URNS).noneMatch(scheme -> schemaDTO.uri.startsWith(scheme + ":"))) {
+         throw ServiceException.badRequest("Please use URI starting with one of these schemes: " + Arrays.toString(SchemaValidators.ALL_URNS));
       }
       SchemaDAO byName = SchemaDAO.find("name", schemaDTO.name).firstResult();
       if (byName != null && !Objects.equals(byName.id, schemaDTO.id)) {
@@ -312,9 +326,31 @@ public class SchemaServiceImpl implements SchemaService {
          run.validationErrors.removeIf(e -> schemaFilter == null || schemaFilter.test(e.schema.uri));
       if(run.validationErrors == null)
          run.validationErrors = new ArrayList<>();
-      validateData(run.data, schemaFilter, run.validationErrors);
-      if (run.metadata != null) {
-         validateData(run.metadata, schemaFilter, run.validationErrors);
+      // Run data are loaded lazily; don't fetch them unless there's a JSON schema to validate against
+      @SuppressWarnings("unchecked")
+      List<String> validatingSchemas = em.createNativeQuery(FIND_VALIDATING_SCHEMAS_FOR_RUN)
+            .setParameter(1, runId).getResultList();
+      if (validatingSchemas.stream().anyMatch(uri -> schemaFilter == null || schemaFilter.test(uri))) {
+         // Full validation of unchanged data against unchanged schemas would produce the same errors
+         String digest = schemaFilter == null ? validationDigest(run.data, run.metadata) : null;
+         if (digest != null && restoreValidationErrors(em.createNativeQuery("SELECT errors FROM run_validation_digest WHERE run_id = ?1 AND digest = ?2")
+               .setParameter(1, runId).setParameter(2, digest), run.validationErrors)) {
+            log.debugf("Data in run %d and referenced schemas did not change since last validation", runId);
+         } else {
+            validateData(run.data, schemaFilter, run.validationErrors);
+            if (run.metadata != null) {
+               validateData(run.metadata, schemaFilter, run.validationErrors);
+            }
+            if (digest != null) {
+               em.createNativeQuery("INSERT INTO run_validation_digest (run_id, digest, errors) VALUES (?1, ?2, ?3) " +
+                           "ON CONFLICT (run_id) DO UPDATE SET digest = EXCLUDED.digest, errors = EXCLUDED.errors")
+                     .unwrap(NativeQuery.class)
+                     .setParameter(1, runId)
+                     .setParameter(2, digest)
+                     .setParameter(3, toJson(run.validationErrors), JsonBinaryType.INSTANCE)
+                     .executeUpdate();
+            }
+         }
       }
       run.persist();
       if(mediator.testMode())
@@ -346,13 +382,30 @@ public class SchemaServiceImpl implements SchemaService {
       if(dataset.data != null) {
          if(dataset.validationErrors == null)
             dataset.validationErrors = new ArrayList<>();
-         validateData(dataset.data, schemaFilter, dataset.validationErrors);
-         for (var item : dataset.data) {
-            String uri = item.path("$schema").asText();
-            if (uri == null || uri.isBlank()) {
-               ValidationErrorDAO error = new ValidationErrorDAO();
-               error.error = JsonNodeFactory.instance.objectNode().put("type", "No schema").put("message", "Element in the dataset does not reference any schema through the '$schema' property.");
-               dataset.validationErrors.add(error);
+         // Datasets are re-created by each transformation; the digest is kept for the run and ordinal
+         String digest = schemaFilter == null ? validationDigest(dataset.data) : null;
+         if (digest != null && restoreValidationErrors(em.createNativeQuery("SELECT errors FROM dataset_validation_digest WHERE run_id = ?1 AND ordinal = ?2 AND digest = ?3")
+               .setParameter(1, dataset.run.id).setParameter(2, dataset.ordinal).setParameter(3, digest), dataset.validationErrors)) {
+            log.debugf("Data in dataset %d (%d/%d) and referenced schemas did not change since last validation", dataset.id, dataset.run.id, dataset.ordinal);
+         } else {
+            validateData(dataset.data, schemaFilter, dataset.validationErrors);
+            for (var item : dataset.data) {
+               String uri = item.path("$schema").asText();
+               if (uri == null || uri.isBlank()) {
+                  ValidationErrorDAO error = new ValidationErrorDAO();
+                  error.error = JsonNodeFactory.instance.objectNode().put("type", "No schema").put("message", "Element in the dataset does not reference any schema through the '$schema' property.");
+                  dataset.validationErrors.add(error);
+               }
+            }
+            if (digest != null) {
+               em.createNativeQuery("INSERT INTO dataset_validation_digest (run_id, ordinal, digest, errors) VALUES (?1, ?2, ?3, ?4) " +
+                           "ON CONFLICT (run_id, ordinal) DO UPDATE SET digest = EXCLUDED.digest, errors = EXCLUDED.errors")
+                     .unwrap(NativeQuery.class)
+                     .setParameter(1, dataset.run.id)
+                     .setParameter(2, dataset.ordinal)
+                     .setParameter(3, digest)
+                     .setParameter(4, toJson(dataset.validationErrors), JsonBinaryType.INSTANCE)
+                     .executeUpdate();
             }
          }
          dataset.persist();
@@ -361,42 +414,277 @@ public class SchemaServiceImpl implements SchemaService {
          Util.registerTxSynchronization(tm, txStatus -> messageBus.publish(MessageBusChannels.DATASET_VALIDATED, dataset.testid, new Schema.ValidationEvent(dataset.id, DatasetMapper.from(dataset).validationErrors )));
    }
 
-   @WithRoles(extras = Roles.HORREUM_SYSTEM)
-   @Transactional(Transactional.TxType.REQUIRES_NEW)
-   @TransactionConfiguration(timeout = 3600) // 1 hour, this may run a long time
-   void revalidateAll(int schemaId) {
-      SchemaDAO schema = SchemaDAO.findById(schemaId);
+   @RolesAllowed(Roles.TESTER)
+   @WithRoles
+   @Override
+   public RevalidationStatus revalidate(int id) {
+      checkCanRevalidate(id);
+      return startRevalidation(id).status();
+   }
+
+   @RolesAllowed(Roles.TESTER)
+   @WithRoles
+   @Override
+   public RevalidationStatus getRevalidationStatus(int id) {
+      checkCanRevalidate(id);
+      Revalidation revalidation = revalidations.get(id);
+      if (revalidation == null) {
+         throw ServiceException.notFound("Schema " + id + " is not being validated");
+      }
+      return revalidation.status();
+   }
+
+   @RolesAllowed(Roles.TESTER)
+   @WithRoles
+   @Override
+   public void cancelRevalidation(int id) {
+      checkCanRevalidate(id);
+      Revalidation revalidation = revalidations.get(id);
+      if (revalidation == null || revalidation.done) {
+         throw ServiceException.notFound("Schema " + id + " is not being validated");
+      }
+      log.debugf("Cancelling validation of schema %d", id);
+      revalidation.cancelled = true;
+   }
+
+   private void checkCanRevalidate(int id) {
+      SchemaDAO schema = SchemaDAO.findById(id);
       if (schema == null) {
-         log.errorf("Cannot load schema %d for validation", schemaId);
-         return;
+         throw ServiceException.notFound("Schema " + id + " does not exist or is not available.");
+      } else if (!Roles.hasRoleWithSuffix(identity, schema.owner, "-tester")) {
+         throw ServiceException.forbidden("This user cannot validate schema " + id);
       }
-      //clear tables on schemaId
-      em.createNativeQuery("DELETE FROM dataset_validationerrors WHERE schema_id = ?1")
-              .setParameter(1, schemaId).executeUpdate();
-      em.createNativeQuery("DELETE FROM run_validationerrors WHERE schema_id = ?1")
-              .setParameter(1, schemaId).executeUpdate();
+   }
 
-      Predicate<String> schemaFilter = uri -> uri.equals(schema.uri);
+   Revalidation startRevalidation(int schemaId) {
+      Revalidation revalidation = new Revalidation(schemaId);
+      Revalidation previous = revalidations.putIfAbsent(schemaId, revalidation);
+      while (previous != null) {
+         if (!previous.done) {
+            log.debugf("Already validating schema %d, ignoring.", schemaId);
+            return previous;
+         }
+         if (revalidations.replace(schemaId, previous, revalidation)) {
+            break;
+         }
+         previous = revalidations.putIfAbsent(schemaId, revalidation);
+      }
+      mediator.executeBlocking(() -> revalidateAll(revalidation));
+      return revalidation;
+   }
+
+   // Runs and datasets are validated in batches, each batch in its own transaction, on several worker threads.
+   // Errors are replaced one batch at a time: when the validation is cancelled or a batch fails the runs and
+   // datasets not validated yet keep their previous errors.
+   private void revalidateAll(Revalidation revalidation) {
+      try {
+         if (!prepareRevalidation(revalidation)) {
+            return;
+         }
+         log.debugf("Validating %d runs and %d datasets against schema %d (%s)",
+               revalidation.totalRuns, revalidation.totalDatasets, revalidation.schemaId, revalidation.uri);
+         Util.forEachInParallel(revalidationExecutor, revalidationParallelism, () -> nextRevalidationBatch(revalidation), batch -> {
+            if (batch.runs) {
+               revalidateRuns(revalidation, batch.ids);
+            } else {
+               revalidateDatasets(revalidation, batch.ids);
+            }
+         });
+         log.debugf("Validation of schema %d %s", revalidation.schemaId, revalidation.cancelled ? "cancelled" : "completed");
+      } catch (Throwable t) {
+         log.errorf(t, "Validation of schema %d failed", revalidation.schemaId);
+      } finally {
+         revalidation.done = true;
+         vertx.setTimer(30_000, timerId -> revalidations.remove(revalidation.schemaId, revalidation));
+      }
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   boolean prepareRevalidation(Revalidation revalidation) {
+      SchemaDAO schema = SchemaDAO.findById(revalidation.schemaId);
+      if (schema == null) {
+         log.errorf("Cannot load schema %d for validation", revalidation.schemaId);
+         return false;
+      }
+      revalidation.uri = schema.uri;
       // If the URI was updated together with JSON schema run_schemas are removed and filled-in asynchronously
       // so we cannot rely on run_schemas
-      runService.findRunsWithUri(schema.uri, (runId, testId) ->
-         messageBus.executeForTest(testId, () -> validateRunData(runId, schemaFilter))
-      );
-      // Datasets might be re-created if URI is changing, so we might work on old, non-existent ones
-      ScrollableResults<RecreateDataset> results = session
-              .createNativeQuery("SELECT id, testid FROM dataset WHERE ?1 IN (SELECT jsonb_array_elements(data)->>'$schema')", Tuple.class).setParameter(1, schema.uri)
-              .setTupleTransformer((tuple, aliases) -> {
-                 RecreateDataset r = new RecreateDataset();
-                 r.datasetId = (int) tuple[0];
-                 r.testId = (int) tuple[1];
-                 return r;
-              })
-              .setReadOnly(true).setFetchSize(100)
-              .scroll(ScrollMode.FORWARD_ONLY);
-      while (results.next()) {
-         RecreateDataset r = results.get();
-         messageBus.executeForTest(r.testId, () -> validateDatasetData(r.datasetId, schemaFilter));
+      revalidation.totalRuns = ((Number) em.createNativeQuery("SELECT COUNT(*) FROM (" + RunServiceImpl.FIND_RUNS_WITH_URI + ") AS runs")
+            .setParameter(1, schema.uri).getSingleResult()).longValue();
+      revalidation.totalDatasets = ((Number) em.createNativeQuery(COUNT_DATASETS_WITH_URI)
+            .setParameter(1, schema.uri).getSingleResult()).longValue();
+      return true;
+   }
+
+   private RevalidationBatch nextRevalidationBatch(Revalidation revalidation) {
+      // Workers fetch the IDs one batch after another, the validation runs in parallel
+      synchronized (revalidation) {
+         if (revalidation.cancelled) {
+            return null;
+         }
+         if (!revalidation.runsListed) {
+            List<Integer> ids = findIdsForRevalidation(FIND_RUN_IDS_FOR_REVALIDATION, revalidation.uri, revalidation.lastRunId);
+            if (!ids.isEmpty()) {
+               revalidation.lastRunId = ids.get(ids.size() - 1);
+               return new RevalidationBatch(true, ids);
+            }
+            revalidation.runsListed = true;
+         }
+         List<Integer> ids = findIdsForRevalidation(FIND_DATASET_IDS_FOR_REVALIDATION, revalidation.uri, revalidation.lastDatasetId);
+         if (ids.isEmpty()) {
+            return null;
+         }
+         revalidation.lastDatasetId = ids.get(ids.size() - 1);
+         return new RevalidationBatch(false, ids);
+      }
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional
+   List<Integer> findIdsForRevalidation(String query, String uri, int afterId) {
+      return session.createNativeQuery(query, Integer.class)
+            .setParameter(1, uri)
+            .setParameter(2, afterId)
+            .setParameter(3, revalidationBatchSize)
+            .getResultList();
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional(Transactional.TxType.REQUIRES_NEW)
+   void revalidateRuns(Revalidation revalidation, List<Integer> runIds) {
+      int[] ids = runIds.stream().mapToInt(Integer::intValue).toArray();
+      @SuppressWarnings("unchecked")
+      List<Object[]> rows = em.createNativeQuery("SELECT id, data, metadata FROM run WHERE id = ANY(?1)")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, ids, IntArrayType.INSTANCE)
+            .addScalar("id", StandardBasicTypes.INTEGER)
+            .addScalar("data", JsonBinaryType.INSTANCE)
+            .addScalar("metadata", JsonBinaryType.INSTANCE)
+            .getResultList();
+      ArrayNode errors = JsonNodeFactory.instance.arrayNode();
+      for (Object[] row : rows) {
+         List<ValidationErrorDAO> runErrors = new ArrayList<>();
+         validateData((JsonNode) row[1], revalidation.uri::equals, runErrors);
+         if (row[2] != null) {
+            validateData((JsonNode) row[2], revalidation.uri::equals, runErrors);
+         }
+         addValidationErrors(revalidation, (int) row[0], runErrors, errors);
+      }
+      replaceValidationErrors("run", revalidation.schemaId, ids, errors);
+      revalidation.validatedRuns.addAndGet(ids.length);
+   }
+
+   @WithRoles(extras = Roles.HORREUM_SYSTEM)
+   @Transactional(Transactional.TxType.REQUIRES_NEW)
+   void revalidateDatasets(Revalidation revalidation, List<Integer> datasetIds) {
+      int[] ids = datasetIds.stream().mapToInt(Integer::intValue).toArray();
+      // Datasets might be re-created if URI is changing, so some of these might not exist anymore
+      @SuppressWarnings("unchecked")
+      List<Object[]> rows = em.createNativeQuery("SELECT id, data FROM dataset WHERE id = ANY(?1) AND data IS NOT NULL")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, ids, IntArrayType.INSTANCE)
+            .addScalar("id", StandardBasicTypes.INTEGER)
+            .addScalar("data", JsonBinaryType.INSTANCE)
+            .getResultList();
+      ArrayNode errors = JsonNodeFactory.instance.arrayNode();
+      for (Object[] row : rows) {
+         List<ValidationErrorDAO> datasetErrors = new ArrayList<>();
+         validateData((JsonNode) row[1], revalidation.uri::equals, datasetErrors);
+         addValidationErrors(revalidation, (int) row[0], datasetErrors, errors);
+      }
+      replaceValidationErrors("dataset", revalidation.schemaId, ids, errors);
+      revalidation.validatedDatasets.addAndGet(ids.length);
+   }
+
+   private void addValidationErrors(Revalidation revalidation, int id, List<ValidationErrorDAO> errors, ArrayNode consumer) {
+      if (!errors.isEmpty()) {
+         revalidation.invalid.incrementAndGet();
+      }
+      for (ValidationErrorDAO error : errors) {
+         consumer.addArray().add(id).add(error.error);
+      }
+   }
+
+   // All errors in the batch are inserted in one statement, passed as array of [id, error] pairs
+   private void replaceValidationErrors(String entity, int schemaId, int[] ids, ArrayNode errors) {
+      em.createNativeQuery("DELETE FROM " + entity + "_validationerrors WHERE schema_id = ?1 AND " + entity + "_id = ANY(?2)")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, schemaId)
+            .setParameter(2, ids, IntArrayType.INSTANCE)
+            .executeUpdate();
+      if (errors.isEmpty()) {
+         return;
+      }
+      em.createNativeQuery("INSERT INTO " + entity + "_validationerrors (" + entity + "_id, schema_id, error) " +
+                  "SELECT (e->>0)::::int, ?1, e->1 FROM jsonb_array_elements(?2) e")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, schemaId)
+            .setParameter(2, errors, JsonBinaryType.INSTANCE)
+            .executeUpdate();
+   }
+
+   /**
+    * @return Digest of the documents and versions of all schemas these reference.
+    */
+   private String validationDigest(JsonNode... documents) {
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+      Map<String, List<JsonNode>> uris = new TreeMap<>();
+      for (JsonNode document : documents) {
+         if (document == null) {
+            digest.update((byte) 0);
+            continue;
+         }
+         try {
+            digest.update(Util.OBJECT_MAPPER.writeValueAsBytes(document));
+         } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+         }
+         digest.update((byte) 0);
+         addIfHasSchema(uris, document);
+         for (JsonNode child : document) {
+            addIfHasSchema(uris, child);
+         }
+      }
+      for (String uri : uris.keySet()) {
+         digest.update(uri.getBytes(StandardCharsets.UTF_8));
+         digest.update((byte) 0);
+         digest.update(validators.get(uri).version.getBytes(StandardCharsets.UTF_8));
+         digest.update((byte) 0);
       }
+      return HexFormat.of().formatHex(digest.digest());
+   }
+
+   private boolean restoreValidationErrors(Query lookup, Collection<ValidationErrorDAO> consumer) {
+      @SuppressWarnings("unchecked")
+      List<JsonNode> result = lookup.unwrap(NativeQuery.class).addScalar("errors", JsonBinaryType.INSTANCE).getResultList();
+      if (result.isEmpty()) {
+         return false;
+      }
+      for (JsonNode node : result.get(0)) {
+         ValidationErrorDAO error = new ValidationErrorDAO();
+         if (node.hasNonNull("schemaId")) {
+            error.setSchema(node.get("schemaId").asInt());
+         }
+         error.error = node.get("error");
+         consumer.add(error);
+      }
+      return true;
+   }
+
+   private static ArrayNode toJson(Collection<ValidationErrorDAO> errors) {
+      ArrayNode json = JsonNodeFactory.instance.arrayNode();
+      for (ValidationErrorDAO error : errors) {
+         ObjectNode node = json.addObject();
+         node.put("schemaId", error.getSchemaId());
+         node.set("error", error.error);
+      }
+      return json;
    }
 
    private void validateData(JsonNode data, Predicate<String> filter, Collection<ValidationErrorDAO> consumer) {
@@ -410,28 +698,17 @@ public class SchemaServiceImpl implements SchemaService {
          if (filter != null && !filter.test(schemaUri)) {
             continue;
          }
-         NativeQuery<SchemaDAO> fetchSchemas = session.createNativeQuery(FETCH_SCHEMAS_RECURSIVE, SchemaDAO.class);
-         fetchSchemas.setParameter(1, schemaUri);
-         Map<String, SchemaDAO> schemas = fetchSchemas.getResultStream()
-               .collect(Collectors.toMap(s -> s.uri, Function.identity()));
-
-         // this is root in the sense of JSON schema referencing other schemas, NOT Horreum first-level schema
-         SchemaDAO rootSchema = schemas.get(schemaUri);
-         if (rootSchema == null || rootSchema.schema == null) {
+         SchemaValidators.Validator validator = validators.get(schemaUri);
+         if (validator.schemaId == null || (validator.jsonSchema == null && validator.compilationError == null)) {
             continue;
          }
+         SchemaDAO rootSchema = em.getReference(SchemaDAO.class, validator.schemaId);
          try {
-            URIFetcher uriFetcher = uri -> {
-               byte[] jsonSchema = schemas.get(uri.toString()).schema.toString().getBytes(StandardCharsets.UTF_8);
-               return new ByteArrayInputStream(jsonSchema);
-            };
-
-            JsonSchemaFactory factory = JsonSchemaFactory.builder(JSON_SCHEMA_FACTORY)
-                  .uriFactory(URN_FACTORY, "urn", "uri")
-                  .uriFetcher(uriFetcher, ALL_URNS).build();
-
+            if (validator.compilationError != null) {
+               throw new IllegalStateException(validator.compilationError);
+            }
             for (JsonNode node : toCheck.get(schemaUri)) {
-               factory.getSchema(rootSchema.schema).validate(node).forEach(msg -> {
+               validator.jsonSchema.validate(node).forEach(msg -> {
                   ValidationErrorDAO error = new ValidationErrorDAO();
                   error.schema = rootSchema;
                   error.error = Util.OBJECT_MAPPER.valueToTree(msg);
@@ -469,6 +746,7 @@ public class SchemaServiceImpl implements SchemaService {
          throw ServiceException.notFound("Schema not found");
       } else {
          log.debugf("Deleting schema %s (%d), URI %s", schema.name, schema.id, schema.uri);
+         validators.invalidate(schema.uri);
          em.createNativeQuery("DELETE FROM label_extractors WHERE label_id IN (SELECT id FROM label WHERE schema_id = ?1)")
                .setParameter(1, id).executeUpdate();
          updateLabelsForDelete(id);
@@ -493,6 +771,7 @@ public class SchemaServiceImpl implements SchemaService {
       em.createNativeQuery("DELETE FROM label_values WHERE label_id = ?1").setParameter(1, label.id).executeUpdate();
       int schemaId = label.getSchemaId();
       int labelId = label.id;
+      jsService.invalidate(label.function);
       label.delete();
       emitLabelChanged(labelId, schemaId);
    }
@@ -602,6 +881,9 @@ public class SchemaServiceImpl implements SchemaService {
          existing.owner = transformer.owner;
          existing.access = transformer.access;
          existing.targetSchemaUri = transformer.targetSchemaUri;
+         if (!Objects.equals(existing.function, transformer.function)) {
+            jsService.invalidate(existing.function);
+         }
          existing.function = transformer.function;
          existing.extractors.clear();
          existing.extractors.addAll(transformer.extractors);
@@ -647,6 +929,7 @@ public class SchemaServiceImpl implements SchemaService {
             return "<a href=\"/test/" + id + "\">" + name + "</a>";
          }).collect(Collectors.joining(", ")) + "; please remove them before deleting it.");
       }
+      jsService.invalidate(t.function);
       t.delete();
    }
 
@@ -703,6 +986,9 @@ public class SchemaServiceImpl implements SchemaService {
          }
          existing.extractors.clear();
          existing.extractors.addAll(label.extractors);
+         if (!Objects.equals(existing.function, label.function)) {
+            jsService.invalidate(existing.function);
+         }
          existing.function = label.function;
          existing.owner = label.owner;
          existing.access = label.access;
@@ -858,6 +1144,7 @@ public class SchemaServiceImpl implements SchemaService {
          //first check if this schema exists
          SchemaDAO original = SchemaDAO.findById(schema.id);
          if(original != null) {
+            validators.invalidate(original.uri);
             em.merge(schema);
             newSchema = false;
          }
@@ -871,6 +1158,7 @@ public class SchemaServiceImpl implements SchemaService {
          verifyNewSchema(SchemaMapper.from(schema));
          em.persist(schema);
       }
+      validators.invalidate(schema.uri);
       if (labels == null || labels.isNull() || labels.isMissingNode()) {
          log.debugf("Import schema %d: no labels", schema.id);
       }
@@ -939,8 +1227,54 @@ public class SchemaServiceImpl implements SchemaService {
       }
    }
 
-   class RecreateDataset {
-      private int datasetId;
-      private int testId;
+   // Note: this class must be public, otherwise the interceptors on methods with this parameter would not apply
+   public static class Revalidation {
+      final int schemaId;
+      final long timestamp = System.currentTimeMillis();
+      volatile String uri;
+      volatile long totalRuns;
+      volatile long totalDatasets;
+      final AtomicLong validatedRuns = new AtomicLong();
+      final AtomicLong validatedDatasets = new AtomicLong();
+      final AtomicLong invalid = new AtomicLong();
+      volatile boolean cancelled;
+      volatile boolean done;
+      // the cursor is guarded by this
+      private boolean runsListed;
+      private int lastRunId = -1;
+      private int lastDatasetId = -1;
+
+      Revalidation(int schemaId) {
+         this.schemaId = schemaId;
+      }
+
+      RevalidationStatus status() {
+         RevalidationStatus status = new RevalidationStatus();
+         status.schemaId = schemaId;
+         status.timestamp = timestamp;
+         status.totalRuns = totalRuns;
+         status.totalDatasets = totalDatasets;
+         status.validatedRuns = validatedRuns.get();
+         status.validatedDatasets = validatedDatasets.get();
+         status.invalid = invalid.get();
+         status.cancelled = cancelled;
+         status.done = done;
+         return status;
+      }
+   }
+
+   private static final class RevalidationBatch {
+      final boolean runs;
+      final List<Integer> ids;
+
+      RevalidationBatch(boolean runs, List<Integer> ids) {
+         this.runs = runs;
+         this.ids = ids;
+      }
+
+      @Override
+      public String toString() {
+         return (runs ? "runs " : "datasets ") + ids;
+      }
    }
 }
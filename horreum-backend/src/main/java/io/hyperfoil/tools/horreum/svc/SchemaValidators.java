@@ -0,0 +1,275 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.transaction.TransactionManager;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.networknt.schema.JsonMetaSchema;
+import com.networknt.schema.JsonSchema;
+import com.networknt.schema.JsonSchemaFactory;
+import com.networknt.schema.uri.URIFactory;
+import com.networknt.schema.uri.URIFetcher;
+import com.networknt.schema.uri.URLFactory;
+
+import io.hyperfoil.tools.horreum.entity.data.SchemaDAO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Compiled JSON schemas, cached by schema URI. Each entry holds the schema with all referenced schemas
+ * already resolved, so validating a document does not touch the database.
+ * <p>
+ * The cache must be {@link #invalidate(String...) invalidated} when a schema is added, modified or removed;
+ * this drops all entries that reference the schema (directly or transitively). Changes made through other
+ * Horreum instances are detected on read: each entry remembers <code>schema.change_seq</code> of the schemas
+ * it was compiled from.
+ */
+@ApplicationScoped
+public class SchemaValidators {
+   private static final Logger log = Logger.getLogger(SchemaValidators.class);
+
+   //@formatter:off
+   private static final String FETCH_SCHEMAS_RECURSIVE = "WITH RECURSIVE refs(uri) AS (" +
+         "SELECT ? UNION ALL " +
+         "SELECT substring(jsonb_path_query(schema, '$.**.\"$ref\" ? (! (@ starts with \"#\"))')#>>'{}' from '[^#]*') as uri " +
+            "FROM refs INNER JOIN schema on refs.uri = schema.uri) " +
+         "SELECT schema.* FROM schema INNER JOIN refs ON schema.uri = refs.uri";
+   //@formatter:on
+   private static final String FETCH_CHANGES = "SELECT uri, change_seq FROM schema WHERE uri IN (?1)";
+
+   private static final JsonSchemaFactory JSON_SCHEMA_FACTORY = new JsonSchemaFactory.Builder()
+         .defaultMetaSchemaURI(JsonMetaSchema.getV4().getUri())
+         .addMetaSchema(JsonMetaSchema.getV4())
+         .addMetaSchema(JsonMetaSchema.getV6())
+         .addMetaSchema(JsonMetaSchema.getV7())
+         .addMetaSchema(JsonMetaSchema.getV201909()).build();
+   private static final URIFactory URN_FACTORY = new URIFactory() {
+      @Override
+      public URI create(String uri) {
+         return URI.create(uri);
+      }
+
+      @Override
+      public URI create(URI baseURI, String segment) {
+         throw new UnsupportedOperationException();
+      }
+   };
+   static final String[] ALL_URNS = Stream.concat(
+         URLFactory.SUPPORTED_SCHEMES.stream(), Stream.of("urn", "uri")).toArray(String[]::new);
+
+   @ConfigProperty(name = "horreum.schema.validator-cache.max-size", defaultValue = "500")
+   int maxSize;
+
+   @Inject
+   Session session;
+
+   @Inject
+   TransactionManager tm;
+
+   @Inject
+   MeterRegistry meterRegistry;
+
+   private final Map<String, Validator> validators = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Validator> eldest) {
+         return size() > maxSize;
+      }
+   };
+   // Incremented on invalidation; validator compiled from data loaded before that is not cached
+   private final AtomicLong generation = new AtomicLong();
+   private Counter cacheHits;
+   private Counter cacheMisses;
+
+   @PostConstruct
+   void init() {
+      cacheHits = Counter.builder("horreum.schema.validator-cache.hits")
+            .description("Validations that reused a compiled schema").register(meterRegistry);
+      cacheMisses = Counter.builder("horreum.schema.validator-cache.misses")
+            .description("Validations that had to load and compile the schema").register(meterRegistry);
+   }
+
+   /**
+    * Should be called in the transaction that loads the schemas, with privileges to see all of them.
+    */
+   Validator get(String uri) {
+      Validator validator;
+      synchronized (validators) {
+         validator = validators.get(uri);
+      }
+      if (validator != null) {
+         if (validator.changes.equals(changes(validator.references))) {
+            cacheHits.increment();
+            return validator;
+         }
+         log.debugf("Schema %s or some of the referenced schemas were modified, recompiling", uri);
+      }
+      cacheMisses.increment();
+      long loadedGeneration = generation.get();
+      validator = compile(uri);
+      synchronized (validators) {
+         if (generation.get() == loadedGeneration) {
+            validators.put(uri, validator);
+         }
+      }
+      return validator;
+   }
+
+   /**
+    * Drops validators for these URIs and any validators that reference them. This happens immediately
+    * and again when the current transaction completes, as the validator could be compiled from data
+    * that are not committed yet.
+    */
+   void invalidate(String... uris) {
+      Set<String> invalidated = Stream.of(uris).filter(uri -> uri != null).collect(Collectors.toSet());
+      doInvalidate(invalidated);
+      Util.registerTxSynchronization(tm, txStatus -> doInvalidate(invalidated));
+   }
+
+   private void doInvalidate(Set<String> uris) {
+      generation.incrementAndGet();
+      synchronized (validators) {
+         validators.values().removeIf(validator -> validator.references.stream().anyMatch(uris::contains));
+      }
+   }
+
+   private Map<String, Long> changes(Set<String> uris) {
+      NativeQuery<Object[]> fetchChanges = session.createNativeQuery(FETCH_CHANGES, Object[].class);
+      fetchChanges.setParameterList(1, uris);
+      Map<String, Long> changes = new HashMap<>();
+      for (Object[] row : fetchChanges.getResultList()) {
+         changes.put((String) row[0], ((Number) row[1]).longValue());
+      }
+      return changes;
+   }
+
+   private Validator compile(String uri) {
+      NativeQuery<SchemaDAO> fetchSchemas = session.createNativeQuery(FETCH_SCHEMAS_RECURSIVE, SchemaDAO.class);
+      fetchSchemas.setParameter(1, uri);
+      Map<String, SchemaDAO> schemas = fetchSchemas.getResultStream()
+            .collect(Collectors.toMap(s -> s.uri, Function.identity(), (s1, s2) -> s1));
+      // Schemas that are referenced but don't exist yet must invalidate the entry when added, too
+      Set<String> references = new HashSet<>();
+      references.add(uri);
+      for (SchemaDAO schema : schemas.values()) {
+         references.add(schema.uri);
+         addReferences(schema.schema, references);
+      }
+
+      String version = version(schemas);
+      // Read after the schemas: a modification in between makes the validator look outdated, not vice versa
+      Map<String, Long> changes = changes(references);
+
+      // this is root in the sense of JSON schema referencing other schemas, NOT Horreum first-level schema
+      SchemaDAO rootSchema = schemas.get(uri);
+      if (rootSchema == null || rootSchema.schema == null) {
+         return new Validator(rootSchema == null ? null : rootSchema.id, null, null, references, changes, version);
+      }
+      // The fetcher must not reference the session: it may be invoked later, from another transaction
+      Map<String, byte[]> sources = schemas.values().stream().filter(s -> s.schema != null)
+            .collect(Collectors.toMap(s -> s.uri, s -> s.schema.toString().getBytes(StandardCharsets.UTF_8)));
+      try {
+         URIFetcher uriFetcher = u -> {
+            byte[] jsonSchema = sources.get(u.toString());
+            if (jsonSchema == null) {
+               throw new IllegalArgumentException("Schema " + u + " does not exist");
+            }
+            return new ByteArrayInputStream(jsonSchema);
+         };
+
+         JsonSchemaFactory factory = JsonSchemaFactory.builder(JSON_SCHEMA_FACTORY)
+               .uriFactory(URN_FACTORY, "urn", "uri")
+               .uriFetcher(uriFetcher, ALL_URNS).build();
+         JsonSchema jsonSchema = factory.getSchema(rootSchema.schema);
+         // resolve all references now rather than on first validation
+         jsonSchema.initializeValidators();
+         return new Validator(rootSchema.id, jsonSchema, null, references, changes, version);
+      } catch (Throwable e) {
+         log.errorf(e, "Cannot compile schema %s", uri);
+         return new Validator(rootSchema.id, null, String.valueOf(e.getMessage()), references, changes, version);
+      }
+   }
+
+   private static String version(Map<String, SchemaDAO> schemas) {
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+      // validation errors refer to schema IDs, therefore the ID is part of the version as well
+      new TreeMap<>(schemas).forEach((uri, schema) -> {
+         digest.update(uri.getBytes(StandardCharsets.UTF_8));
+         digest.update((byte) 0);
+         digest.update(String.valueOf(schema.id).getBytes(StandardCharsets.UTF_8));
+         digest.update((byte) 0);
+         digest.update(String.valueOf(schema.schema).getBytes(StandardCharsets.UTF_8));
+         digest.update((byte) 0);
+      });
+      return HexFormat.of().formatHex(digest.digest());
+   }
+
+   private static void addReferences(JsonNode node, Set<String> references) {
+      if (node == null) {
+         return;
+      }
+      if (node.isObject()) {
+         JsonNode ref = node.get("$ref");
+         if (ref != null && ref.isTextual() && !ref.asText().startsWith("#")) {
+            String target = ref.asText();
+            int hash = target.indexOf('#');
+            references.add(hash < 0 ? target : target.substring(0, hash));
+         }
+      }
+      for (JsonNode child : node) {
+         addReferences(child, references);
+      }
+   }
+
+   static final class Validator {
+      // null if there is no schema with this URI
+      final Integer schemaId;
+      // null if the schema does not define JSON schema or when it failed to compile
+      final JsonSchema jsonSchema;
+      final String compilationError;
+      // URIs of this schema and all (transitively) referenced schemas
+      final Set<String> references;
+      // Value of schema.change_seq for the referenced schemas that exist
+      final Map<String, Long> changes;
+      // Digest of this schema and all referenced schemas
+      final String version;
+
+      private Validator(Integer schemaId, JsonSchema jsonSchema, String compilationError, Set<String> references, Map<String, Long> changes, String version) {
+         this.schemaId = schemaId;
+         this.jsonSchema = jsonSchema;
+         this.compilationError = compilationError;
+         this.references = Collections.unmodifiableSet(references);
+         this.changes = Collections.unmodifiableMap(changes);
+         this.version = version;
+      }
+   }
+}
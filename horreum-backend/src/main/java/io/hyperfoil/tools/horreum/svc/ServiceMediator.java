@@ -24,6 +24,8 @@ import org.eclipse.microprofile.reactive.messaging.Emitter;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
 import org.eclipse.microprofile.reactive.messaging.OnOverflow;
 
+import java.util.List;
+
 @ApplicationScoped
 public class ServiceMediator {
 
@@ -77,6 +79,10 @@ public class ServiceMediator {
     @Channel("run-recalc-out")
     Emitter<Integer> runEmitter;
 
+    @OnOverflow(value = OnOverflow.Strategy.BUFFER, bufferSize = 10000)
+    @Channel("run-upload-out")
+    Emitter<Integer> runUploadEmitter;
+
     public ServiceMediator() {
     }
 
@@ -106,6 +112,11 @@ public class ServiceMediator {
         subscriptionService.onTestDelete(testId);
     }
 
+    @Transactional
+    void updateTest(int testId) {
+        alertingService.invalidatePlan(testId);
+    }
+
     @Transactional
     void newRun(Run run) {
         actionService.onNewRun(run);
@@ -124,9 +135,9 @@ public class ServiceMediator {
         alertingService.onLabelsUpdated(event);
     }
 
-    void newDataset(Dataset.EventNew eventNew) {
-        //Note: should we call onNewDataset which will enable a lock?
-        datasetService.onNewDataset(eventNew);
+    void newDatasets(List<Dataset.EventNew> events) {
+        //Note: should we call onNewDatasets which will enable a lock?
+        datasetService.onNewDatasets(events);
     }
 
     @Transactional
@@ -151,7 +162,13 @@ public class ServiceMediator {
     @Blocking(ordered = false, value = "horreum.run.pool")
     @ActivateRequestContext
     public void processRunRecalculation(int runId) {
+        try {
             runService.transform(runId, true);
+        } catch (RuntimeException e) {
+            // the run stays queued and will be retried
+            runService.transformationFailed(runId, e);
+            throw e;
+        }
     }
 
     @Transactional(Transactional.TxType.NOT_SUPPORTED)
@@ -159,6 +176,24 @@ public class ServiceMediator {
         runEmitter.send(runId);
     }
 
+    @Incoming("run-upload-in")
+    @Blocking(ordered = false, value = "horreum.run.pool")
+    @ActivateRequestContext
+    public void processRunUpload(int runId) {
+        try {
+            runService.transform(runId, false);
+        } catch (RuntimeException e) {
+            // the run stays queued and will be retried
+            runService.transformationFailed(runId, e);
+            throw e;
+        }
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    void queueRunUpload(int runId) {
+        runUploadEmitter.send(runId);
+    }
+
     void dataPointsProcessed(DataPoint.DatasetProcessedEvent event) {
         experimentService.onDatapointsCreated(event);
     }
@@ -169,11 +204,22 @@ public class ServiceMediator {
     void newDatasetChanges(DatasetChanges changes) {
         notificationService.onNewChanges(changes);
     }
+
+    void emitDatasetChanges() {
+        aggregator.emitDue();
+    }
+
+    void emitPersistedDatasetChanges() {
+        while (aggregator.emitPersisted()) {
+            // there may be more due aggregates
+        }
+    }
+
     int transform(int runId, boolean isRecalculation) {
         return runService.transform(runId, isRecalculation);
     }
-    void withRecalculationLock(Runnable run) {
-        datasetService.withRecalculationLock(run);
+    void withRecalculationLock(int testId, Runnable run) {
+        datasetService.withRecalculationLock(testId, run);
     }
     void newExperimentResult(ExperimentService.ExperimentResult result) {
         actionService.onNewExperimentResult(result);
@@ -220,6 +266,6 @@ public class ServiceMediator {
         schemaService.validateDatasetData(datasetId, null);
     }
     public void validateSchema(int schemaId) {
-        schemaService.revalidateAll(schemaId);
+        schemaService.startRevalidation(schemaId);
     }
 }
@@ -213,6 +213,7 @@ public class TestServiceImpl implements TestService {
          test.views = existing.views;
          test.tokens = existing.tokens;
          em.merge(test);
+         mediator.updateTest(test.id);
          if(shouldRecalculateLables)
            mediator.updateFingerprints(test.id);
       }
@@ -515,7 +516,7 @@ public class TestServiceImpl implements TestService {
          // transform will add proper roles anyway
 //         messageBus.executeForTest(testId, () -> datasetService.withRecalculationLock(() -> {
 //         mediator.executeBlocking(() -> mediator.transform(runId, true));
-         mediator.executeBlocking(() -> mediator.withRecalculationLock(() -> {
+         mediator.executeBlocking(() -> mediator.withRecalculationLock(testId, () -> {
             int newDatasets = 0;
             try {
                newDatasets = mediator.transform(runId, true);
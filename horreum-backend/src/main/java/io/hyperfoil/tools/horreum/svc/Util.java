@@ -1,11 +1,11 @@
 package io.hyperfoil.tools.horreum.svc;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -17,6 +17,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.*;
 
 import jakarta.persistence.EntityManager;
@@ -27,8 +29,6 @@ import jakarta.transaction.*;
 
 import io.hyperfoil.tools.horreum.api.SortDirection;
 import org.eclipse.microprofile.context.ThreadContext;
-import org.graalvm.polyglot.Context;
-import org.graalvm.polyglot.PolyglotException;
 import org.graalvm.polyglot.Value;
 import org.jboss.logging.Logger;
 import org.postgresql.util.PSQLException;
@@ -53,6 +53,7 @@ import io.quarkus.security.identity.SecurityIdentity;
 import io.smallrye.context.SmallRyeContextManagerProvider;
 import io.smallrye.mutiny.Uni;
 import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.eventbus.EventBus;
 
 public class Util {
@@ -66,6 +67,9 @@ public class Util {
 
    public static final int MAX_TRANSACTION_RETRIES = 10;
    private static final String RETRY_HINT = "The transaction might succeed if retried";
+   private static final String SERIALIZATION_FAILURE = "40001";
+   private static final long RETRY_BACKOFF_BASE_MILLIS = 10;
+   private static final long RETRY_BACKOFF_MAX_MILLIS = 1000;
 
    static {
       OBJECT_MAPPER.registerModule(new JavaTimeModule());
@@ -249,8 +253,9 @@ public class Util {
    public static JsonNode convertToJson(Value value) {
       if (value == null || value.isNull()) {
          return JsonNodeFactory.instance.nullNode();
-      } else if (value.isProxyObject()) {
-         return value.asProxyObject();
+      } else if (value.isProxyObject() && value.asProxyObject() instanceof JsonProxy proxy) {
+         // input (or its part) returned from the function, no need to convert it element by element
+         return proxy.toJsonNode();
       } else if (value.isBoolean()) {
          return JsonNodeFactory.instance.booleanNode(value.asBoolean());
       } else if (value.isNumber()) {
@@ -283,6 +288,8 @@ public class Util {
          } else {
             return null;
          }
+      } else if (value.isProxyObject() && value.asProxyObject() instanceof JsonProxy proxy) {
+         return proxy.toJsonNode();
       } else if (value.isProxyObject()) {
          return value.asProxyObject();
       } else if (value.isBoolean()) {
@@ -314,6 +321,8 @@ public class Util {
          Value element = value.getArrayElement(i);
          if (element == null || element.isNull()) {
             json.addNull();
+         } else if (element.isProxyObject() && element.asProxyObject() instanceof JsonProxy proxy) {
+            json.add(proxy.toJsonNode());
          } else if (element.isBoolean()) {
             json.add(element.asBoolean());
          } else if (element.isNumber()) {
@@ -342,6 +351,8 @@ public class Util {
          Value element = value.getMember(key);
          if (element == null || element.isNull()) {
             json.set(key, JsonNodeFactory.instance.nullNode());
+         } else if (element.isProxyObject() && element.asProxyObject() instanceof JsonProxy proxy) {
+            json.set(key, proxy.toJsonNode());
          } else if (element.isBoolean()) {
             json.set(key, JsonNodeFactory.instance.booleanNode(element.asBoolean()));
          } else if (element.isNumber()) {
@@ -370,24 +381,7 @@ public class Util {
          JsonPath path = JsonPath.compile(jsonPath);
          Object obj = ctx.read(path);
          if (obj instanceof ValueNode) {
-            ValueNode node = (ValueNode) obj;
-            switch (node.getNodeType()) {
-               case BINARY:
-               case STRING:
-                  return node.asText();
-               case BOOLEAN:
-                  return node.asBoolean();
-               case MISSING:
-               case NULL:
-                  return null;
-               case NUMBER:
-                  double value = node.asDouble();
-                  if (value == Math.rint(value)) {
-                     return (long) value;
-                  } else {
-                     return value;
-                  }
-            }
+            return convertValueNode((ValueNode) obj);
          }
          return obj;
       } catch (InvalidPathException e){
@@ -395,6 +389,28 @@ public class Util {
       }
    }
 
+   static Object convertValueNode(ValueNode node) {
+      switch (node.getNodeType()) {
+         case BINARY:
+         case STRING:
+            return node.asText();
+         case BOOLEAN:
+            return node.asBoolean();
+         case MISSING:
+         case NULL:
+            return null;
+         case NUMBER:
+            double value = node.asDouble();
+            if (value == Math.rint(value)) {
+               return (long) value;
+            } else {
+               return value;
+            }
+         default:
+            return node;
+      }
+   }
+
    public static <T> T withTx(TransactionManager tm, Supplier<T> supplier) {
       for (int retry = 1;; ++retry) {
          try {
@@ -434,6 +450,22 @@ public class Util {
       log.trace("This is the exception that caused retry: ", t);
    }
 
+   /**
+    * Waits before another attempt of a failed transaction: the upper bound of the delay grows exponentially
+    * with each retry (up to a second) and the actual delay is random, so that transactions that conflicted
+    * don't retry at the same moment again.
+    */
+   public static void backoff(int retry) {
+      long maxDelay = RETRY_BACKOFF_BASE_MILLIS << Math.min(Math.max(retry - 1, 0), 20);
+      long delay = ThreadLocalRandom.current().nextLong(Math.min(maxDelay, RETRY_BACKOFF_MAX_MILLIS) + 1);
+      try {
+         Thread.sleep(delay);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting to retry the transaction", e);
+      }
+   }
+
    public static <T extends Annotation> T getAnnotation(Method method, Class<T> annotationClass) {
       T methodAnnotation = method.getAnnotation(annotationClass);
       if (methodAnnotation != null) {
@@ -470,6 +502,52 @@ public class Util {
       }, result -> {});
    }
 
+   /**
+    * Executes the task for items from the source on <code>workers</code> threads and waits until all items
+    * are processed. When the task fails the error is logged and the worker continues with the next item.
+    * The calling thread acts as one of the workers; the others run on the dedicated executor, not on the
+    * shared worker pool, so that the waiting caller cannot starve the workers it waits for. When the executor
+    * is saturated the calling thread still processes all items.
+    *
+    * @param executor Bounded executor reserved for the parallel tasks.
+    * @param source Thread-safe supplier of items, returns <code>null</code> when there are no more items.
+    */
+   public static <T> void forEachInParallel(WorkerExecutor executor, int workers, Supplier<T> source, Consumer<T> task) {
+      workers = Math.max(1, workers);
+      CountDownLatch latch = new CountDownLatch(workers - 1);
+      for (int w = 1; w < workers; ++w) {
+         Runnable worker = wrapForBlockingExecution(() -> {
+            try {
+               processAll(source, task);
+            } finally {
+               latch.countDown();
+            }
+         });
+         // unordered: the workers run in parallel
+         executor.executeBlocking(promise -> {
+            worker.run();
+            promise.complete();
+         }, false, result -> {});
+      }
+      processAll(source, task);
+      try {
+         latch.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted waiting for parallel tasks", e);
+      }
+   }
+
+   private static <T> void processAll(Supplier<T> source, Consumer<T> task) {
+      for (T item; (item = source.get()) != null; ) {
+         try {
+            task.accept(item);
+         } catch (Throwable t) {
+            log.errorf(t, "Processing of %s failed", item);
+         }
+      }
+   }
+
    public static Runnable wrapForBlockingExecution(Runnable runnable) {
       // CDI needs to be propagated - without that the interceptors wouldn't run.
       // Without thread context propagation we would get an exception in Run.findById, though the interceptors would be invoked correctly.
@@ -512,6 +590,20 @@ public class Util {
       return false;
    }
 
+   /**
+    * Checks whether the exception (or any of its causes) is a serialization failure (SQLSTATE 40001),
+    * i.e. the transaction was rolled back by the database and can be safely retried.
+    */
+   public static boolean isSerializationFailure(Throwable ex) {
+      Set<Throwable> causes = new HashSet<>();
+      for (Throwable t = ex; t != null && causes.add(t); t = t.getCause()) {
+         if (t instanceof SQLException && SERIALIZATION_FAILURE.equals(((SQLException) t).getSQLState())) {
+            return true;
+         }
+      }
+      return lookupRetryHint(ex, new HashSet<>());
+   }
+
    public static JsonNode parseFingerprint(String fpString) {
       if (fpString == null || fpString.isEmpty()) {
          // any fingerprint
@@ -520,81 +612,6 @@ public class Util {
       return toJsonNode(URLDecoder.decode(fpString.replace("+", "%2B"), StandardCharsets.UTF_8));
    }
 
-/*
-* Evaluates a List of Objects, executing Javascript Combination Functions, if defined.
-* Callbacks for JS evaluation exceptions and output logging allow for custom error handling
-* */
-   static <T> void evaluateWithCombinationFunction(List<T> inputData,
-                                                   Function<T, String> jsCombinationFunction,
-                                                   Function<T, JsonNode> evaluationInputObject,
-                                                   BiConsumer<T, Value> jsFuncResultConsumer,
-                                                   Consumer<T> nonFuncResultConsumer,
-                                                   ExecutionExceptionConsumer<T> onJsEvaluationException,
-                                                   Consumer<String> jsOutputConsumer) {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      try (org.graalvm.polyglot.Context context = org.graalvm.polyglot.Context.newBuilder("js").out(out).err(out).build()) {
-         context.enter();
-         try {
-            for (int i = 0; i < inputData.size(); i++) {
-               T element = inputData.get(i);
-               String jsFuncBody = jsCombinationFunction.apply(element);
-               if (jsFuncBody != null && !jsFuncBody.isBlank()) {
-                  StringBuilder jsCode = new StringBuilder("const __obj").append(i).append(" = ").append(evaluationInputObject.apply(element)).append(";\n");
-                  jsCode.append("const __func").append(i).append(" = ").append(jsFuncBody).append(";\n");
-                  jsCode.append("__func").append(i).append("(__obj").append(i).append(")");
-                  try {
-                     Value value = context.eval("js", jsCode);
-                     jsFuncResultConsumer.accept(element, value);
-                  } catch (PolyglotException e) {
-                     onJsEvaluationException.accept(element, e, jsCode.toString());
-                  }
-               } else {
-                  nonFuncResultConsumer.accept(element);
-               }
-            }
-         } finally {
-            if (out.size() > 0) {
-               jsOutputConsumer.accept(out.toString(StandardCharsets.UTF_8));
-            }
-            context.leave();
-         }
-      }
-   }
-
-   static <T> T evaluateOnce(String function, JsonNode input, Function<Value, T> processResult, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
-      StringBuilder jsCode = new StringBuilder("const __obj = ").append(input).append(";\n");
-      jsCode.append("const __func = ").append(function).append(";\n");
-      jsCode.append("__func(__obj)");
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      try (Context context = Context.newBuilder("js").out(out).err(out).build()) {
-         context.enter();
-         try {
-            Value value = context.eval("js", jsCode);
-            return processResult.apply(value);
-         } catch (PolyglotException e) {
-            onException.accept(jsCode.toString(), e);
-            return null;
-         } finally {
-            if (out.size() > 0) {
-               onOutput.accept(out.toString());
-            }
-            context.leave();
-         }
-      }
-   }
-
-   static boolean evaluateTest(String function, JsonNode input,
-                               Predicate<Value> onNotBoolean, BiConsumer<String, Throwable> onException, Consumer<String> onOutput) {
-      Boolean res = evaluateOnce(makeFilter(function), input, result -> {
-         if (result.isBoolean()) {
-            return result.asBoolean();
-         } else {
-            return onNotBoolean.test(result);
-         }
-      }, onException, onOutput);
-      return res != null && res;
-   }
-
    public static String makeFilter(String function) {
       return "__x => (!!(" + function + ")(__x))";
    }
@@ -0,0 +1,74 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class EDivisiveModelTest {
+   private static DataPointSeries series(double... values) {
+      DataPointSeries.Builder builder = new DataPointSeries.Builder();
+      for (int i = 0; i < values.length; ++i) {
+         builder.add(values[i], 1000L * i, i + 1, 100 + i, 0);
+      }
+      return builder.build();
+   }
+
+   // noise is deterministic: -1, 0, 1, -1, ...
+   private static double[] step(int before, double meanBefore, int after, double meanAfter, double noise) {
+      double[] values = new double[before + after];
+      for (int i = 0; i < values.length; ++i) {
+         values[i] = (i < before ? meanBefore : meanAfter) + (i % 3 - 1) * noise;
+      }
+      return values;
+   }
+
+   @Test
+   public void testBestSplit() {
+      assertEquals(20, EDivisiveModel.bestSplit(series(step(20, 100, 20, 120, 1)).values, 5));
+      assertEquals(7, EDivisiveModel.bestSplit(series(step(7, 100, 33, 80, 1)).values, 5));
+      // the split cannot leave fewer than minSize datapoints on either side
+      assertEquals(5, EDivisiveModel.bestSplit(series(step(3, 100, 37, 80, 1)).values, 5));
+   }
+
+   @Test
+   public void testChange() {
+      DataPointSeries series = series(step(20, 100, 20, 120, 1));
+      EDivisiveModel.Split split = EDivisiveModel.findChange(series.values, 0.001, 0.05, 5);
+      assertNotNull(split);
+      assertEquals(20, split.index);
+      assertEquals(100, split.before.mean, 0.5);
+      assertEquals(120, split.after.mean, 0.5);
+      assertEquals(0.2, split.magnitude, 0.01);
+      assertTrue(split.p < 0.001);
+      assertEquals("120/0", series.dataset(split.index));
+   }
+
+   @Test
+   public void testPValueThreshold() {
+      double[] values = step(20, 100, 20, 101, 2);
+      EDivisiveModel.Split split = EDivisiveModel.findChange(values, 1, 0, 5);
+      assertNotNull(split);
+      assertEquals(20, split.index);
+      assertTrue(split.p > 0.001 && split.p < 0.5, "p-value " + split.p);
+      assertNull(EDivisiveModel.findChange(values, split.p, 0, 5));
+      assertNotNull(EDivisiveModel.findChange(values, Math.nextUp(split.p), 0, 5));
+      assertNull(EDivisiveModel.findChange(values, 0.001, 0, 5));
+   }
+
+   @Test
+   public void testMinMagnitude() {
+      double[] values = step(20, 100, 20, 120, 1);
+      assertNotNull(EDivisiveModel.findChange(values, 0.001, 0.15, 5));
+      assertNull(EDivisiveModel.findChange(values, 0.001, 0.25, 5));
+   }
+
+   @Test
+   public void testNoChange() {
+      assertEquals(-1, EDivisiveModel.bestSplit(series(step(20, 100, 20, 100, 0)).values, 5));
+      assertNull(EDivisiveModel.findChange(step(20, 100, 20, 100, 0), 0.001, 0, 5));
+      assertNull(EDivisiveModel.findChange(step(20, 100, 20, 100, 1), 0.001, 0, 5));
+   }
+}
@@ -0,0 +1,55 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class EwmaModelTest {
+   private static final double LAMBDA = 0.2;
+   private static final double WIDTH = 3;
+   private static final int BASELINE = 10;
+
+   // baseline alternates 99 and 101: mean 100, stddev 1.054
+   private static DataPointSeries series(double... following) {
+      DataPointSeries.Builder builder = new DataPointSeries.Builder();
+      for (int i = 0; i < BASELINE + following.length; ++i) {
+         double value = i < BASELINE ? (i % 2 == 0 ? 99 : 101) : following[i - BASELINE];
+         builder.add(value, 1000L * i, i + 1, 100 + i, 0);
+      }
+      return builder.build();
+   }
+
+   @Test
+   public void testLargeShift() {
+      EwmaModel.Crossing crossing = EwmaModel.findCrossing(series(110, 110).values, LAMBDA, WIDTH, BASELINE);
+      assertNotNull(crossing);
+      assertEquals(BASELINE, crossing.index);
+      assertEquals(100, crossing.mean, 0.001);
+      assertEquals(102, crossing.ewma, 0.001);
+      assertTrue(Math.abs(crossing.ewma - crossing.mean) > crossing.limit);
+   }
+
+   @Test
+   public void testSmallShiftCrossesLimitLater() {
+      DataPointSeries series = series(102, 102, 102, 102);
+      EwmaModel.Crossing crossing = EwmaModel.findCrossing(series.values, LAMBDA, WIDTH, BASELINE);
+      assertNotNull(crossing);
+      // moving average 100.4, 100.72 and 100.976 against limits 0.63, 0.81 and 0.91
+      assertEquals(BASELINE + 2, crossing.index);
+      assertEquals(100.976, crossing.ewma, 0.001);
+      assertEquals(0.905, crossing.limit, 0.001);
+      assertEquals("112/0", series.dataset(crossing.index));
+      // wider limits are not crossed yet
+      assertNull(EwmaModel.findCrossing(series.values, LAMBDA, 5, BASELINE));
+   }
+
+   @Test
+   public void testNoChange() {
+      assertNull(EwmaModel.findCrossing(series(99, 101, 99, 101, 99, 101).values, LAMBDA, WIDTH, BASELINE));
+      // single outlier is smoothed out
+      assertNull(EwmaModel.findCrossing(series(103, 99, 101, 99, 101).values, LAMBDA, WIDTH, BASELINE));
+   }
+}
@@ -0,0 +1,69 @@
+package io.hyperfoil.tools.horreum.changedetection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MannWhitneyModelTest {
+   private static final double P_VALUE = 0.01;
+   private static final int PREVIOUS = 10;
+   private static final int WINDOW = 5;
+
+   // previous datapoints alternate 99 and 101: median 100
+   private static double[] values(double... window) {
+      double[] values = new double[PREVIOUS + window.length];
+      for (int i = 0; i < values.length; ++i) {
+         values[i] = i < PREVIOUS ? (i % 2 == 0 ? 99 : 101) : window[i - PREVIOUS];
+      }
+      return values;
+   }
+
+   @Test
+   public void testPValue() {
+      // U = 9, mean 4.5, variance 5.25
+      assertEquals(0.0809, MannWhitneyModel.test(new double[] { 1, 2, 3 }, new double[] { 4, 5, 6 }), 0.0001);
+      assertEquals(1, MannWhitneyModel.test(new double[] { 1, 1, 1 }, new double[] { 1, 1 }), 0);
+   }
+
+   @Test
+   public void testShift() {
+      MannWhitneyModel.Shift shift = MannWhitneyModel.findShift(values(110, 110, 110, 110, 110), P_VALUE, 0.05, WINDOW);
+      assertNotNull(shift);
+      assertEquals(PREVIOUS, shift.index);
+      assertEquals(100, shift.previousMedian, 0.001);
+      assertEquals(110, shift.recentMedian, 0.001);
+      assertEquals(0.1, shift.magnitude, 0.001);
+      assertTrue(shift.p < P_VALUE);
+   }
+
+   @Test
+   public void testShiftStartsOnItsSide() {
+      double[] values = values(100, 110, 110, 110, 110);
+      // p-value is about 0.014
+      assertNull(MannWhitneyModel.findShift(values, P_VALUE, 0.05, WINDOW));
+      MannWhitneyModel.Shift shift = MannWhitneyModel.findShift(values, 0.05, 0.05, WINDOW);
+      assertNotNull(shift);
+      // the first datapoint in the window is not above the previous median
+      assertEquals(PREVIOUS + 1, shift.index);
+   }
+
+   @Test
+   public void testSmallShift() {
+      double[] values = values(102, 102, 102, 102, 102);
+      // ranks are the same as with a large shift, only the magnitude differs
+      assertNull(MannWhitneyModel.findShift(values, P_VALUE, 0.05, WINDOW));
+      MannWhitneyModel.Shift shift = MannWhitneyModel.findShift(values, P_VALUE, 0.01, WINDOW);
+      assertNotNull(shift);
+      assertEquals(0.02, shift.magnitude, 0.001);
+   }
+
+   @Test
+   public void testNoShift() {
+      assertNull(MannWhitneyModel.findShift(values(99, 101, 99, 101, 99), P_VALUE, 0, WINDOW));
+      // single outlier does not make a difference in ranks
+      assertNull(MannWhitneyModel.findShift(values(99, 101, 1000, 99, 101), P_VALUE, 0, WINDOW));
+   }
+}
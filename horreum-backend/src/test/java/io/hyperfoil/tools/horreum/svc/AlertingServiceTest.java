@@ -23,6 +23,8 @@ import java.util.stream.IntStream;
 import io.hyperfoil.tools.horreum.api.alerting.ChangeDetection;
 import io.hyperfoil.tools.horreum.api.alerting.DataPoint;
 import io.hyperfoil.tools.horreum.api.alerting.RunExpectation;
+import io.hyperfoil.tools.horreum.api.alerting.Variable;
+import io.hyperfoil.tools.horreum.api.changes.Target;
 import io.hyperfoil.tools.horreum.api.data.Dataset;
 import io.hyperfoil.tools.horreum.api.data.Fingerprints;
 import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
@@ -49,8 +51,13 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.hyperfoil.tools.horreum.api.internal.services.AlertingService;
+import io.hyperfoil.tools.horreum.api.internal.services.ChangesService;
 import io.hyperfoil.tools.horreum.api.services.TestService;
+import io.hyperfoil.tools.horreum.changedetection.EDivisiveModel;
+import io.hyperfoil.tools.horreum.changedetection.EwmaModel;
 import io.hyperfoil.tools.horreum.changedetection.FixedThresholdModel;
+import io.hyperfoil.tools.horreum.changedetection.MannWhitneyModel;
+import io.hyperfoil.tools.horreum.changedetection.RelativeDifferenceChangeDetectionModel;
 import io.hyperfoil.tools.horreum.entity.FingerprintDAO;
 import io.hyperfoil.tools.horreum.server.CloseMe;
 import io.hyperfoil.tools.horreum.server.RoleManager;
@@ -165,7 +172,7 @@ public class AlertingServiceTest extends BaseServiceTest {
 
       assertNull(changeQueue.poll(50, TimeUnit.MILLISECONDS));
 
-      uploadRun(ts + 4, ts + 4, runWithValue(3, schema), test.name);
+      int run5 = uploadRun(ts + 4, ts + 4, runWithValue(3, schema), test.name);
       assertValue(datapointQueue, 3);
 
       Change.Event changeEvent1 = changeQueue.poll(10, TimeUnit.SECONDS);
@@ -173,6 +180,8 @@ public class AlertingServiceTest extends BaseServiceTest {
       testSerialization(changeEvent1, Change.Event.class);
       // The change is detected already at run 4 because it's > than the previous mean
       assertEquals(run4, changeEvent1.change.dataset.runId);
+      // datasets are described by run ID and ordinal
+      assertTrue(changeEvent1.change.description.contains(" - " + run5 + "/0 ("), changeEvent1.change.description);
 
       ((ObjectNode) cd.config).put("filter", "min");
       setTestVariables(test, "Value", "value", cd);
@@ -204,6 +213,109 @@ public class AlertingServiceTest extends BaseServiceTest {
       assertEquals(run6, changeEvent3.change.dataset.runId);
    }
 
+   @org.junit.jupiter.api.Test
+   public void testChangeDetectionStatistics(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      addChangeDetectionVariable(test, 0.1, 1);
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == test.id);
+      BlockingQueue<Change.Event> changeQueue = eventConsumerQueue(Change.Event.class, MessageBusChannels.CHANGE_NEW, e -> e.dataset.testId == test.id);
+
+      long ts = System.currentTimeMillis();
+      for (int i = 0; i < 3; ++i) {
+         uploadRun(ts + i, ts + i, runWithValue(1, schema), test.name);
+         assertValue(datapointQueue, 1);
+      }
+      TestUtil.eventually(() -> assertEquals(3, statisticsCount(test.id)));
+      assertNull(changeQueue.poll(50, TimeUnit.MILLISECONDS));
+
+      // out-of-order datapoint invalidates the statistics, these are rebuilt from all datapoints
+      uploadRun(ts - 1, ts - 1, runWithValue(1, schema), test.name);
+      assertValue(datapointQueue, 1);
+      TestUtil.eventually(() -> assertEquals(4, statisticsCount(test.id)));
+
+      int run = uploadRun(ts + 3, ts + 3, runWithValue(2, schema), test.name);
+      assertValue(datapointQueue, 2);
+      Change.Event changeEvent = changeQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(changeEvent);
+      assertEquals(run, changeEvent.change.dataset.runId);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testChangeDetectionWatermark(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      addChangeDetectionVariable(test);
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == test.id);
+
+      long ts = System.currentTimeMillis();
+      uploadRun(ts, ts, runWithValue(1, schema), test.name);
+      assertValue(datapointQueue, 1);
+      uploadRun(ts + 1, ts + 1, runWithValue(1, schema), test.name);
+      assertValue(datapointQueue, 1);
+      TestUtil.eventually(() -> assertEquals(Instant.ofEpochMilli(ts + 1), watermark(test.id)));
+
+      // datapoint preceding the watermark moves it back, change detection continues from there
+      uploadRun(ts - 1, ts - 1, runWithValue(1, schema), test.name);
+      assertValue(datapointQueue, 1);
+      TestUtil.eventually(() -> assertEquals(3, statisticsCount(test.id)));
+      assertEquals(Instant.ofEpochMilli(ts + 1), watermark(test.id));
+   }
+
+   private Instant watermark(int testId) {
+      return Util.withTx(tm, () -> {
+         List<?> timestamps = em.createNativeQuery("SELECT w.timestamp FROM change_detection_watermark w " +
+               "JOIN variable v ON v.id = w.variable_id WHERE v.testid = ?1 AND w.inclusive", Instant.class)
+               .setParameter(1, testId).getResultList();
+         return timestamps.isEmpty() ? null : (Instant) timestamps.get(0);
+      });
+   }
+
+   private long statisticsCount(int testId) {
+      return Util.withTx(tm, () -> {
+         List<?> counts = em.createNativeQuery("SELECT (state->>'count')::bigint FROM datapoint_statistics ds " +
+               "JOIN variable v ON v.id = ds.variable_id WHERE v.testid = ?1")
+               .setParameter(1, testId).getResultList();
+         return counts.isEmpty() ? -1 : ((Number) counts.get(0)).longValue();
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRecalculationStatus(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      addChangeDetectionVariable(test, 0.1, 1);
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == test.id);
+      BlockingQueue<Change.Event> changeQueue = eventConsumerQueue(Change.Event.class, MessageBusChannels.CHANGE_NEW, e -> e.dataset.testId == test.id);
+
+      long ts = System.currentTimeMillis();
+      double[] values = { 1, 1, 1, 1, 2 };
+      int lastRun = 0;
+      for (int i = 0; i < values.length; ++i) {
+         lastRun = uploadRun(ts + i, ts + i, runWithValue(values[i], schema), test.name);
+         assertValue(datapointQueue, values[i]);
+      }
+      assertEquals(lastRun, changeQueue.poll(10, TimeUnit.SECONDS).change.dataset.runId);
+
+      jsonRequest().post("/api/alerting/recalculate?test=" + test.id).then().statusCode(204);
+      drainQueue(datapointQueue, values.length);
+      TestUtil.eventually(() -> {
+         AlertingService.DatapointRecalculationStatus status = jsonRequest().get("/api/alerting/recalculate?test=" + test.id)
+               .then().statusCode(200).extract().body().as(AlertingService.DatapointRecalculationStatus.class);
+         assertTrue(status.done);
+         assertEquals(100, status.percentage);
+         assertEquals(values.length, status.totalDatasets);
+         assertEquals(values.length, status.processedDatasets);
+      });
+      // the change was deleted during recalculation and it's found again
+      Change.Event changeEvent = changeQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(changeEvent);
+      assertEquals(lastRun, changeEvent.change.dataset.runId);
+   }
+
    private <T> void testSerialization(T event, Class<T> eventClass) {
       // test serialization and deserialization
       JsonNode changeJson = Util.OBJECT_MAPPER.valueToTree(event);
@@ -252,6 +364,101 @@ public class AlertingServiceTest extends BaseServiceTest {
       assertEquals(run14, changeEvent2.dataset.runId);
    }
 
+   @org.junit.jupiter.api.Test
+   public void testChangesQuery(TestInfo info) throws InterruptedException {
+      Test test = createExampleTest(getTestName(info));
+      test.fingerprintLabels = jsonArray("config");
+      test = createTest(test);
+      int testId = test.id;
+      Schema schema = createExampleSchema(info);
+      addLabel(schema, "config", null, new Extractor("config", "$.config", false));
+      addChangeDetectionVariable(test);
+      int variableId = variables(testId).get(0).id;
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == testId);
+      long ts = System.currentTimeMillis();
+      for (int i = 1; i <= 10; ++i) {
+         uploadRun(ts + 2 * i, ts + 2 * i, runWithValue(i, schema).put("config", "foo"), test.name);
+         assertValue(datapointQueue, i);
+         uploadRun(ts + 2 * i + 1, ts + 2 * i + 1, runWithValue(100, schema).put("config", "bar"), test.name);
+         assertValue(datapointQueue, 100);
+      }
+
+      ChangesService.Query query = new ChangesService.Query();
+      query.range = new ChangesService.Range();
+      query.range.from = Instant.ofEpochMilli(ts);
+      query.range.to = Instant.ofEpochMilli(ts + 100);
+      query.targets = Collections.singletonList(new Target(variableId + ";{\"config\":\"foo\"}", "timeseries", "A"));
+      List<Number[]> datapoints = queryChanges(query);
+      assertEquals(10, datapoints.size());
+      for (int i = 0; i < 10; ++i) {
+         assertEquals(i + 1, datapoints.get(i)[0].doubleValue());
+      }
+
+      query.maxDataPoints = 4;
+      datapoints = queryChanges(query);
+      assertEquals(4, datapoints.size());
+      assertEquals(1, datapoints.get(0)[0].doubleValue());
+      assertEquals(10, datapoints.get(3)[0].doubleValue());
+
+      query.maxDataPoints = 6;
+      query.downsampling = "minmax";
+      datapoints = queryChanges(query);
+      assertTrue(datapoints.size() <= 6, "Too many datapoints: " + datapoints.size());
+      assertEquals(1, datapoints.get(0)[0].doubleValue());
+      assertEquals(10, datapoints.get(datapoints.size() - 1)[0].doubleValue());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testFingerprintHash(TestInfo info) throws InterruptedException {
+      // hash computed in Java must match the one computed when migrating fingerprints in the database
+      for (String fp : Arrays.asList("{}", "{\"config\":\"foo\"}", "{\"b\":\"2\",\"a\":\"1\",\"aa\":\"\\\"x\\\"\\n\"}",
+            "{\"n\":1.50,\"m\":[1,true,null,{\"z\":\"\\u0001\u00e9\"}]}", "{\"\u00e9\":\"x\",\"z\":\"y\"}")) {
+         JsonNode node = Util.toJsonNode(fp);
+         Number dbHash = Util.withTx(tm, () -> (Number) em.createNativeQuery("SELECT fingerprint_hash(CAST(?1 AS jsonb))")
+               .setParameter(1, fp).getSingleResult());
+         assertEquals(dbHash.intValue(), FingerprintDAO.hash(node), fp);
+      }
+      assertEquals(FingerprintDAO.hash(Util.toJsonNode("{\"a\":1,\"b\":\"x\"}")), FingerprintDAO.hash(Util.toJsonNode("{\"b\":\"x\",\"a\":1.0}")));
+
+      Test test = createExampleTest(getTestName(info));
+      test.fingerprintLabels = jsonArray("config");
+      test = createTest(test);
+      int testId = test.id;
+      Schema schema = createExampleSchema(info);
+      addLabel(schema, "config", null, new Extractor("config", "$.config", false));
+      addChangeDetectionVariable(test);
+      int variableId = variables(testId).get(0).id;
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == testId);
+      long ts = System.currentTimeMillis();
+      uploadRun(ts, ts, runWithValue(1, schema).put("config", "foo"), test.name);
+      assertValue(datapointQueue, 1);
+      uploadRun(ts + 1, ts + 1, runWithValue(2, schema).put("config", "bar"), test.name);
+      assertValue(datapointQueue, 2);
+
+      AlertingService.LastDatapointsParams params = new AlertingService.LastDatapointsParams();
+      params.fingerprint = "{\"config\":\"foo\"}";
+      params.variables = new int[] { variableId };
+      JsonNode timestamps = jsonRequest().body(params).post("/api/alerting/datapoint/last")
+            .then().statusCode(200).extract().body().as(JsonNode.class);
+      assertEquals(1, timestamps.size());
+      assertEquals(variableId, timestamps.get(0).path("variable").asInt());
+      assertEquals(ts, timestamps.get(0).path("timestamp").asLong());
+
+      params.fingerprint = "{\"config\":\"baz\"}";
+      timestamps = jsonRequest().body(params).post("/api/alerting/datapoint/last")
+            .then().statusCode(200).extract().body().as(JsonNode.class);
+      assertEquals(0, timestamps.size());
+   }
+
+   private List<Number[]> queryChanges(ChangesService.Query query) {
+      List<ChangesService.TimeseriesTarget> result = jsonRequest().body(query).post("/api/changes/query")
+            .then().statusCode(200).extract().body().as(new ParameterizedTypeImpl(List.class, ChangesService.TimeseriesTarget.class));
+      assertEquals(1, result.size());
+      return result.get(0).datapoints;
+   }
+
    private DataPoint assertValue(BlockingQueue<DataPoint.Event> datapointQueue, double value) throws InterruptedException {
       DataPoint.Event dpe = datapointQueue.poll(10, TimeUnit.SECONDS);
       assertNotNull(dpe);
@@ -639,6 +846,45 @@ public class AlertingServiceTest extends BaseServiceTest {
       assertEquals(run4, changeEvent2.change.dataset.runId);
    }
 
+   @org.junit.jupiter.api.Test
+   public void testMannWhitney(TestInfo info) throws InterruptedException {
+      List<String> models = jsonRequest().get("/api/alerting/changeDetectionModels").then().statusCode(200)
+            .extract().jsonPath().getList("name", String.class);
+      assertTrue(models.containsAll(Arrays.asList(RelativeDifferenceChangeDetectionModel.NAME, FixedThresholdModel.NAME,
+            EDivisiveModel.NAME, MannWhitneyModel.NAME, EwmaModel.NAME)), models.toString());
+
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      ChangeDetection cd = new ChangeDetection();
+      cd.model = MannWhitneyModel.NAME;
+      cd.config = JsonNodeFactory.instance.objectNode().put("pValue", 0.05).put("minMagnitude", 0.1).put("window", 3).put("minPrevious", 5);
+      setTestVariables(test, "Value", "value", cd);
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == test.id);
+      BlockingQueue<Change.Event> changeQueue = eventConsumerQueue(Change.Event.class, MessageBusChannels.CHANGE_NEW, e -> e.dataset.testId == test.id);
+
+      long ts = System.currentTimeMillis();
+      int i = 0;
+      for (double value : new double[] { 10, 11, 10, 9, 10, 10 }) {
+         uploadRun(ts + i, ts + i, runWithValue(value, schema), test.name);
+         assertValue(datapointQueue, value);
+         ++i;
+      }
+      assertNull(changeQueue.poll(50, TimeUnit.MILLISECONDS));
+
+      int run7 = uploadRun(ts + 6, ts + 6, runWithValue(20, schema), test.name);
+      assertValue(datapointQueue, 20);
+      uploadRun(ts + 7, ts + 7, runWithValue(21, schema), test.name);
+      assertValue(datapointQueue, 21);
+      // one value of the window is still equal to the previous ones
+      assertNull(changeQueue.poll(50, TimeUnit.MILLISECONDS));
+      uploadRun(ts + 8, ts + 8, runWithValue(20, schema), test.name);
+      assertValue(datapointQueue, 20);
+      Change.Event changeEvent = changeQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(changeEvent);
+      assertEquals(run7, changeEvent.change.dataset.runId);
+   }
+
    @org.junit.jupiter.api.Test
    public void testCustomTimeline(TestInfo info) throws InterruptedException {
       Test test = createTest(createExampleTest(getTestName(info)));
@@ -689,6 +935,52 @@ public class AlertingServiceTest extends BaseServiceTest {
       jsonRequest().queryParam("testId", test.id).body(update).post("/api/alerting/changeDetection").then().statusCode(204);
    }
 
+   @org.junit.jupiter.api.Test
+   public void testVariablesChange(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      addChangeDetectionVariable(test);
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == test.id);
+
+      long ts = System.currentTimeMillis();
+      uploadRun(ts, ts, runWithValue(1, schema), test.name);
+      assertValue(datapointQueue, 1);
+
+      // the cached evaluation plan must not be used after the variables change
+      List<Variable> variables = variables(test.id);
+      assertEquals(1, variables.size());
+      variables.get(0).calculation = "value => value * 2";
+      updateVariables(test.id, variables);
+
+      uploadRun(ts + 1, ts + 1, runWithValue(3, schema), test.name);
+      assertValue(datapointQueue, 6);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testVariablesChangedByOtherInstance(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      addChangeDetectionVariable(test);
+
+      BlockingQueue<DataPoint.Event> datapointQueue = eventConsumerQueue(DataPoint.Event.class, MessageBusChannels.DATAPOINT_NEW, e -> e.testId == test.id);
+
+      long ts = System.currentTimeMillis();
+      uploadRun(ts, ts, runWithValue(1, schema), test.name);
+      assertValue(datapointQueue, 1);
+
+      // another instance changes the variable: the cached plan is not invalidated locally
+      Util.withTx(tm, () -> {
+         try (CloseMe h = roleManager.withRoles(SYSTEM_ROLES)) {
+            return em.createNativeQuery("UPDATE variable SET calculation = 'value => value * 2' WHERE testid = ?1")
+                  .setParameter(1, test.id).executeUpdate();
+         }
+      });
+
+      uploadRun(ts + 1, ts + 1, runWithValue(3, schema), test.name);
+      assertValue(datapointQueue, 6);
+   }
+
    @org.junit.jupiter.api.Test
    public void testLabelsChange(TestInfo info) throws InterruptedException {
       Test test = createTest(createExampleTest(getTestName(info)));
@@ -818,6 +818,7 @@ public class BaseServiceTest {
       tables.remove("databasechangelog");
       tables.remove("databasechangeloglock");
       tables.remove("dbsecret");
+      tables.remove("verified_role_signature");
       tables.remove("view_recalc_queue");
       tables.remove("label_recalc_queue");
       tables.remove("fingerprint_recalc_queue");
@@ -1,15 +1,22 @@
 package io.hyperfoil.tools.horreum.svc;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
@@ -20,6 +27,10 @@ import io.hyperfoil.tools.horreum.api.internal.services.SqlService;
 import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
 import jakarta.inject.Inject;
 
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.graalvm.polyglot.PolyglotException;
+import org.junit.jupiter.api.TestInfo;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
@@ -28,6 +39,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.hyperfoil.tools.horreum.api.data.*;
 import io.hyperfoil.tools.horreum.api.data.Extractor;
+import io.hyperfoil.tools.horreum.entity.PersistentLogDAO;
+import io.hyperfoil.tools.horreum.entity.alerting.DatasetLogDAO;
 import io.hyperfoil.tools.horreum.entity.data.*;
 import io.hyperfoil.tools.horreum.entity.data.ViewComponentDAO;
 import io.hyperfoil.tools.horreum.mapper.LabelMapper;
@@ -49,6 +62,9 @@ public class DatasetServiceTest extends BaseServiceTest {
    @Inject
    SqlService sqlService;
 
+   @Inject
+   JavascriptService jsService;
+
    @org.junit.jupiter.api.Test
    public void testDatasetQueryNoSchema() {
       String value = testDatasetQuery("$.value", false, null);
@@ -223,6 +239,205 @@ public class DatasetServiceTest extends BaseServiceTest {
       }, "urn:A", "urn:B");
    }
 
+   @org.junit.jupiter.api.Test
+   public void testLabelsCalculatedForAllDatasetsOfRun(TestInfo info) throws InterruptedException {
+      Schema schema = createExampleSchema("BatchCorp", "BatchInc", "BatchRrUs", false);
+      Schema target = createSchema("BatchTarget", postFunctionSchemaUri(schema));
+      int plainLabel = addLabel(target, "plain", null, new Extractor("value", "$.value", false));
+      int doubleLabel = addLabel(target, "double", "v => { console.log('value ' + v); if (v === 2) { throw new Error('two'); } return v * 2; }",
+            new Extractor("value", "$.value", false));
+      Transformer transformer = createTransformer("batchT", schema, "values => values.map(v => ({ value: v }))",
+            new Extractor("values", "$.values", false));
+      Test test = createTest(createExampleTest(getTestName(info)));
+      addTransformer(test, transformer);
+      BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue = eventConsumerQueue(Dataset.LabelsUpdatedEvent.class,
+            MessageBusChannels.DATASET_UPDATED_LABELS, e -> checkTestId(e.datasetId, test.id));
+
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("$schema", schema.uri);
+      data.putArray("values").add(1).add(2).add(3);
+      uploadRun(data, test.name);
+      Set<Integer> datasetIds = new HashSet<>();
+      for (int i = 0; i < 3; ++i) {
+         Dataset.LabelsUpdatedEvent event = updateQueue.poll(10, TimeUnit.SECONDS);
+         assertNotNull(event);
+         datasetIds.add(event.datasetId);
+      }
+      assertEquals(3, datasetIds.size());
+
+      // values, errors and output of the functions are attributed to the right dataset
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            for (int datasetId : datasetIds) {
+               DatasetDAO dataset = DatasetDAO.findById(datasetId);
+               int value = dataset.data.path(0).path("value").asInt();
+               List<LabelValueDAO> values = LabelValueDAO.<LabelValueDAO>find("datasetId", datasetId).list();
+               assertEquals(value, values.stream().filter(v -> v.labelId == plainLabel).map(v -> v.value.asInt()).findFirst().orElse(null));
+               List<DatasetLogDAO> logs = DatasetLogDAO.<DatasetLogDAO>find("dataset.id", datasetId).list();
+               assertTrue(logs.stream().anyMatch(l -> l.level == PersistentLogDAO.DEBUG && l.message.contains("value " + value)));
+               assertEquals(1, logs.stream().filter(l -> l.message.contains("value ")).count());
+               if (value == 2) {
+                  assertTrue(values.stream().noneMatch(v -> v.labelId == doubleLabel));
+                  assertTrue(logs.stream().anyMatch(l -> l.level == PersistentLogDAO.ERROR));
+               } else {
+                  assertEquals(2 * value, values.stream().filter(v -> v.labelId == doubleLabel).map(v -> v.value.asInt()).findFirst().orElse(null));
+                  assertTrue(logs.stream().noneMatch(l -> l.level == PersistentLogDAO.ERROR));
+               }
+            }
+            return null;
+         }
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testConcurrentUploadsToTwoTests(TestInfo info) throws Exception {
+      Schema schema = createExampleSchema("ConcurrentCorp", "ConcurrentInc", "ConcurrentRrUs", false);
+      int label = addLabel(schema, "value", null, new Extractor("value", "$.value", false));
+      Test test1 = createTest(createExampleTest(getTestName(info) + "1"));
+      Test test2 = createTest(createExampleTest(getTestName(info) + "2"));
+      int runsPerTest = 10;
+      BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue = eventConsumerQueue(Dataset.LabelsUpdatedEvent.class,
+            MessageBusChannels.DATASET_UPDATED_LABELS, e -> checkTestId(e.datasetId, test1.id) || checkTestId(e.datasetId, test2.id));
+
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<Integer>> uploads = new ArrayList<>();
+         for (int i = 0; i < runsPerTest; ++i) {
+            for (Test test : List.of(test1, test2)) {
+               ObjectNode data = JsonNodeFactory.instance.objectNode().put("$schema", schema.uri).put("value", i);
+               uploads.add(executor.submit(() -> uploadRun(data, test.name)));
+            }
+         }
+         for (Future<Integer> upload : uploads) {
+            upload.get(30, TimeUnit.SECONDS);
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+      Set<Integer> datasetIds = new HashSet<>();
+      for (int i = 0; i < 2 * runsPerTest; ++i) {
+         Dataset.LabelsUpdatedEvent event = updateQueue.poll(30, TimeUnit.SECONDS);
+         assertNotNull(event);
+         datasetIds.add(event.datasetId);
+      }
+      assertEquals(2 * runsPerTest, datasetIds.size());
+
+      // no calculation was lost to a rolled back transaction
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            for (Test test : List.of(test1, test2)) {
+               List<DatasetDAO> datasets = DatasetDAO.<DatasetDAO>find("testid", test.id).list();
+               assertEquals(runsPerTest, datasets.size());
+               for (DatasetDAO dataset : datasets) {
+                  LabelValueDAO value = LabelValueDAO.<LabelValueDAO>find("datasetId = ?1 AND labelId = ?2", dataset.id, label).firstResult();
+                  assertNotNull(value);
+                  assertEquals(dataset.data.path(0).path("value").asInt(), value.value.asInt());
+               }
+            }
+            return null;
+         }
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testDatasetLabelsCannotModifyBuiltins() {
+      withExampleSchemas((schemas) -> {
+         int labelA = addLabel(schemas[0], "A", "v => { JSON.stringify = () => 'forged'; Array.prototype.map = () => []; Math.max = () => -1; return Math.max(v, 0); }",
+               new Extractor("value", "$.value", false));
+         int labelB = addLabel(schemas[1], "B", "v => JSON.stringify([v].map(x => Math.max(x, 0) + 1))",
+               new Extractor("value", "$.value", false));
+         List<Label.Value> values = withLabelValues(createABData());
+         assertEquals(24, values.stream().filter(v -> v.labelId == labelA).map(v -> v.value.numberValue()).findFirst().orElse(null));
+         assertEquals("[43]", values.stream().filter(v -> v.labelId == labelB).map(v -> v.value.asText()).findFirst().orElse(null));
+      }, "urn:A", "urn:B");
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testJavascriptEvaluationsIsolated() {
+      JsonNode input = JsonNodeFactory.instance.numberNode(42);
+      String closure = "(() => { let counter = 0; return x => ++counter; })()";
+      jsService.withEvaluator(evaluator -> {
+         assertEquals(42, evaluator.evaluate("x => { JSON.parse = () => 'forged'; Array.prototype.map = () => []; Math.random = () => x; leaked = x; return x; }", input).asInt());
+         assertEquals("[1,[2,4],true]", evaluator.evaluate("x => JSON.stringify([JSON.parse('1'), [1, 2].map(v => v * 2), Math.random() < 1])", input).asString());
+         assertThrows(PolyglotException.class, () -> evaluator.evaluate("x => { 'use strict'; Object.prototype.polluted = x; }", input));
+         // properties inherited from frozen prototypes can still be set on instances
+         assertEquals("E: m", evaluator.evaluate("x => { class E extends Error { constructor(m) { super(m); this.name = 'E'; } }; return String(new E('m')); }", input).asString());
+         assertEquals("custom", evaluator.evaluate("x => { const o = {}; o.toString = () => 'custom'; return String(o); }", input).asString());
+         // the function is instantiated for each evaluation
+         assertEquals(1, evaluator.evaluate(closure, input).asInt());
+         assertEquals(1, evaluator.evaluate(closure, input).asInt());
+      }, output -> {});
+      jsService.withEvaluator(evaluator -> {
+         assertEquals("undefined", evaluator.evaluate("x => typeof leaked", input).asString());
+         assertEquals(1, evaluator.evaluate(closure, input).asInt());
+      }, output -> {});
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testJavascriptFunctionCache() {
+      String function = "x => x * 3 // testJavascriptFunctionCache";
+      JsonNode input = JsonNodeFactory.instance.numberNode(14);
+      assertFalse(jsService.isCached(function));
+      assertEquals(42, jsService.evaluateInContext(evaluator -> evaluator.evaluate(function, input).asInt(), output -> {}));
+      assertTrue(jsService.isCached(function));
+      jsService.invalidate(function);
+      assertFalse(jsService.isCached(function));
+      assertEquals(42, jsService.evaluateInContext(evaluator -> evaluator.evaluate(function, input).asInt(), output -> {}));
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testLabelFunctionInvalidated() {
+      withExampleSchemas((schemas) -> {
+         String function = "v => v * 2 // testLabelFunctionInvalidated";
+         int labelId = addLabel(schemas[0], "value", function, new Extractor("value", "$.value", false));
+         assertEquals(48, withLabelValues(createABData()).stream().filter(v -> v.labelId == labelId).map(v -> v.value.numberValue()).findFirst().orElse(null));
+         assertTrue(jsService.isCached(function));
+         updateLabel(schemas[0], labelId, "value", "v => v * 3", new Extractor("value", "$.value", false));
+         assertFalse(jsService.isCached(function));
+         assertEquals(72, withLabelValues(createABData()).stream().filter(v -> v.labelId == labelId).map(v -> v.value.numberValue()).findFirst().orElse(null));
+      }, "urn:A");
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testJavascriptInputNotModified() {
+      ObjectNode input = JsonNodeFactory.instance.objectNode();
+      input.putObject("a").put("b", 1);
+      input.putArray("array").add(1).addObject().put("c", 2);
+      input.put("s", "x");
+      ObjectNode original = input.deepCopy();
+
+      JsonNode unchanged = jsService.evaluateInContext(evaluator -> Util.convertToJson(
+            evaluator.evaluate("x => x.a === x.a && x.array[1] === x.array[1] ? x : null", input)), output -> {});
+      assertEquals(original, unchanged);
+
+      JsonNode modified = jsService.evaluateInContext(evaluator -> Util.convertToJson(
+            evaluator.evaluate("x => { x.a.b = 5; x.array.push(3); x.array[1].c = 4; delete x.s; x.size = x.array.length; return x; }", input)), output -> {});
+      // numbers set in Javascript are converted to longs
+      ObjectNode expected = JsonNodeFactory.instance.objectNode();
+      expected.putObject("a").put("b", 5L);
+      expected.putArray("array").add(1).add(JsonNodeFactory.instance.objectNode().put("c", 4L)).add(3L);
+      expected.put("size", 3L);
+      assertEquals(expected, modified);
+      // modifications are never written to the input
+      assertEquals(original, input);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testNestedJavascriptEvaluationDoesNotWait() {
+      int depth = ConfigProvider.getConfig().getValue("horreum.js.pool.max-size", Integer.class) + 2;
+      Duration acquireTimeout = ConfigProvider.getConfig().getValue("horreum.js.pool.acquire-timeout", Duration.class);
+      long start = System.nanoTime();
+      assertEquals(depth, evaluateNested(depth));
+      // nested borrows use a temporary context right away when the pool is exhausted
+      assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(acquireTimeout) < 0);
+   }
+
+   private int evaluateNested(int depth) {
+      return jsService.evaluateInContext(evaluator -> {
+         int nested = depth > 1 ? evaluateNested(depth - 1) : 0;
+         return evaluator.evaluate("x => x + 1", JsonNodeFactory.instance.numberNode(nested)).asInt();
+      }, output -> {});
+   }
+
    private List<Label.Value> withLabelValues(ArrayNode data) {
       Test test = createTest(createExampleTest("dummy"));
       BlockingQueue<Dataset.LabelsUpdatedEvent> updateQueue = eventConsumerQueue(Dataset.LabelsUpdatedEvent.class, MessageBusChannels.DATASET_UPDATED_LABELS, e -> checkTestId(e.datasetId, test.id));
@@ -0,0 +1,118 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.inject.Inject;
+
+import org.junit.jupiter.api.TestInfo;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import io.hyperfoil.tools.horreum.api.alerting.Change;
+import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
+import io.hyperfoil.tools.horreum.entity.alerting.ChangeDAO;
+import io.hyperfoil.tools.horreum.entity.alerting.VariableDAO;
+import io.hyperfoil.tools.horreum.entity.data.DatasetDAO;
+import io.hyperfoil.tools.horreum.events.DatasetChanges;
+import io.hyperfoil.tools.horreum.mapper.ChangeMapper;
+import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
+import io.hyperfoil.tools.horreum.server.CloseMe;
+import io.hyperfoil.tools.horreum.test.HorreumTestProfile;
+import io.hyperfoil.tools.horreum.test.PostgresResource;
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.oidc.server.OidcWiremockTestResource;
+
+@QuarkusTest
+@QuarkusTestResource(PostgresResource.class)
+@QuarkusTestResource(OidcWiremockTestResource.class)
+@TestProfile(HorreumTestProfile.class)
+public class EventAggregatorTest extends BaseServiceTest {
+   @Inject
+   EventAggregator aggregator;
+
+   @org.junit.jupiter.api.Test
+   public void testPostponedChangesEmittedTogether(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int datasetId = createDataset(test);
+      BlockingQueue<DatasetChanges> emitted = eventConsumerQueue(DatasetChanges.class, MessageBusChannels.DATASET_CHANGES_NEW, dc -> dc.dataset.testId == test.id);
+
+      Change.Event first = newChange(test, datasetId);
+      Change.Event second = newChange(test, datasetId);
+      long start = System.currentTimeMillis();
+      aggregator.onNewChange(first);
+      // the second change postpones the emit past the deadline of the first one
+      Thread.sleep(DatasetChanges.EMIT_DELAY / 2);
+      aggregator.onNewChange(second);
+
+      DatasetChanges changes = emitted.poll(10, TimeUnit.SECONDS);
+      assertNotNull(changes);
+      assertTrue(System.currentTimeMillis() - start >= DatasetChanges.EMIT_DELAY * 3 / 2);
+      assertEquals(datasetId, changes.dataset.id);
+      assertTrue(changes.isNotify());
+      assertEquals(List.of(first.change.id, second.change.id), changes.changes().stream().map(c -> c.id).toList());
+      assertNull(emitted.poll(2 * DatasetChanges.EMIT_DELAY, TimeUnit.MILLISECONDS));
+      assertEquals(0, queued(datasetId));
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testChangesInDatasetsEmittedSeparately(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int firstDatasetId = createDataset(test);
+      int secondDatasetId = createDataset(test);
+      BlockingQueue<DatasetChanges> emitted = eventConsumerQueue(DatasetChanges.class, MessageBusChannels.DATASET_CHANGES_NEW, dc -> dc.dataset.testId == test.id);
+
+      aggregator.onNewChange(newChange(test, firstDatasetId));
+      aggregator.onNewChange(newChange(test, secondDatasetId));
+
+      DatasetChanges changes1 = emitted.poll(10, TimeUnit.SECONDS);
+      DatasetChanges changes2 = emitted.poll(10, TimeUnit.SECONDS);
+      assertNotNull(changes1);
+      assertNotNull(changes2);
+      assertEquals(1, changes1.changes().size());
+      assertEquals(1, changes2.changes().size());
+      assertEquals(firstDatasetId + secondDatasetId, changes1.dataset.id + changes2.dataset.id);
+   }
+
+   protected int createDataset(Test test) {
+      int runId = uploadRun(JsonNodeFactory.instance.objectNode().put("value", 42), test.name);
+      waitForDatasets(runId);
+      return Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            DatasetDAO dataset = DatasetDAO.find("run.id", runId).firstResult();
+            assertNotNull(dataset);
+            return dataset.id;
+         }
+      });
+   }
+
+   protected Change.Event newChange(Test test, int datasetId) {
+      if (variables(test.id).isEmpty()) {
+         addChangeDetectionVariable(test);
+      }
+      return Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            DatasetDAO dataset = DatasetDAO.findById(datasetId);
+            ChangeDAO change = ChangeDAO.fromDataset(datasetId, dataset.start);
+            change.variable = VariableDAO.find("testId", test.id).firstResult();
+            change.description = "Injected change";
+            change.persistAndFlush();
+            return new Change.Event(ChangeMapper.from(change), test.name, DatasetMapper.fromInfo(dataset.getInfo()), true);
+         }
+      });
+   }
+
+   protected long queued(int datasetId) {
+      return Util.withTx(tm, () -> ((Number) em.createNativeQuery("SELECT COUNT(*) FROM dataset_changes_queue WHERE dataset_id = ?1")
+            .setParameter(1, datasetId).getSingleResult()).longValue());
+   }
+}
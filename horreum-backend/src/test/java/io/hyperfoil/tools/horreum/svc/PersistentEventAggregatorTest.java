@@ -0,0 +1,98 @@
+package io.hyperfoil.tools.horreum.svc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.query.NativeQuery;
+import org.hibernate.type.StandardBasicTypes;
+import org.junit.jupiter.api.TestInfo;
+import org.mockito.Mockito;
+
+import io.hyperfoil.tools.horreum.api.alerting.Change;
+import io.hyperfoil.tools.horreum.api.data.Test;
+import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
+import io.hyperfoil.tools.horreum.events.DatasetChanges;
+import io.hyperfoil.tools.horreum.test.PersistentChangesTestProfile;
+import io.hyperfoil.tools.horreum.test.PostgresResource;
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.junit.QuarkusMock;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.oidc.server.OidcWiremockTestResource;
+
+// Runs the tests from EventAggregatorTest with the aggregates kept in the database
+@QuarkusTest
+@QuarkusTestResource(PostgresResource.class)
+@QuarkusTestResource(OidcWiremockTestResource.class)
+@TestProfile(PersistentChangesTestProfile.class)
+public class PersistentEventAggregatorTest extends EventAggregatorTest {
+   @org.junit.jupiter.api.Test
+   public void testOrphanedChangesEmitted(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int datasetId = createDataset(test);
+      BlockingQueue<DatasetChanges> emitted = eventConsumerQueue(DatasetChanges.class, MessageBusChannels.DATASET_CHANGES_NEW, dc -> dc.dataset.testId == test.id);
+
+      // left behind by a replica that has stopped: no timer is armed in this one
+      Change.Event event = newChange(test, datasetId);
+      Util.withTx(tm, () -> em.createNativeQuery("INSERT INTO dataset_changes_queue (dataset_id, emit_at, notify, changes) VALUES (?1, ?2, true, ARRAY[?3])")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, datasetId)
+            .setParameter(2, Instant.now().minusSeconds(60), StandardBasicTypes.INSTANT)
+            .setParameter(3, event.change.id)
+            .executeUpdate());
+      assertEquals(1, queued(datasetId));
+
+      // picked up by the periodic check
+      DatasetChanges changes = emitted.poll(10, TimeUnit.SECONDS);
+      assertNotNull(changes);
+      assertEquals(datasetId, changes.dataset.id);
+      assertEquals(List.of(event.change.id), changes.changes().stream().map(c -> c.id).toList());
+      assertEquals(0, queued(datasetId));
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testFailedEmitRetried(TestInfo info) throws InterruptedException {
+      NotificationServiceImpl notificationService = Mockito.mock(NotificationServiceImpl.class);
+      AtomicInteger attempts = new AtomicInteger();
+      CountDownLatch failed = new CountDownLatch(1);
+      Mockito.doAnswer(invocation -> {
+         if (attempts.incrementAndGet() == 1) {
+            failed.countDown();
+            throw new IllegalStateException("Simulated failure");
+         }
+         return null;
+      }).when(notificationService).onNewChanges(Mockito.any(DatasetChanges.class));
+      QuarkusMock.installMockForType(notificationService, NotificationServiceImpl.class);
+
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int datasetId = createDataset(test);
+      BlockingQueue<DatasetChanges> emitted = eventConsumerQueue(DatasetChanges.class, MessageBusChannels.DATASET_CHANGES_NEW, dc -> dc.dataset.testId == test.id);
+
+      Change.Event event = newChange(test, datasetId);
+      Util.withTx(tm, () -> em.createNativeQuery("INSERT INTO dataset_changes_queue (dataset_id, emit_at, notify, changes) VALUES (?1, ?2, true, ARRAY[?3])")
+            .unwrap(NativeQuery.class)
+            .setParameter(1, datasetId)
+            .setParameter(2, Instant.now().minusSeconds(60), StandardBasicTypes.INSTANT)
+            .setParameter(3, event.change.id)
+            .executeUpdate());
+
+      assertTrue(failed.await(10, TimeUnit.SECONDS));
+      // the aggregate is kept until it's emitted successfully
+      assertEquals(1, queued(datasetId));
+
+      // emitted again once the claim expires
+      DatasetChanges changes = emitted.poll(10, TimeUnit.SECONDS);
+      assertNotNull(changes);
+      assertEquals(2, attempts.get());
+      assertEquals(List.of(event.change.id), changes.changes().stream().map(c -> c.id).toList());
+      assertEquals(0, queued(datasetId));
+   }
+}
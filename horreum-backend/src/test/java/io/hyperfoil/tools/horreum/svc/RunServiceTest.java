@@ -2,9 +2,20 @@ package io.hyperfoil.tools.horreum.svc;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -26,12 +37,18 @@ import io.hyperfoil.tools.horreum.api.services.ExperimentService;
 import io.hyperfoil.tools.horreum.api.services.RunService;
 import io.hyperfoil.tools.horreum.bus.MessageBusChannels;
 import io.hyperfoil.tools.horreum.mapper.DatasetMapper;
+import jakarta.inject.Inject;
+import jakarta.persistence.PersistenceException;
 import jakarta.ws.rs.core.HttpHeaders;
 
 import io.hyperfoil.tools.horreum.test.HorreumTestProfile;
 import io.hyperfoil.tools.horreum.api.data.*;
 import io.hyperfoil.tools.horreum.api.data.Extractor;
 import io.hyperfoil.tools.horreum.entity.data.*;
+import org.eclipse.microprofile.config.ConfigProvider;
+import org.hibernate.Hibernate;
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.Session;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.TestInfo;
 
@@ -44,6 +61,8 @@ import io.hyperfoil.tools.horreum.server.CloseMe;
 import io.hyperfoil.tools.horreum.test.PostgresResource;
 import io.hyperfoil.tools.horreum.test.TestUtil;
 import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.arc.impl.ParameterizedTypeImpl;
+import io.quarkus.runtime.configuration.MemorySize;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
 import io.quarkus.test.oidc.server.OidcWiremockTestResource;
@@ -57,6 +76,12 @@ import io.restassured.specification.RequestSpecification;
 public class RunServiceTest extends BaseServiceTest {
    private static final int POLL_DURATION_SECONDS = 10;
 
+   @Inject
+   RunServiceImpl runService;
+
+   @Inject
+   AlertingServiceImpl alertingService;
+
    @org.junit.jupiter.api.Test
    public void testTransformationNoSchemaInData(TestInfo info) throws InterruptedException {
       Test exampleTest = createExampleTest(getTestName(info));
@@ -702,6 +727,423 @@ public class RunServiceTest extends BaseServiceTest {
       int runId = uploadRun("$.start", "$.stop", payload, metadata, test.name, test.owner, Access.PUBLIC);
       assertTrue(runId > 0);
    }
+   @org.junit.jupiter.api.Test
+   public void testAddBulk(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      BlockingQueue<Dataset.EventNew> dataSetQueue = eventConsumerQueue(Dataset.EventNew.class, MessageBusChannels.DATASET_NEW, e -> e.testId == test.id);
+
+      List<Run> runs = new ArrayList<>();
+      for (int i = 0; i < 3; ++i) {
+         Run run = new Run();
+         run.start = Instant.ofEpochMilli(1000 * i);
+         run.stop = Instant.ofEpochMilli(1000 * i + 500);
+         run.data = JsonNodeFactory.instance.objectNode().put("value", i);
+         runs.add(run);
+      }
+      List<Integer> runIds = RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .body(runs)
+            .post("/api/run/bulk?test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(200)
+            .extract().body().as(new ParameterizedTypeImpl(List.class, Integer.class));
+      assertEquals(3, runIds.size());
+      assertEquals(3, new HashSet<>(runIds).size());
+
+      HashSet<Integer> transformedRuns = new HashSet<>();
+      for (int i = 0; i < 3; ++i) {
+         Dataset.EventNew event = dataSetQueue.poll(10, TimeUnit.SECONDS);
+         assertNotNull(event);
+         transformedRuns.add(event.runId);
+      }
+      assertEquals(new HashSet<>(runIds), transformedRuns);
+
+      for (int runId : runIds) {
+         waitForDatasets(runId);
+         RunService.RunTransformationStatus status = jsonRequest().get("/api/run/" + runId + "/transformationStatus")
+               .then().statusCode(200).extract().body().as(RunService.RunTransformationStatus.class);
+         assertFalse(status.pending);
+         assertEquals(1, status.datasets);
+      }
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testAddBulkUploadBudget(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long maxSize = ConfigProvider.getConfig().getValue("horreum.upload.max-size", MemorySize.class).asLongValue();
+      long budget = ConfigProvider.getConfig().getValue("horreum.upload.memory-budget", MemorySize.class).asLongValue();
+      List<Run> runs = new ArrayList<>();
+      for (int i = 0; i < 2; ++i) {
+         Run run = new Run();
+         run.start = Instant.ofEpochMilli(1000 * i);
+         run.stop = Instant.ofEpochMilli(1000 * i + 500);
+         run.data = JsonNodeFactory.instance.objectNode().put("padding", "x".repeat((int) maxSize / 2));
+         runs.add(run);
+      }
+      String url = "/api/run/bulk?test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC;
+      RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .body(runs).post(url).then().statusCode(413);
+
+      runs.forEach(run -> run.data = JsonNodeFactory.instance.objectNode().put("value", 42));
+      int permits = runService.reserveUploadBudget(budget);
+      try {
+         RestAssured.given().auth().oauth2(getUploaderToken())
+               .header(HttpHeaders.CONTENT_TYPE, "application/json")
+               .body(runs).post(url).then().statusCode(503);
+      } finally {
+         runService.releaseUploadBudget(permits);
+      }
+      RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .body(runs).post(url).then().statusCode(200);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testLostTransformationRetried(TestInfo info) throws InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int runId = uploadRun(JsonNodeFactory.instance.objectNode().put("value", 42), test.name);
+      waitForDatasets(runId);
+      BlockingQueue<Dataset.EventNew> dataSetQueue = eventConsumerQueue(Dataset.EventNew.class, MessageBusChannels.DATASET_NEW, e -> e.testId == test.id);
+
+      // the run was queued long ago but the message never arrived
+      Util.withTx(tm, () -> em.createNativeQuery("INSERT INTO run_transformation_queue (runid, queued) VALUES (?1, now() - interval '1 day')")
+            .setParameter(1, runId).executeUpdate());
+      assertTrue(transformationStatus(runId).pending);
+
+      runService.retryStaleTransformations();
+      Dataset.EventNew event = dataSetQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(event);
+      assertEquals(runId, event.runId);
+      waitForDatasets(runId);
+      RunService.RunTransformationStatus status = transformationStatus(runId);
+      assertFalse(status.pending);
+      assertEquals(1, status.datasets);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testTransformationFailureReported(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int runId = uploadRun(JsonNodeFactory.instance.objectNode().put("value", 42), test.name);
+      waitForDatasets(runId);
+
+      Util.withTx(tm, () -> em.createNativeQuery("INSERT INTO run_transformation_queue (runid) VALUES (?1)")
+            .setParameter(1, runId).executeUpdate());
+      runService.transformationFailed(runId, new RuntimeException("Injected failure"));
+      RunService.RunTransformationStatus status = transformationStatus(runId);
+      assertTrue(status.pending);
+      assertNotNull(status.error);
+      assertTrue(status.error.contains("Injected failure"));
+
+      // the last attempt has gone stale: the transformation is given up and not retried anymore
+      int maxAttempts = ConfigProvider.getConfig().getValue("horreum.transformation.retry.max-attempts", Integer.class);
+      Util.withTx(tm, () -> em.createNativeQuery("UPDATE run_transformation_queue SET attempts = ?2, last_attempt = now() - interval '1 day' WHERE runid = ?1")
+            .setParameter(1, runId).setParameter(2, maxAttempts).executeUpdate());
+      runService.retryStaleTransformations();
+      status = transformationStatus(runId);
+      assertFalse(status.pending);
+      assertEquals(maxAttempts, status.attempts);
+      assertTrue(status.error.contains("Injected failure"));
+   }
+
+   private RunService.RunTransformationStatus transformationStatus(int runId) {
+      return jsonRequest().get("/api/run/" + runId + "/transformationStatus")
+            .then().statusCode(200).extract().body().as(RunService.RunTransformationStatus.class);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRunDataLoadedLazily(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      JsonNode metadata = JsonNodeFactory.instance.objectNode().put("$schema", "urn:foobar").put("foo", "bar");
+      int runId = uploadRun(System.currentTimeMillis(), JsonNodeFactory.instance.objectNode().put("value", 42), metadata, test.name);
+
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            RunDAO run = RunDAO.findById(runId);
+            assertNotNull(run);
+            assertEquals(test.id, run.testid);
+            assertFalse(Hibernate.isPropertyInitialized(run, "data"));
+            assertFalse(Hibernate.isPropertyInitialized(run, "metadata"));
+
+            assertEquals(42, run.data.path("value").intValue());
+            assertTrue(Hibernate.isPropertyInitialized(run, "data"));
+            // metadata are in a separate lazy group
+            assertFalse(Hibernate.isPropertyInitialized(run, "metadata"));
+            return null;
+         }
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRolesVerifiedOnce(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      int runId = uploadRun(JsonNodeFactory.instance.objectNode().put("value", 42), test.name);
+
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            assertEquals(Boolean.TRUE, em.createNativeQuery("SELECT has_role('tester')").getSingleResult());
+            assertEquals(Boolean.FALSE, em.createNativeQuery("SELECT has_role('admin')").getSingleResult());
+            assertNotNull(RunDAO.findById(runId));
+            return null;
+         }
+      });
+      // roles set without verification are still checked by has_role() itself
+      assertThrows(PersistenceException.class, () -> Util.withTx(tm, () -> {
+         em.createNativeQuery("SELECT set_config('horreum.userroles', 'tester:0:forged', true)").getSingleResult();
+         return em.createNativeQuery("SELECT has_role('tester')").getSingleResult();
+      }));
+      // purged signatures are verified again
+      assertTrue(roleManager.purgeVerifiedRoles(Duration.ZERO) > 0);
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            assertEquals(Boolean.TRUE, em.createNativeQuery("SELECT has_role('tester')").getSingleResult());
+            assertNotNull(RunDAO.findById(runId));
+            return null;
+         }
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testForgedVerificationIgnored() throws NoSuchAlgorithmException {
+      // Application user can create temporary tables, but these must not shadow the verified signatures
+      Util.withTx(tm, () -> {
+         em.createNativeQuery("CREATE TEMPORARY TABLE verified_userroles(role text, userroles text) ON COMMIT DROP").executeUpdate();
+         em.createNativeQuery("INSERT INTO verified_userroles VALUES ('admin', 'x')").executeUpdate();
+         em.createNativeQuery("SELECT set_config('horreum.userroles', 'x', true), set_config('horreum.verified_userroles', 'x', true)").getSingleResult();
+         assertEquals(Boolean.FALSE, em.createNativeQuery("SELECT has_role('admin')").getSingleResult());
+         return null;
+      });
+      assertThrows(PersistenceException.class, () -> Util.withTx(tm, () -> {
+         em.createNativeQuery("CREATE TEMPORARY TABLE verified_role_signature(signed_role text, verified timestamp) ON COMMIT DROP").executeUpdate();
+         em.createNativeQuery("INSERT INTO verified_role_signature VALUES ('admin:0:forged', now())").executeUpdate();
+         em.createNativeQuery("SELECT set_config('horreum.userroles', 'admin:0:forged', true)").getSingleResult();
+         return em.createNativeQuery("SELECT has_role('admin')").getSingleResult();
+      }));
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      String signature = Base64.getEncoder().encodeToString(digest.digest("admin0forged".getBytes(StandardCharsets.UTF_8)));
+      assertThrows(PersistenceException.class, () -> Util.withTx(tm, () -> {
+         em.createNativeQuery("CREATE TEMPORARY TABLE dbsecret(passphrase text) ON COMMIT DROP").executeUpdate();
+         em.createNativeQuery("INSERT INTO dbsecret VALUES ('forged')").executeUpdate();
+         em.createNativeQuery("SELECT set_config('horreum.userroles', ?1, true)").setParameter(1, "admin:0:" + signature).getSingleResult();
+         return em.createNativeQuery("SELECT has_role('admin')").getSingleResult();
+      }));
+      // the cache of verified signatures is not accessible to the application user
+      assertThrows(PersistenceException.class, () -> Util.withTx(tm,
+            () -> em.createNativeQuery("INSERT INTO public.verified_role_signature(signed_role) VALUES ('admin:0:forged')").executeUpdate()));
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testNestedRoles() {
+      Util.withTx(tm, () -> {
+         try (CloseMe outer = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            assertEquals(Boolean.TRUE, hasRole("tester"));
+            try (CloseMe inner = roleManager.withRoles(Collections.singleton("admin"))) {
+               assertEquals(Boolean.TRUE, hasRole("admin"));
+               assertEquals(Boolean.FALSE, hasRole("tester"));
+            }
+            assertEquals(Boolean.TRUE, hasRole("tester"));
+            assertEquals(Boolean.FALSE, hasRole("admin"));
+         }
+         assertEquals(Boolean.FALSE, hasRole("tester"));
+         return null;
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRolesAfterRollback() throws Exception {
+      tm.begin();
+      try (CloseMe ignored = roleManager.withRoles(Collections.singleton("admin"))) {
+         assertEquals(Boolean.TRUE, hasRole("admin"));
+         tm.setRollbackOnly();
+      } finally {
+         tm.rollback();
+      }
+      Util.withTx(tm, () -> {
+         assertEquals(Boolean.FALSE, hasRole("admin"));
+         Object userRoles = em.createNativeQuery("SELECT current_setting('horreum.userroles', true)").getSingleResult();
+         assertTrue(userRoles == null || "".equals(userRoles), String.valueOf(userRoles));
+         return null;
+      });
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRolesNotLeakedToPooledConnection() {
+      Object backendPid = Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            assertEquals(Boolean.TRUE, hasRole("tester"));
+            return em.createNativeQuery("SELECT pg_backend_pid()").getSingleResult();
+         }
+      });
+      boolean reused = false;
+      // Agroal prefers the connection last used by this thread, but it might be taken in the meantime
+      for (int i = 0; i < 10 && !reused; ++i) {
+         reused = Util.withTx(tm, () -> {
+            Object[] state = (Object[]) em.createNativeQuery("SELECT pg_backend_pid(), current_setting('horreum.userroles', true), " +
+                  "current_setting('horreum.token', true), to_regclass('pg_temp.verified_userroles')::::text").getSingleResult();
+            assertTrue(state[1] == null || "".equals(state[1]), String.valueOf(state[1]));
+            assertTrue(state[2] == null || "".equals(state[2]), String.valueOf(state[2]));
+            assertNull(state[3]);
+            assertEquals(Boolean.FALSE, hasRole("tester"));
+            return backendPid.equals(state[0]);
+         });
+      }
+      assertTrue(reused);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testPendingWriteFlushedBeforeSystemRoles(TestInfo info) {
+      // Only the tester roles allow to insert the test; the system roles would not
+      int testId = Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            TestDAO test = new TestDAO();
+            test.name = getTestName(info);
+            test.owner = TESTER_ROLES[0];
+            test.views = new ArrayList<>();
+            test.notificationsEnabled = true;
+            test.persist();
+            // the insert is still pending when the roles change
+            alertingService.expectations();
+            return test.id;
+         }
+      });
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+            assertNotNull(TestDAO.findById(testId));
+            return null;
+         }
+      });
+   }
+
+   private Object hasRole(String role) {
+      return em.createNativeQuery("SELECT has_role(?1)").setParameter(1, role).getSingleResult();
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testUploadTooLarge(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long maxSize = ConfigProvider.getConfig().getValue("horreum.upload.max-size", MemorySize.class).asLongValue();
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("padding", "x".repeat((int) maxSize));
+      long now = System.currentTimeMillis();
+      RestAssured.given().auth().oauth2(getUploaderToken())
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .body(data.toString())
+            .post("/api/run/data?start=" + now + "&stop=" + now + "&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+            .then()
+            .statusCode(413);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testUploadWithoutContentLength(TestInfo info) throws IOException, InterruptedException {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long maxSize = ConfigProvider.getConfig().getValue("horreum.upload.max-size", MemorySize.class).asLongValue();
+      long now = System.currentTimeMillis();
+      String url = "/api/run/data?start=" + now + "&stop=" + now + "&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC;
+
+      HttpResponse<String> response = postChunked(url, JsonNodeFactory.instance.objectNode().put("value", 42).toString());
+      assertEquals(200, response.statusCode(), response.body());
+      waitForDatasets(Integer.parseInt(response.body()));
+
+      // the length is not declared, the limit is enforced while reading
+      response = postChunked(url, JsonNodeFactory.instance.objectNode().put("padding", "x".repeat((int) maxSize)).toString());
+      assertEquals(413, response.statusCode(), response.body());
+   }
+
+   private HttpResponse<String> postChunked(String path, String body) throws IOException, InterruptedException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + RestAssured.port + path))
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .header(HttpHeaders.AUTHORIZATION, "Bearer " + getUploaderToken())
+            // unknown length: the body is sent with chunked encoding
+            .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(bytes)))
+            .build();
+      return HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build().send(request, HttpResponse.BodyHandlers.ofString());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRegularBodyLimitOutsideUploads(TestInfo info) {
+      long maxBodySize = ConfigProvider.getConfig().getValue("horreum.http.max-body-size", MemorySize.class).asLongValue();
+      Test test = createExampleTest(getTestName(info));
+      test.description = "x".repeat((int) maxBodySize);
+      jsonRequest().auth().oauth2(getTesterToken()).body(test).post("/api/test").then().statusCode(413);
+
+      // uploads of the same size are still accepted
+      Test created = createTest(createExampleTest(getTestName(info)));
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("padding", "x".repeat((int) maxBodySize));
+      uploadRun(data, created.name);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testUploadBudgetExhausted(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      long budget = ConfigProvider.getConfig().getValue("horreum.upload.memory-budget", MemorySize.class).asLongValue();
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("value", 42);
+      long now = System.currentTimeMillis();
+      int permits = runService.reserveUploadBudget(budget);
+      try {
+         RestAssured.given().auth().oauth2(getUploaderToken())
+               .header(HttpHeaders.CONTENT_TYPE, "application/json")
+               .body(data.toString())
+               .post("/api/run/data?start=" + now + "&stop=" + now + "&test=" + test.name + "&owner=" + UPLOADER_ROLES[0] + "&access=" + Access.PUBLIC)
+               .then()
+               .statusCode(503);
+      } finally {
+         runService.releaseUploadBudget(permits);
+      }
+      // the budget is available again
+      uploadRun(data, test.name);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testUpdateRunSchema(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      Schema schema = createExampleSchema(info);
+      int runId = uploadRun(JsonNodeFactory.instance.objectNode().put("value", 42), test.name);
+
+      // run data are replaced, not modified in place, so the change must be persisted
+      RestAssured.given().auth().oauth2(getTesterToken())
+            .header(HttpHeaders.CONTENT_TYPE, "text/plain")
+            .body(schema.uri)
+            .post("/api/run/" + runId + "/schema")
+            .then().statusCode(200);
+
+      JsonNode data = getData(runId, null);
+      assertEquals(schema.uri, data.path("$schema").asText());
+      assertEquals(42, data.path("value").intValue());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testLoadedRunNotWrittenBack(TestInfo info) {
+      Test test = createTest(createExampleTest(getTestName(info)));
+      ArrayNode values = JsonNodeFactory.instance.arrayNode();
+      for (int i = 0; i < 1000; ++i) {
+         values.addObject().put("index", i).put("value", "v" + i);
+      }
+      int runId = uploadRun(JsonNodeFactory.instance.objectNode().set("values", values), test.name);
+      waitForDatasets(runId);
+
+      // Counted in this session only; global statistics would include background processing of the upload
+      int[] flushes = new int[1];
+      // roles set before the transaction starts don't cause any flush
+      try (CloseMe ignored = roleManager.withRoles(Arrays.asList(TESTER_ROLES))) {
+         Util.withTx(tm, () -> {
+            Session session = em.unwrap(Session.class);
+            session.addEventListeners(new BaseSessionEventListener() {
+               @Override
+               public void flushEnd(int numberOfEntities, int numberOfCollections) {
+                  flushes[0]++;
+               }
+            });
+            RunDAO run = RunDAO.findById(runId);
+            assertEquals(1000, run.data.path("values").size());
+            // the document is not written back
+            assertFalse(session.isDirty());
+            return null;
+         });
+      }
+      // single flush on commit
+      assertEquals(1, flushes[0]);
+   }
+
    @org.junit.jupiter.api.Test
    public void testJavascriptExecution() throws InterruptedException {
       Test test = createExampleTest("supersecret");
@@ -19,6 +19,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.hyperfoil.tools.horreum.api.data.Access;
 import io.hyperfoil.tools.horreum.api.data.Label;
 import io.hyperfoil.tools.horreum.api.data.Transformer;
 import io.hyperfoil.tools.horreum.api.services.SchemaService;
@@ -28,12 +29,14 @@ import io.hyperfoil.tools.horreum.api.data.Extractor;
 import io.hyperfoil.tools.horreum.api.data.Schema;
 import io.hyperfoil.tools.horreum.api.data.Test;
 import io.hyperfoil.tools.horreum.entity.data.*;
+import io.hyperfoil.tools.horreum.server.CloseMe;
 import io.hyperfoil.tools.horreum.test.PostgresResource;
 import io.hyperfoil.tools.horreum.test.TestUtil;
 import io.quarkus.test.common.QuarkusTestResource;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
 import io.quarkus.test.oidc.server.OidcWiremockTestResource;
+import io.restassured.RestAssured;
 import io.restassured.common.mapper.TypeRef;
 import org.junit.jupiter.api.Assertions;
 
@@ -97,6 +100,159 @@ public class SchemaServiceTest extends BaseServiceTest {
       assertEquals(4, em.createNativeQuery("SELECT COUNT(*)::::int FROM dataset_validationerrors").getSingleResult());
    }
 
+   @org.junit.jupiter.api.Test
+   public void testValidateWithReferencedSchema() throws IOException, InterruptedException {
+      JsonNode allowAny = load("/allow-any.json");
+      JsonNode allowNone = load("/allow-none.json");
+      ObjectNode referencedJson = ((ObjectNode) allowAny.deepCopy()).put("$id", "urn:referenced:1.0");
+      Schema referenced = createSchema("referenced", "urn:referenced:1.0", referencedJson);
+      ObjectNode referencingJson = JsonNodeFactory.instance.objectNode()
+            .put("$id", "urn:referencing:1.0")
+            .put("$schema", allowAny.path("$schema").asText())
+            .put("$ref", "urn:referenced:1.0");
+      Schema referencing = createSchema("referencing", "urn:referencing:1.0", referencingJson);
+
+      Test test = createTest(createExampleTest("referencingTest"));
+      BlockingQueue<Schema.ValidationEvent> runValidations = eventConsumerQueue(Schema.ValidationEvent.class, MessageBusChannels.RUN_VALIDATED, e -> checkRunTestId(e.id, test.id));
+
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("$schema", referencing.uri).put("foo", "bar");
+      int runId = uploadRun(data.toString(), test.name);
+      Schema.ValidationEvent runValidation = runValidations.poll(10, TimeUnit.SECONDS);
+      assertNotNull(runValidation);
+      assertEquals(runId, runValidation.id);
+      assertEquals(0, runValidation.errors.size());
+
+      // Changing the referenced schema must drop the compiled referencing schema
+      referenced.schema = ((ObjectNode) allowNone.deepCopy()).put("$id", "urn:referenced:1.0");
+      addOrUpdateSchema(referenced);
+
+      int runId2 = uploadRun(data.toString(), test.name);
+      Schema.ValidationEvent runValidation2 = runValidations.poll(10, TimeUnit.SECONDS);
+      assertNotNull(runValidation2);
+      assertEquals(runId2, runValidation2.id);
+      // one error for extra "foo" and one for "$schema"
+      assertEquals(2, runValidation2.errors.size());
+      runValidation2.errors.forEach(e -> assertEquals(referencing.id, e.getSchemaId()));
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testSchemaModifiedByOtherInstance() throws IOException, InterruptedException {
+      JsonNode allowAny = load("/allow-any.json");
+      JsonNode allowNone = load("/allow-none.json");
+      String uri = "urn:other-instance:1.0";
+      Schema schema = createSchema("otherInstance", uri, ((ObjectNode) allowAny.deepCopy()).put("$id", uri));
+
+      Test test = createTest(createExampleTest("otherInstanceTest"));
+      BlockingQueue<Schema.ValidationEvent> runValidations = eventConsumerQueue(Schema.ValidationEvent.class, MessageBusChannels.RUN_VALIDATED, e -> checkRunTestId(e.id, test.id));
+
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("$schema", uri).put("foo", "bar");
+      uploadRun(data.toString(), test.name);
+      Schema.ValidationEvent runValidation = runValidations.poll(10, TimeUnit.SECONDS);
+      assertNotNull(runValidation);
+      assertEquals(0, runValidation.errors.size());
+
+      // another instance modifies the schema: the cached validator is not invalidated locally
+      String modified = ((ObjectNode) allowNone.deepCopy()).put("$id", uri).toString();
+      Util.withTx(tm, () -> {
+         try (CloseMe ignored = roleManager.withRoles(SYSTEM_ROLES)) {
+            return em.createNativeQuery("UPDATE schema SET schema = ?1 ::::jsonb WHERE id = ?2")
+                  .setParameter(1, modified).setParameter(2, schema.id).executeUpdate();
+         }
+      });
+
+      int runId2 = uploadRun(data.toString(), test.name);
+      Schema.ValidationEvent runValidation2 = runValidations.poll(10, TimeUnit.SECONDS);
+      assertNotNull(runValidation2);
+      assertEquals(runId2, runValidation2.id);
+      // one error for extra "foo" and one for "$schema"
+      assertEquals(2, runValidation2.errors.size());
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRevalidateAll() throws IOException, InterruptedException {
+      JsonNode allowNone = load("/allow-none.json");
+      Schema schema = createSchema("revalidated", allowNone.path("$id").asText(), allowNone);
+      Test test = createTest(createExampleTest("revalidationTest"));
+      BlockingQueue<Schema.ValidationEvent> datasetValidations = eventConsumerQueue(Schema.ValidationEvent.class, MessageBusChannels.DATASET_VALIDATED, e -> checkTestId(e.id, test.id));
+
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("$schema", schema.uri).put("foo", "bar");
+      uploadRun(data.toString(), test.name);
+      uploadRun(data.toString(), test.name);
+      assertNotNull(datasetValidations.poll(10, TimeUnit.SECONDS));
+      assertNotNull(datasetValidations.poll(10, TimeUnit.SECONDS));
+
+      SchemaService.RevalidationStatus started = jsonRequest().post("/api/schema/" + schema.id + "/revalidate")
+            .then().statusCode(200).extract().body().as(SchemaService.RevalidationStatus.class);
+      assertEquals(schema.id, started.schemaId);
+      TestUtil.eventually(() -> jsonRequest().get("/api/schema/" + schema.id + "/revalidate")
+            .then().statusCode(200).extract().body().as(SchemaService.RevalidationStatus.class).done);
+      SchemaService.RevalidationStatus status = jsonRequest().get("/api/schema/" + schema.id + "/revalidate")
+            .then().statusCode(200).extract().body().as(SchemaService.RevalidationStatus.class);
+      assertEquals(2, status.totalRuns);
+      assertEquals(2, status.totalDatasets);
+      assertEquals(2, status.validatedRuns);
+      assertEquals(2, status.validatedDatasets);
+      assertEquals(4, status.invalid);
+      Assertions.assertFalse(status.cancelled);
+
+      // errors are replaced, not duplicated: one for extra "foo" and one for "$schema" in each run and dataset
+      assertEquals(4, em.createNativeQuery("SELECT COUNT(*)::::int FROM run_validationerrors WHERE schema_id = ?1")
+            .setParameter(1, schema.id).getSingleResult());
+      assertEquals(4, em.createNativeQuery("SELECT COUNT(*)::::int FROM dataset_validationerrors WHERE schema_id = ?1")
+            .setParameter(1, schema.id).getSingleResult());
+
+      jsonRequest().delete("/api/schema/" + schema.id + "/revalidate").then().statusCode(404);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testRevalidationStatusAccess() {
+      Schema schema = new Schema();
+      schema.owner = TESTER_ROLES[0];
+      schema.access = Access.PUBLIC;
+      schema.name = "revalidationAccess";
+      schema.uri = "urn:revalidation-access:1.0";
+      addOrUpdateSchema(schema);
+      // testers from other teams can see the schema but not the validation
+      RestAssured.given().auth().oauth2(getAccessToken("bob", "bar-team", "bar-tester", "tester", "viewer"))
+            .get("/api/schema/" + schema.id + "/revalidate").then().statusCode(403);
+      jsonRequest().get("/api/schema/" + schema.id + "/revalidate").then().statusCode(404);
+   }
+
+   @org.junit.jupiter.api.Test
+   public void testSkipValidationOfUnchangedData() throws IOException, InterruptedException {
+      JsonNode allowNone = load("/allow-none.json");
+      Schema schema = createSchema("unchanged", allowNone.path("$id").asText(), allowNone);
+      Test test = createTest(createExampleTest("unchangedTest"));
+      BlockingQueue<Schema.ValidationEvent> datasetValidations = eventConsumerQueue(Schema.ValidationEvent.class, MessageBusChannels.DATASET_VALIDATED, e -> checkTestId(e.id, test.id));
+
+      ObjectNode data = JsonNodeFactory.instance.objectNode().put("$schema", schema.uri).put("foo", "bar");
+      int runId = uploadRun(data.toString(), test.name);
+      Schema.ValidationEvent validation = datasetValidations.poll(10, TimeUnit.SECONDS);
+      assertNotNull(validation);
+      assertEquals(2, validation.errors.size());
+      assertEquals(1, em.createNativeQuery("SELECT COUNT(*)::::int FROM run_validation_digest WHERE run_id = ?1")
+            .setParameter(1, runId).getSingleResult());
+
+      // Tamper with the stored result: if the unchanged dataset was validated again we would get 2 errors
+      Util.withTx(tm, () -> em.createNativeQuery("UPDATE dataset_validation_digest SET errors = '[]'::::jsonb WHERE run_id = ?1")
+            .setParameter(1, runId).executeUpdate());
+      jsonRequest().post("/api/run/" + runId + "/recalculate").then().statusCode(200);
+      Schema.ValidationEvent revalidation = datasetValidations.poll(10, TimeUnit.SECONDS);
+      assertNotNull(revalidation);
+      assertEquals(0, revalidation.errors.size());
+
+      // Modified schema must be validated again
+      schema.schema = ((ObjectNode) allowNone.deepCopy()).put("title", "Still does not allow any properties");
+      addOrUpdateSchema(schema);
+      jsonRequest().post("/api/run/" + runId + "/recalculate").then().statusCode(200);
+      // the schema update may trigger recalculation as well
+      Schema.ValidationEvent event;
+      do {
+         event = datasetValidations.poll(10, TimeUnit.SECONDS);
+         assertNotNull(event);
+      } while (event.errors.size() != 2);
+   }
+
    @org.junit.jupiter.api.Test
    public void testEditSchema() {
       Schema schema = createSchema("My Schema", "urn:my:schema");
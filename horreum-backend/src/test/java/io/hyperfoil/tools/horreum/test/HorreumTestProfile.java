@@ -15,7 +15,11 @@ public class HorreumTestProfile implements QuarkusTestProfile {
             "quarkus.oidc.token.issuer", "https://server.example.com",
             "smallrye.jwt.sign.key.location", "/privateKey.jwk",
             "horreum.url", "http://localhost:8081",
-            "horreum.test-mode", "true");
+            "horreum.test-mode", "true",
+            "horreum.upload.max-size", "1M",
+            "horreum.upload.memory-budget", "2M",
+            "horreum.upload.budget-timeout", "1s",
+            "horreum.http.max-body-size", "64K");
    }
    @Override
    public boolean disableGlobalTestResources() {
@@ -0,0 +1,15 @@
+package io.hyperfoil.tools.horreum.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PersistentChangesTestProfile extends HorreumTestProfile {
+   @Override
+   public Map<String, String> getConfigOverrides() {
+      Map<String, String> overrides = new HashMap<>(super.getConfigOverrides());
+      overrides.put("horreum.alerting.changes.persistent", "true");
+      overrides.put("horreum.alerting.changes.check", "1s");
+      overrides.put("horreum.alerting.changes.lease", "2s");
+      return overrides;
+   }
+}
@@ -14,6 +14,7 @@ import io.hyperfoil.tools.horreum.api.client.RunService;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunsSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunCount;
+import io.hyperfoil.tools.horreum.api.services.RunService.RunTransformationStatus;
 
 import io.hyperfoil.tools.horreum.api.data.Run;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
@@ -80,6 +81,11 @@ public class RunServiceExtension implements RunService {
       return delegate.add(testNameOrId, owner, access, token, run);
    }
 
+   @Override
+   public List<Integer> addBulk(String testNameOrId, String owner, Access access, String token, List<Run> runs) {
+      return delegate.addBulk(testNameOrId, owner, access, token, runs);
+   }
+
    @Override
    public Response addRunFromData(String start, String stop, String test, String owner, Access access, String token, String schemaUri, String description, JsonNode data) {
       return delegate.addRunFromData(start, stop, test, owner, access, token, schemaUri, description, data);
@@ -127,6 +133,11 @@ public class RunServiceExtension implements RunService {
       delegate.waitForDatasets(runId);
    }
 
+   @Override
+   public RunTransformationStatus getTransformationStatus(int runId, String token) {
+      return delegate.getTransformationStatus(runId, token);
+   }
+
    @Override
    public RunCount runCount(int testId) {
       return delegate.runCount(testId);
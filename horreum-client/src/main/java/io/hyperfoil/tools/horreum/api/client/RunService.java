@@ -8,6 +8,7 @@ import io.hyperfoil.tools.horreum.api.data.Run;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunsSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunSummary;
 import io.hyperfoil.tools.horreum.api.services.RunService.RunCount;
+import io.hyperfoil.tools.horreum.api.services.RunService.RunTransformationStatus;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DefaultValue;
@@ -82,6 +83,15 @@ public interface RunService {
               @QueryParam("token") String token,
               Run run);
 
+   @POST
+   @Path("bulk")
+   @Consumes(MediaType.APPLICATION_JSON)
+   List<Integer> addBulk(@QueryParam("test") String testNameOrId,
+                         @QueryParam("owner") String owner,
+                         @QueryParam("access") Access access,
+                         @QueryParam("token") String token,
+                         List<Run> runs);
+
    @POST
    @Path("data")
    @Produces(MediaType.TEXT_PLAIN) // run ID as string
@@ -114,6 +124,10 @@ public interface RunService {
    @Path("{id}/waitforDatasets")
    void waitForDatasets(@PathParam("id") int runId);
 
+   @GET
+   @Path("{id}/transformationStatus")
+   RunTransformationStatus getTransformationStatus(@PathParam("id") int runId, @QueryParam("token") String token);
+
    @GET
    @Path("count")
    RunCount runCount(@QueryParam("testId") int testId);